@@ -0,0 +1,208 @@
+package wdl.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A small benchmark runner, in the spirit of JMH but without needing it (or
+ * any other library that the mod doesn't already ship with).
+ * <br/>
+ * Each benchmark is run for a number of warmup iterations (whose results
+ * are thrown away, so that the JIT has a chance to compile the code), and
+ * then for a number of measured iterations.  Every iteration calls
+ * {@link Benchmark#run()} {@link Benchmark#getRunsPerIteration()}
+ * times and records the average time per operation; the report gives the
+ * mean, median, 99th percentile and spread of those averages.
+ * <br/>
+ * Settings are read from system properties:
+ * <ul>
+ * <li><code>wdl.benchmark.warmup</code>: warmup iterations (default 5)</li>
+ * <li><code>wdl.benchmark.iterations</code>: measured iterations (default
+ * 10)</li>
+ * <li><code>wdl.benchmark.filter</code>: only run benchmarks whose name
+ * contains this</li>
+ * <li><code>wdl.benchmark.output</code>: also append the results to this
+ * CSV file</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+	/**
+	 * A single benchmark.
+	 */
+	public static abstract class Benchmark {
+		private final String name;
+
+		public Benchmark(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Called before each iteration, outside of the measured time.
+		 */
+		public void setUpIteration() throws Exception { }
+
+		/**
+		 * Called after each iteration, outside of the measured time.
+		 */
+		public void tearDownIteration() throws Exception { }
+
+		/**
+		 * Number of times that {@link #run()} is called per iteration.
+		 */
+		public int getRunsPerIteration() {
+			return 1;
+		}
+
+		/**
+		 * Number of operations that a single call to {@link #run()} counts
+		 * as, for benchmarks that have to do a batch of work at once (such
+		 * as saving several chunks and then waiting for them to be
+		 * written).
+		 */
+		public int getOperationsPerRun() {
+			return 1;
+		}
+
+		/**
+		 * Runs one operation.
+		 *
+		 * @return Anything derived from the result, so that the work can't
+		 *         be optimized away.
+		 */
+		public abstract long run() throws Exception;
+	}
+
+	/**
+	 * Results of the operations, so that the JIT can't prove that they are
+	 * unused.
+	 */
+	private static volatile long sink;
+
+	private final int warmupIterations;
+	private final int measuredIterations;
+	private final String filter;
+	private final File output;
+	private final List<String> results = new ArrayList<String>();
+
+	public BenchmarkRunner() {
+		this.warmupIterations = Integer.getInteger("wdl.benchmark.warmup", 5);
+		this.measuredIterations = Integer.getInteger(
+				"wdl.benchmark.iterations", 10);
+		this.filter = System.getProperty("wdl.benchmark.filter", "");
+		String outputName = System.getProperty("wdl.benchmark.output");
+		this.output = (outputName != null ? new File(outputName) : null);
+	}
+
+	/**
+	 * Runs a benchmark and prints its results.
+	 *
+	 * @param parameters Describes the settings that the benchmark was run
+	 *            with (such as the number of entities), for the report.
+	 */
+	public void run(Benchmark benchmark, String parameters) throws Exception {
+		if (!benchmark.getName().contains(filter)) {
+			return;
+		}
+
+		for (int i = 0; i < warmupIterations; i++) {
+			runIteration(benchmark);
+		}
+
+		double[] nanosPerOp = new double[measuredIterations];
+		for (int i = 0; i < measuredIterations; i++) {
+			nanosPerOp[i] = runIteration(benchmark);
+		}
+		Arrays.sort(nanosPerOp);
+
+		double mean = 0;
+		for (double value : nanosPerOp) {
+			mean += value;
+		}
+		mean /= nanosPerOp.length;
+
+		String line = String.format(Locale.ROOT, "%-32s %-28s %12.1f %12.1f "
+				+ "%12.1f %12.1f %12.1f", benchmark.getName(), parameters,
+				mean, percentile(nanosPerOp, 50), percentile(nanosPerOp, 99),
+				nanosPerOp[0], nanosPerOp[nanosPerOp.length - 1]);
+		System.out.println(line);
+
+		results.add(String.format(Locale.ROOT, "%s,%s,%d,%.1f,%.1f,%.1f,"
+				+ "%.1f,%.1f", benchmark.getName(), parameters.replace(',',
+				' '), measuredIterations, mean, percentile(nanosPerOp, 50),
+				percentile(nanosPerOp, 99), nanosPerOp[0],
+				nanosPerOp[nanosPerOp.length - 1]));
+	}
+
+	/**
+	 * Prints the header of the report.
+	 */
+	public void printHeader() {
+		System.out.println(String.format(Locale.ROOT, "%-32s %-28s %12s %12s "
+				+ "%12s %12s %12s", "Benchmark", "Parameters", "ns/op mean",
+				"p50", "p99", "min", "max"));
+	}
+
+	/**
+	 * Writes the results to the output file, if there is one.
+	 */
+	public void finish() throws IOException {
+		if (output == null) {
+			return;
+		}
+
+		boolean isNew = !output.exists();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(output,
+				true), "UTF-8");
+		try {
+			if (isNew) {
+				writer.write("benchmark,parameters,iterations,meanNsPerOp,"
+						+ "p50NsPerOp,p99NsPerOp,minNsPerOp,maxNsPerOp\n");
+			}
+			for (String result : results) {
+				writer.write(result + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Runs one iteration.
+	 *
+	 * @return The average time per operation, in nanoseconds.
+	 */
+	private static double runIteration(Benchmark benchmark) throws Exception {
+		benchmark.setUpIteration();
+		try {
+			int runs = benchmark.getRunsPerIteration();
+			long result = 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < runs; i++) {
+				result += benchmark.run();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			sink += result;
+			return (double) elapsed / runs / benchmark.getOperationsPerRun();
+		} finally {
+			benchmark.tearDownIteration();
+		}
+	}
+
+	private static double percentile(double[] sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
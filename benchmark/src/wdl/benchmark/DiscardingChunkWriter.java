@@ -0,0 +1,46 @@
+package wdl.benchmark;
+
+import java.io.File;
+
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.chunk.Chunk;
+import wdl.AnvilChunkWriter;
+import wdl.ChunkFingerprints;
+
+/**
+ * A chunk writer that doesn't store anything, so that benchmarks of
+ * {@link wdl.WDL#saveChunk(Chunk)} measure WDL's own work (filtering
+ * entities, importing tile entities, building the NBT and so on) without
+ * any disk IO.
+ * <br/>
+ * It still looks at the saved chunk's entities and tile entities, so that
+ * building them can't be skipped.
+ */
+public class DiscardingChunkWriter extends AnvilChunkWriter {
+	/**
+	 * Number of chunks "saved".
+	 */
+	public long chunksSaved;
+	/**
+	 * Number of entities and tile entities seen in the saved chunks.
+	 */
+	public long objectsSeen;
+
+	/**
+	 * @param folder Where the writer would save; nothing is written there.
+	 */
+	public DiscardingChunkWriter(File folder) {
+		super(folder);
+	}
+
+	@Override
+	public void addChunk(int chunkX, int chunkZ, NBTTagCompound rootTag,
+			long fingerprint) {
+		// Recorded as written, like the real writer would.
+		ChunkFingerprints.onWritten(chunkX, chunkZ, fingerprint);
+		chunksSaved++;
+		NBTTagCompound levelTag = rootTag.getCompoundTag("Level");
+		objectsSeen += levelTag.getTagList("Entities", 10).tagCount();
+		objectsSeen += levelTag.getTagList("TileEntities", 10).tagCount();
+	}
+}
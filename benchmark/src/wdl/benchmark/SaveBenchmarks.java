@@ -0,0 +1,298 @@
+package wdl.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.entity.Entity;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.storage.ThreadedFileIOBase;
+
+import org.apache.commons.io.FileUtils;
+
+import wdl.AnvilChunkWriter;
+import wdl.AnvilRegionFile;
+import wdl.ChunkFingerprints;
+import wdl.EntityUtils;
+import wdl.TileEntityChunkMap;
+import wdl.TileEntityImportCache;
+import wdl.WDL;
+import wdl.WDLMessages;
+import wdl.WorldBackup;
+import wdl.benchmark.BenchmarkRunner.Benchmark;
+
+/**
+ * Benchmarks for the parts of WDL that run while saving: saving chunks,
+ * importing old tile entities, entity filtering and zipping backups.
+ * <br/>
+ * Runs headless: there is no Minecraft instance, server or network
+ * connection, only a {@link SyntheticWorld} and temporary folders.  The
+ * size of the world is set with system properties:
+ * <ul>
+ * <li><code>wdl.benchmark.chunks</code>: width of the square of chunks
+ * (default 4, so 16 chunks)</li>
+ * <li><code>wdl.benchmark.entities</code>: entities per chunk (default
+ * 64)</li>
+ * <li><code>wdl.benchmark.tileEntities</code>: chests per chunk (default
+ * 16)</li>
+ * </ul>
+ * See {@link BenchmarkRunner} for the other settings.
+ */
+public class SaveBenchmarks {
+	public static void main(String[] args) throws Exception {
+		final int size = Integer.getInteger("wdl.benchmark.chunks", 4);
+		final int entities = Integer.getInteger("wdl.benchmark.entities", 64);
+		final int tileEntities = Integer.getInteger(
+				"wdl.benchmark.tileEntities", 16);
+		String parameters = (size * size) + " chunks, " + entities + "e "
+				+ tileEntities + "te";
+
+		// Chat messages need the game; nothing should be printed anyway.
+		WDLMessages.enableAllMessages = false;
+
+		final WorldClient world = SyntheticWorld.createWorld();
+		final List<Chunk> chunks = SyntheticWorld.createChunks(world, size,
+				entities, tileEntities);
+		final List<Entity> allEntities = new ArrayList<Entity>();
+		for (Chunk chunk : chunks) {
+			for (Iterable<Entity> entityList : chunk.getEntityLists()) {
+				for (Entity entity : entityList) {
+					allEntities.add(entity);
+				}
+			}
+		}
+
+		final File tempFolder = createTempFolder();
+		final File emptyFolder = new File(tempFolder, "empty");
+		final File savedWorld = new File(tempFolder, "world");
+		emptyFolder.mkdirs();
+		savedWorld.mkdirs();
+
+		WDL.worldClient = world;
+		WDL.newTileEntities = new TileEntityChunkMap();
+
+		BenchmarkRunner runner = new BenchmarkRunner();
+		runner.printHeader();
+
+		try {
+			runner.run(new Benchmark("saveChunk (discarding loader)") {
+				private int next = 0;
+
+				@Override
+				public void setUpIteration() {
+					WDL.chunkLoader = new AnvilChunkLoader(emptyFolder);
+					WDL.chunkWriter = new DiscardingChunkWriter(emptyFolder);
+					// Otherwise every chunk after the first iteration would
+					// be skipped as unchanged.
+					ChunkFingerprints.reset();
+					WDL.tileEntityImportCache = new TileEntityImportCache(
+							emptyFolder);
+				}
+
+				@Override
+				public int getRunsPerIteration() {
+					return chunks.size();
+				}
+
+				@Override
+				public long run() {
+					Chunk chunk = chunks.get(next++ % chunks.size());
+					WDL.saveChunk(chunk);
+					return ((DiscardingChunkWriter) WDL.chunkWriter).objectsSeen;
+				}
+			}, parameters);
+
+			runner.run(new Benchmark("saveChunk (anvil loader)") {
+				@Override
+				public void setUpIteration() throws IOException {
+					FileUtils.deleteDirectory(savedWorld);
+					savedWorld.mkdirs();
+					WDL.chunkLoader = new AnvilChunkLoader(savedWorld);
+					WDL.chunkWriter = new AnvilChunkWriter(savedWorld);
+					ChunkFingerprints.reset();
+					WDL.tileEntityImportCache = new TileEntityImportCache(
+							emptyFolder);
+				}
+
+				@Override
+				public void tearDownIteration() throws IOException {
+					AnvilRegionFile.closeAll();
+				}
+
+				@Override
+				public int getOperationsPerRun() {
+					return chunks.size();
+				}
+
+				@Override
+				public long run() throws InterruptedException {
+					// Saving is only done once the chunks are on disk.
+					for (Chunk chunk : chunks) {
+						WDL.saveChunk(chunk);
+					}
+					ThreadedFileIOBase.func_178779_a().waitForFinish();
+					return chunks.size();
+				}
+			}, parameters);
+
+			// The remaining benchmarks read from a saved copy of the world.
+			saveWorld(chunks, savedWorld, emptyFolder);
+
+			runner.run(new Benchmark("importTileEntities") {
+				private int next = 0;
+
+				@Override
+				public void setUpIteration() {
+					// A fresh cache, so that the region files are read.
+					WDL.tileEntityImportCache = new TileEntityImportCache(
+							savedWorld);
+					WDL.newTileEntities = new TileEntityChunkMap();
+				}
+
+				@Override
+				public void tearDownIteration() throws IOException {
+					AnvilRegionFile.closeAll();
+				}
+
+				@Override
+				public int getRunsPerIteration() {
+					return chunks.size();
+				}
+
+				@Override
+				public long run() {
+					Chunk chunk = chunks.get(next++ % chunks.size());
+					WDL.importTileEntities(chunk);
+					return chunk.getTileEntityMap().size();
+				}
+			}, parameters);
+
+			runner.run(new Benchmark("EntityUtils.isEntityEnabled") {
+				private int next = 0;
+
+				@Override
+				public int getRunsPerIteration() {
+					return 100000;
+				}
+
+				@Override
+				public long run() {
+					Entity entity = allEntities.get(next++ % allEntities.size());
+					return EntityUtils.isEntityEnabled(entity) ? 1 : 0;
+				}
+			}, parameters);
+
+			runner.run(new Benchmark("EntityUtils.getEntityType") {
+				private int next = 0;
+
+				@Override
+				public int getRunsPerIteration() {
+					return 100000;
+				}
+
+				@Override
+				public long run() {
+					Entity entity = allEntities.get(next++ % allEntities.size());
+					return EntityUtils.getEntityType(entity).length();
+				}
+			}, parameters);
+
+			addOtherFiles(savedWorld);
+			final File zip = new File(tempFolder, "backup.zip");
+
+			runner.run(new ZipBenchmark("WorldBackup.zipDirectory (store)",
+					savedWorld, zip, true), parameters);
+			runner.run(new ZipBenchmark("WorldBackup.zipDirectory (deflate)",
+					savedWorld, zip, false), parameters);
+
+			runner.finish();
+		} finally {
+			AnvilRegionFile.closeAll();
+			FileUtils.deleteDirectory(tempFolder);
+		}
+	}
+
+	/**
+	 * Zips a world folder.
+	 */
+	private static class ZipBenchmark extends Benchmark {
+		private final File source;
+		private final File zip;
+		private final boolean storeRegionFiles;
+
+		public ZipBenchmark(String name, File source, File zip,
+				boolean storeRegionFiles) {
+			super(name);
+			this.source = source;
+			this.zip = zip;
+			this.storeRegionFiles = storeRegionFiles;
+		}
+
+		@Override
+		public void tearDownIteration() {
+			zip.delete();
+		}
+
+		@Override
+		public long run() throws IOException {
+			WorldBackup.zipDirectory(source, zip, 6, storeRegionFiles, null);
+			return zip.length();
+		}
+	}
+
+	/**
+	 * Saves the chunks into the given folder with a real chunk loader.
+	 */
+	private static void saveWorld(List<Chunk> chunks, File worldFolder,
+			File emptyFolder) throws IOException, InterruptedException {
+		FileUtils.deleteDirectory(worldFolder);
+		worldFolder.mkdirs();
+		WDL.chunkLoader = new AnvilChunkLoader(worldFolder);
+		WDL.chunkWriter = new AnvilChunkWriter(worldFolder);
+		WDL.tileEntityImportCache = new TileEntityImportCache(emptyFolder);
+		ChunkFingerprints.reset();
+
+		for (Chunk chunk : chunks) {
+			WDL.saveChunk(chunk);
+		}
+		ThreadedFileIOBase.func_178779_a().waitForFinish();
+		AnvilRegionFile.closeAll();
+	}
+
+	/**
+	 * Adds files like the ones next to the region folder in a real world
+	 * (level.dat, player data and maps), so that the backups have more
+	 * than a few large files to handle.
+	 */
+	private static void addOtherFiles(File worldFolder) throws IOException {
+		Random random = new Random(0);
+
+		byte[] levelDat = new byte[2048];
+		random.nextBytes(levelDat);
+		FileUtils.writeByteArrayToFile(new File(worldFolder, "level.dat"),
+				levelDat);
+
+		for (int i = 0; i < 64; i++) {
+			// Map data is mostly zeroes, so it compresses well.
+			byte[] map = new byte[16384];
+			for (int j = 0; j < map.length; j += 7) {
+				map[j] = (byte) random.nextInt();
+			}
+			FileUtils.writeByteArrayToFile(new File(worldFolder, "data/map_"
+					+ i + ".dat"), map);
+		}
+	}
+
+	private static File createTempFolder() throws IOException {
+		File folder = File.createTempFile("wdl-benchmark", "");
+		if (!folder.delete() || !folder.mkdir()) {
+			throw new IOException("Couldn't create temporary folder "
+					+ folder);
+		}
+		return folder;
+	}
+}
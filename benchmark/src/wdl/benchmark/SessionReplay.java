@@ -0,0 +1,448 @@
+package wdl.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import net.minecraft.block.Block;
+import net.minecraft.client.multiplayer.ChunkProviderClient;
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.entity.Entity;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.LongHashMap;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.chunk.storage.AnvilSaveHandler;
+import net.minecraft.world.storage.MapData;
+
+import org.apache.commons.io.FileUtils;
+
+import wdl.AnvilChunkWriter;
+import wdl.AnvilRegionFile;
+import wdl.ChunkFingerprints;
+import wdl.ChunkFlusher;
+import wdl.EntityChunkMap;
+import wdl.EntityUtils;
+import wdl.LoadedChunkIndex;
+import wdl.ReflectionUtils;
+import wdl.SaveMetrics;
+import wdl.SessionRecorder;
+import wdl.TileEntityChunkMap;
+import wdl.TileEntityImportCache;
+import wdl.UnloadSaveQueue;
+import wdl.WDL;
+import wdl.WDLEvents;
+import wdl.WDLHooks;
+import wdl.WDLMessages;
+import wdl.benchmark.BenchmarkRunner.Benchmark;
+import wdl.gui.GuiWDLSaveProgress;
+
+/**
+ * Replays a session recorded by {@link SessionRecorder} as fast as possible,
+ * without a Minecraft instance, server or network connection, and then saves
+ * the world the way stopping the download would.
+ * <br/>
+ * Chunk loads and unloads go through {@link WorldClient#doPreChunk} (and so
+ * through {@link WDLHooks}), as do ticks.  The hooks for packets handled by
+ * the net handler, and for entity removal, need the game (or a player), so
+ * those events are passed to {@link WDLEvents} directly.
+ * <br/>
+ * The recording is read into memory before the replay starts, so the
+ * measured time is WDL's work plus building chunks from their NBT (which
+ * stands in for the client decoding chunk packets), not reading the file.
+ * <br/>
+ * Usage: <code>SessionReplay &lt;recording&gt;</code>.  Besides the
+ * {@link BenchmarkRunner} settings, <code>wdl.replay.output</code> can name
+ * a folder to save the replayed world in (it is otherwise deleted), so that
+ * the worlds saved by two builds can be compared.
+ */
+public class SessionReplay {
+	/**
+	 * A recorded event.  Only the fields used by its type are set.
+	 */
+	private static class RecordedEvent {
+		public final byte type;
+		public int x;
+		public int z;
+		public double playerX;
+		public double playerZ;
+		public long pos;
+		public int blockID;
+		public int data1;
+		public int data2;
+		public String channel;
+		public byte[] payload;
+		/**
+		 * A chunk's level tag (without its entities), an entity or a map.
+		 */
+		public NBTTagCompound tag;
+		/**
+		 * A chunk's entities.
+		 */
+		public NBTTagList entities;
+
+		public RecordedEvent(byte type) {
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Reference to the private <code>AnvilChunkLoader.readChunkFromNBT</code>
+	 * method.
+	 */
+	private static Method readChunkFromNBT;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: SessionReplay <recording>");
+			System.exit(1);
+		}
+		final File recording = new File(args[0]);
+
+		SyntheticWorld.bootstrap();
+		findMethods();
+		// Chat messages need the game; nothing should be printed anyway.
+		WDLMessages.enableAllMessages = false;
+
+		final List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+		final int dimension = read(recording, events);
+
+		int ticks = 0;
+		int chunkLoads = 0;
+		for (RecordedEvent event : events) {
+			if (event.type == SessionRecorder.RECORD_TICK) {
+				ticks++;
+			} else if (event.type == SessionRecorder.RECORD_CHUNK_LOAD) {
+				chunkLoads++;
+			}
+		}
+		final int chunks = chunkLoads;
+		System.out.println("Read " + events.size() + " events from "
+				+ recording + " (" + ticks + " ticks, " + chunks
+				+ " chunks loaded)");
+		String parameters = ticks + " ticks " + chunks + " chunks";
+
+		String outputName = System.getProperty("wdl.replay.output");
+		final File savesFolder = (outputName != null ? new File(outputName)
+				: createTempFolder());
+
+		BenchmarkRunner runner = new BenchmarkRunner();
+		runner.printHeader();
+
+		try {
+			runner.run(new Benchmark("replay (per chunk)") {
+				private WorldClient world;
+
+				@Override
+				public void setUpIteration() throws IOException {
+					File worldFolder = new File(savesFolder, "Replay");
+					FileUtils.deleteDirectory(worldFolder);
+
+					world = SyntheticWorld.createWorld(dimension);
+					startDownload(world, savesFolder, "Replay");
+				}
+
+				@Override
+				public void tearDownIteration() throws IOException {
+					WDL.downloading = false;
+					AnvilRegionFile.closeAll();
+				}
+
+				@Override
+				public int getOperationsPerRun() {
+					return Math.max(1, chunks);
+				}
+
+				@Override
+				public long run() throws Exception {
+					for (RecordedEvent event : events) {
+						replay(world, event);
+					}
+					return stopDownload();
+				}
+			}, parameters);
+
+			runner.finish();
+
+			SaveMetrics metrics = SaveMetrics.getLast();
+			if (metrics != null) {
+				System.out.println("Last save:");
+				for (String line : metrics.getSummary()) {
+					System.out.println("  " + line);
+				}
+			}
+		} finally {
+			AnvilRegionFile.closeAll();
+			if (outputName == null) {
+				FileUtils.deleteDirectory(savesFolder);
+			} else {
+				System.out.println("Replayed world saved in " + savesFolder);
+			}
+		}
+	}
+
+	/**
+	 * Sets up WDL the same way that {@link WDL#start()} does, saving into
+	 * the given folder.
+	 */
+	private static void startDownload(WorldClient world, File savesFolder,
+			String folderName) {
+		WDL.worldClient = world;
+		WDL.saveHandler = new AnvilSaveHandler(savesFolder, folderName, false);
+		WDL.chunkLoader = WDL.saveHandler.getChunkLoader(world.provider);
+		File chunkSaveLocation = ReflectionUtils.stealAndGetField(
+				WDL.chunkLoader, File.class);
+		WDL.chunkWriter = new AnvilChunkWriter(chunkSaveLocation);
+		WDL.tileEntityImportCache = new TileEntityImportCache(
+				chunkSaveLocation);
+		WDL.newTileEntities = new TileEntityChunkMap();
+		WDL.newEntities = new EntityChunkMap();
+		WDL.newMapDatas = new HashMap<Integer, MapData>();
+		ChunkFlusher.reset();
+		ChunkFingerprints.reset();
+		UnloadSaveQueue.reset();
+
+		WDL.saving = false;
+		WDL.downloading = true;
+	}
+
+	/**
+	 * Saves the chunks that are still loaded and the maps, and waits for
+	 * everything to be written, the same way that stopping the download
+	 * would.
+	 *
+	 * @return The number of chunks still loaded.
+	 */
+	private static long stopDownload() {
+		int loadedChunks = LoadedChunkIndex.forWorld(WDL.worldClient)
+				.getChunks().length;
+
+		WDL.downloading = false;
+		WDL.saving = true;
+
+		GuiWDLSaveProgress progressScreen = new GuiWDLSaveProgress(
+				"Replaying", 2);
+		SaveMetrics metrics = SaveMetrics.begin("Replay");
+		try {
+			metrics.startPhase(SaveMetrics.Phase.CHUNKS);
+			WDL.saveChunks(progressScreen);
+			metrics.startPhase(SaveMetrics.Phase.MAPS);
+			WDL.saveMapData(progressScreen);
+			metrics.startPhase(SaveMetrics.Phase.IO_WAIT);
+			WDL.saveHandler.flush();
+		} finally {
+			metrics.finish();
+		}
+
+		WDL.saving = false;
+		return loadedChunks;
+	}
+
+	/**
+	 * Replays a single event.
+	 */
+	private static void replay(WorldClient world, RecordedEvent event)
+			throws Exception {
+		switch (event.type) {
+		case SessionRecorder.RECORD_TICK:
+			WDLHooks.onWorldClientTick(world);
+			break;
+		case SessionRecorder.RECORD_CHUNK_LOAD:
+			world.doPreChunk(event.x, event.z, true);
+			break;
+		case SessionRecorder.RECORD_CHUNK_DATA:
+			setChunk(world, event);
+			break;
+		case SessionRecorder.RECORD_CHUNK_UNLOAD:
+			setChunk(world, event);
+			world.doPreChunk(event.x, event.z, false);
+			break;
+		case SessionRecorder.RECORD_REMOVE_ENTITY:
+			Entity removed = EntityUtils.createEntityFromNBT(event.tag, world);
+			WDLEvents.onRemoveEntityFromWorld(removed, event.playerX,
+					event.playerZ);
+			break;
+		case SessionRecorder.RECORD_MAP:
+			MapData mapData = new MapData("map_" + event.x);
+			mapData.readFromNBT(event.tag);
+			WDLEvents.onMapDataLoaded(event.x, mapData);
+			break;
+		case SessionRecorder.RECORD_BLOCK_ACTION:
+			WDLEvents.onBlockEvent(BlockPos.fromLong(event.pos),
+					Block.getBlockById(event.blockID), event.data1,
+					event.data2);
+			break;
+		case SessionRecorder.RECORD_CUSTOM_PAYLOAD:
+			WDLEvents.onPluginChannelPacket(event.channel, event.payload);
+			break;
+		}
+	}
+
+	/**
+	 * Replaces the loaded chunk with one built from the recorded NBT, the
+	 * way that the client would replace its contents when the server sends
+	 * the chunk.
+	 */
+	private static void setChunk(WorldClient world, RecordedEvent event)
+			throws Exception {
+		Chunk chunk = (Chunk) readChunkFromNBT.invoke(WDL.chunkLoader, world,
+				event.tag);
+		for (int i = 0; i < event.entities.tagCount(); i++) {
+			Entity entity = EntityUtils.createEntityFromNBT(
+					event.entities.getCompoundTagAt(i), world);
+			if (entity != null) {
+				chunk.addEntity(entity);
+			}
+		}
+
+		ChunkProviderClient provider = (ChunkProviderClient) world
+				.getChunkProvider();
+		LongHashMap chunkMapping = ReflectionUtils.stealAndGetField(provider,
+				LongHashMap.class);
+		List<Chunk> chunkListing = ReflectionUtils.stealAndGetField(provider,
+				List.class);
+
+		long key = ChunkCoordIntPair.chunkXZ2Int(event.x, event.z);
+		Chunk oldChunk = (Chunk) chunkMapping.getValueByKey(key);
+		if (oldChunk != null) {
+			chunkListing.remove(oldChunk);
+		}
+		chunkMapping.add(key, chunk);
+		chunkListing.add(chunk);
+		chunk.setChunkLoaded(true);
+	}
+
+	/**
+	 * Reads a recording.
+	 *
+	 * @param events The list to add the events to.
+	 * @return The dimension that the session was recorded in.
+	 */
+	private static int read(File file, List<RecordedEvent> events)
+			throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file), 65536)));
+		try {
+			if (!SessionRecorder.MAGIC.equals(input.readUTF())) {
+				throw new IOException(file + " isn't a recorded session");
+			}
+			int version = input.readInt();
+			if (version != SessionRecorder.VERSION) {
+				throw new IOException(file + " is version " + version
+						+ "; only version " + SessionRecorder.VERSION
+						+ " can be replayed");
+			}
+			input.readUTF(); // World name
+			int dimension = input.readInt();
+
+			try {
+				while (true) {
+					RecordedEvent event = readEvent(input);
+					if (event.type == SessionRecorder.RECORD_END) {
+						break;
+					}
+					events.add(event);
+				}
+			} catch (EOFException e) {
+				// The game crashed or was closed while recording.
+				System.err.println("Recording ended early; replaying the "
+						+ events.size() + " events before that.");
+			}
+
+			return dimension;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static RecordedEvent readEvent(DataInputStream input)
+			throws IOException {
+		RecordedEvent event = new RecordedEvent(input.readByte());
+
+		switch (event.type) {
+		case SessionRecorder.RECORD_TICK:
+		case SessionRecorder.RECORD_END:
+			break;
+		case SessionRecorder.RECORD_CHUNK_LOAD:
+			event.x = input.readInt();
+			event.z = input.readInt();
+			break;
+		case SessionRecorder.RECORD_CHUNK_DATA:
+		case SessionRecorder.RECORD_CHUNK_UNLOAD:
+			event.x = input.readInt();
+			event.z = input.readInt();
+			event.tag = CompressedStreamTools.read(input);
+			// Entities are created separately, so that their server
+			// positions can be set.
+			event.entities = event.tag.getTagList("Entities", 10);
+			event.tag.removeTag("Entities");
+			break;
+		case SessionRecorder.RECORD_REMOVE_ENTITY:
+			event.playerX = input.readDouble();
+			event.playerZ = input.readDouble();
+			event.tag = CompressedStreamTools.read(input);
+			break;
+		case SessionRecorder.RECORD_MAP:
+			// The map ID is kept in x.
+			event.x = input.readInt();
+			event.tag = CompressedStreamTools.read(input);
+			break;
+		case SessionRecorder.RECORD_BLOCK_ACTION:
+			event.pos = input.readLong();
+			event.blockID = input.readInt();
+			event.data1 = input.readInt();
+			event.data2 = input.readInt();
+			break;
+		case SessionRecorder.RECORD_CUSTOM_PAYLOAD:
+			event.channel = input.readUTF();
+			event.payload = new byte[input.readInt()];
+			input.readFully(event.payload);
+			break;
+		default:
+			throw new IOException("Unknown record type " + event.type);
+		}
+
+		return event;
+	}
+
+	/**
+	 * Finds the method used to build chunks from NBT.
+	 */
+	private static void findMethods() {
+		for (Method m : AnvilChunkLoader.class.getDeclaredMethods()) {
+			Class<?>[] params = m.getParameterTypes();
+			if (params.length == 2 && params[0].equals(World.class)
+					&& params[1].equals(NBTTagCompound.class)
+					&& m.getReturnType().equals(Chunk.class)) {
+				m.setAccessible(true);
+				readChunkFromNBT = m;
+				return;
+			}
+		}
+
+		throw new RuntimeException("Couldn't find "
+				+ "AnvilChunkLoader.readChunkFromNBT!");
+	}
+
+	private static File createTempFolder() throws IOException {
+		File folder = File.createTempFile("wdl-replay", "");
+		if (!folder.delete() || !folder.mkdir()) {
+			throw new IOException("Couldn't create temporary folder "
+					+ folder);
+		}
+		return folder;
+	}
+}
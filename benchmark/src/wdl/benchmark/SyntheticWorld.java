@@ -0,0 +1,157 @@
+package wdl.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.minecraft.client.multiplayer.ChunkProviderClient;
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.item.EntityArmorStand;
+import net.minecraft.entity.item.EntityItem;
+import net.minecraft.entity.monster.EntityZombie;
+import net.minecraft.entity.passive.EntityPig;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.init.Items;
+import net.minecraft.item.ItemStack;
+import net.minecraft.profiler.Profiler;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.tileentity.TileEntityChest;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.EnumDifficulty;
+import net.minecraft.world.WorldSettings;
+import net.minecraft.world.WorldType;
+import net.minecraft.world.chunk.Chunk;
+
+/**
+ * Builds a client world with chunks full of entities and tile entities,
+ * without a Minecraft instance, a server or a network connection.
+ * <br/>
+ * The world is a real {@link WorldClient} (WDL expects one), created with a
+ * null net handler.  Chunks are loaded straight through its
+ * {@link ChunkProviderClient}, rather than {@link WorldClient#doPreChunk},
+ * so that the WDL hooks (which need the game) aren't called.
+ */
+public class SyntheticWorld {
+	private static boolean bootstrapped = false;
+
+	/**
+	 * Registers the blocks, items and entities.  Must be called before
+	 * anything else.
+	 */
+	public static synchronized void bootstrap() {
+		if (!bootstrapped) {
+			Bootstrap.register();
+			bootstrapped = true;
+		}
+	}
+
+	/**
+	 * Creates an empty overworld.
+	 */
+	public static WorldClient createWorld() {
+		return createWorld(0);
+	}
+
+	/**
+	 * Creates an empty world in the given dimension.
+	 */
+	public static WorldClient createWorld(int dimension) {
+		bootstrap();
+
+		WorldSettings settings = new WorldSettings(0L,
+				WorldSettings.GameType.SURVIVAL, false, false, WorldType.FLAT);
+		return new WorldClient(null, settings, dimension,
+				EnumDifficulty.NORMAL, new Profiler());
+	}
+
+	/**
+	 * Loads a chunk and fills it.
+	 *
+	 * @param world The world to load the chunk in.
+	 * @param chunkX The chunk's X coordinate.
+	 * @param chunkZ The chunk's Z coordinate.
+	 * @param entities Number of entities to add.  They cycle between pigs,
+	 *            zombies, armor stands and items.
+	 * @param tileEntities Number of chests to add (at most 256), each with
+	 *            its inventory full.
+	 */
+	public static Chunk createChunk(WorldClient world, int chunkX, int chunkZ,
+			int entities, int tileEntities) {
+		ChunkProviderClient provider = (ChunkProviderClient) world
+				.getChunkProvider();
+		Chunk chunk = provider.loadChunk(chunkX, chunkZ);
+
+		int baseX = chunkX << 4;
+		int baseZ = chunkZ << 4;
+
+		// A floor, so that the chunk has some block data to save.
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				world.setBlockState(new BlockPos(baseX + x, 1, baseZ + z),
+						Blocks.stone.getDefaultState(), 2);
+			}
+		}
+
+		for (int i = 0; i < Math.min(256, tileEntities); i++) {
+			BlockPos pos = new BlockPos(baseX + (i & 15), 2, baseZ + (i >> 4));
+			world.setBlockState(pos, Blocks.chest.getDefaultState(), 2);
+
+			TileEntity te = world.getTileEntity(pos);
+			if (te instanceof TileEntityChest) {
+				TileEntityChest chest = (TileEntityChest) te;
+				for (int slot = 0; slot < chest.getSizeInventory(); slot++) {
+					chest.setInventorySlotContents(slot, new ItemStack(
+							Items.diamond, 64));
+				}
+			}
+		}
+
+		for (int i = 0; i < entities; i++) {
+			double x = baseX + 0.5 + (i % 16);
+			double y = 3;
+			double z = baseZ + 0.5 + ((i / 16) % 16);
+
+			Entity entity = createEntity(world, i, x, y, z);
+			entity.setPosition(x, y, z);
+			// WDL moves entities to their server position when saving.
+			entity.serverPosX = MathHelper.floor_double(x * 32);
+			entity.serverPosY = MathHelper.floor_double(y * 32);
+			entity.serverPosZ = MathHelper.floor_double(z * 32);
+			chunk.addEntity(entity);
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * Loads and fills a square of chunks.
+	 *
+	 * @param size The width of the square, in chunks.
+	 */
+	public static List<Chunk> createChunks(WorldClient world, int size,
+			int entitiesPerChunk, int tileEntitiesPerChunk) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int x = 0; x < size; x++) {
+			for (int z = 0; z < size; z++) {
+				chunks.add(createChunk(world, x, z, entitiesPerChunk,
+						tileEntitiesPerChunk));
+			}
+		}
+		return chunks;
+	}
+
+	private static Entity createEntity(WorldClient world, int index,
+			double x, double y, double z) {
+		switch (index % 4) {
+		case 0: return new EntityPig(world);
+		case 1: return new EntityZombie(world);
+		case 2: return new EntityArmorStand(world);
+		default: return new EntityItem(world, x, y, z, new ItemStack(
+				Items.apple));
+		}
+	}
+
+	private SyntheticWorld() { }
+}
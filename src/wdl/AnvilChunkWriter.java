@@ -0,0 +1,202 @@
+package wdl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.storage.IThreadedFileIO;
+import net.minecraft.world.storage.ThreadedFileIOBase;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes single chunks into a world's region files using
+ * {@link AnvilRegionFile}, in the background on
+ * {@link ThreadedFileIOBase}'s thread (like
+ * {@link net.minecraft.world.chunk.storage.AnvilChunkLoader} does), so that
+ * {@link ThreadedFileIOBase#waitForFinish()} still waits for them.
+ * <br/>
+ * Chunks are grouped by region, and each time the IO thread gets to this
+ * writer, all of the pending chunks of one region are compressed and written
+ * as a single batch.  A chunk that is added again before it was written is
+ * only written once.
+ * <br/>
+ * Used for chunks that aren't saved through a {@link ChunkSavePipeline},
+ * such as ones that are unloaded or flushed during the download.
+ */
+public class AnvilChunkWriter implements IThreadedFileIO {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * The folder containing the "region" folder.
+	 */
+	private final File chunkSaveLocation;
+	/**
+	 * Chunks waiting to be written, by region and then by chunk.
+	 */
+	private final Map<Long, Map<Long, PendingChunk>> pending =
+			new LinkedHashMap<Long, Map<Long, PendingChunk>>();
+
+	/**
+	 * @param chunkSaveLocation The folder containing the "region" folder.
+	 */
+	public AnvilChunkWriter(File chunkSaveLocation) {
+		this.chunkSaveLocation = chunkSaveLocation;
+	}
+
+	/**
+	 * Queues chunk NBT (the root tag containing "Level") to be written.
+	 *
+	 * @param fingerprint The chunk's {@link ChunkFingerprints fingerprint},
+	 *            recorded once it has been written.
+	 */
+	public void addChunk(int chunkX, int chunkZ, NBTTagCompound rootTag,
+			long fingerprint) {
+		long regionKey = ((long) (chunkX >> 5) << 32)
+				| ((chunkZ >> 5) & 0xFFFFFFFFL);
+		long chunkKey = ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+
+		synchronized (this) {
+			Map<Long, PendingChunk> region = pending.get(regionKey);
+			if (region == null) {
+				region = new LinkedHashMap<Long, PendingChunk>();
+				pending.put(regionKey, region);
+			}
+			PendingChunk replaced = region.put(chunkKey, new PendingChunk(
+					chunkX, chunkZ, rootTag, fingerprint,
+					SaveMetrics.getCurrent()));
+			if (replaced != null) {
+				ChunkFingerprints.onNotWritten(chunkX, chunkZ);
+			}
+		}
+		// Queued once per chunk, like AnvilChunkLoader does; the extra
+		// entries find nothing left to write and are removed.  Only queueing
+		// when not already queued would race with the IO thread removing
+		// this writer after it ran out of work.
+		ThreadedFileIOBase.func_178779_a().queueIO(this);
+	}
+
+	/**
+	 * Writes the pending chunks of one region.
+	 *
+	 * @return Whether there is anything left to write.
+	 */
+	@Override
+	public boolean writeNextIO() {
+		List<PendingChunk> chunks;
+		synchronized (this) {
+			Iterator<Map<Long, PendingChunk>> itr = pending.values()
+					.iterator();
+			if (!itr.hasNext()) {
+				return false;
+			}
+			chunks = new ArrayList<PendingChunk>(itr.next().values());
+			itr.remove();
+		}
+
+		List<PendingChunk> compressed = new ArrayList<PendingChunk>();
+		List<AnvilRegionFile.ChunkPayload> payloads =
+				new ArrayList<AnvilRegionFile.ChunkPayload>();
+		for (PendingChunk chunk : chunks) {
+			try {
+				byte[] payload = ChunkSavePipeline.compress(chunk.rootTag);
+				payloads.add(new AnvilRegionFile.ChunkPayload(chunk.x,
+						chunk.z, payload));
+				compressed.add(chunk);
+				chunk.payloadLength = payload.length;
+			} catch (Exception e) {
+				ChunkFingerprints.onNotWritten(chunk.x, chunk.z);
+				ChunkFlusher.markDirty(chunk.x, chunk.z);
+				chunk.onDone(false);
+				WDL.chatError("Chunk at chunk position " + chunk.x + ","
+						+ chunk.z + " can't be saved!");
+				logger.warn("Failed to compress chunk at " + chunk.x + ", "
+						+ chunk.z, e);
+			}
+		}
+
+		try {
+			AnvilRegionFile.writeChunks(chunkSaveLocation, payloads);
+			for (PendingChunk chunk : compressed) {
+				ChunkFingerprints.onWritten(chunk.x, chunk.z,
+						chunk.fingerprint);
+				chunk.onDone(true);
+			}
+		} catch (Exception e) {
+			StringBuilder positions = new StringBuilder();
+			for (PendingChunk chunk : compressed) {
+				ChunkFingerprints.onNotWritten(chunk.x, chunk.z);
+				ChunkFlusher.markDirty(chunk.x, chunk.z);
+				chunk.onDone(false);
+				WDL.chatError("Chunk at chunk position " + chunk.x + ","
+						+ chunk.z + " can't be saved!");
+				positions.append(' ').append(chunk.x).append(',')
+						.append(chunk.z);
+			}
+			logger.warn("Failed to write " + payloads.size() + " chunks:"
+					+ positions, e);
+		}
+
+		synchronized (this) {
+			return !pending.isEmpty();
+		}
+	}
+
+	/**
+	 * Gets the folder containing the "region" folder.
+	 */
+	public File getChunkSaveLocation() {
+		return chunkSaveLocation;
+	}
+
+	@Override
+	public String toString() {
+		return "AnvilChunkWriter [chunkSaveLocation=" + chunkSaveLocation
+				+ "]";
+	}
+
+	/**
+	 * A chunk that hasn't been written yet.
+	 */
+	private static class PendingChunk {
+		public final int x;
+		public final int z;
+		public final NBTTagCompound rootTag;
+		public final long fingerprint;
+		/**
+		 * The save that the chunk belongs to, or null.
+		 */
+		public final SaveMetrics metrics;
+		public final long submitTime = System.nanoTime();
+		/**
+		 * Size of the compressed chunk, once it has been compressed.
+		 */
+		public int payloadLength;
+
+		public PendingChunk(int x, int z, NBTTagCompound rootTag,
+				long fingerprint, SaveMetrics metrics) {
+			this.x = x;
+			this.z = z;
+			this.rootTag = rootTag;
+			this.fingerprint = fingerprint;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Records how long the chunk took and, if it was written, its size.
+		 */
+		public void onDone(boolean written) {
+			if (metrics != null) {
+				metrics.onChunkWritten(System.nanoTime() - submitTime);
+				if (written) {
+					metrics.addBytesWritten(payloadLength);
+				}
+			}
+		}
+	}
+}
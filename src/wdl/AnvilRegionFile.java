@@ -0,0 +1,591 @@
+package wdl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A region file in the Anvil format, read and written with a
+ * {@link FileChannel} instead of vanilla's
+ * {@link net.minecraft.world.chunk.storage.RegionFile}.
+ * <br/>
+ * The 8 KiB header (the chunk offsets followed by their timestamps) is
+ * memory-mapped, so updating it doesn't need any seeking or separate writes.
+ * Chunks are written in batches: the sectors for every chunk in the batch are
+ * allocated at once, and chunks that end up next to each other are written
+ * with a single gathering write.
+ * <br/>
+ * The files are laid out exactly like vanilla's, so the game can load them:
+ * chunks start on 4 KiB sectors, are prefixed by their length and
+ * compression type, and use fewer than 256 sectors.  Unlike vanilla,
+ * chunks are never rewritten in place: each batch goes into the first free
+ * spaces that are large enough, and the old sectors are only freed once the
+ * header points at the new ones, so a failed write leaves the previous
+ * version of the chunks intact.
+ * <br/>
+ * Open region files are cached by file, like
+ * {@link net.minecraft.world.chunk.storage.RegionFileCache}, with the same
+ * limit of {@link #MAX_OPEN_FILES}; past that, the least recently used one
+ * is closed.  Only looking a file up (and opening it) is globally
+ * synchronized; each region file has its own lock, and files are closed
+ * without holding the global one.
+ */
+public class AnvilRegionFile {
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final int SECTOR_SIZE = 4096;
+	/**
+	 * Size of the header: 1024 offsets and 1024 timestamps.
+	 */
+	private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+	private static final int HEADER_SECTORS = HEADER_SIZE / SECTOR_SIZE;
+	/**
+	 * The sector count of a chunk is stored in a single byte.
+	 */
+	private static final int MAX_SECTORS = 255;
+	/**
+	 * Size of the length and compression type before each chunk's payload.
+	 */
+	private static final int CHUNK_HEADER_SIZE = 5;
+
+	private static final byte COMPRESSION_GZIP = 1;
+	private static final byte COMPRESSION_ZLIB = 2;
+
+	/**
+	 * Zeros used to pad the last sector of each chunk.  Only ever read.
+	 */
+	private static final ByteBuffer PADDING = ByteBuffer.allocateDirect(
+			SECTOR_SIZE);
+
+	/**
+	 * Maximum number of region files open at once.
+	 */
+	private static final int MAX_OPEN_FILES = 256;
+	/**
+	 * All open region files, by file, least recently used first.  Also used
+	 * as the lock for {@link #closingFiles}.
+	 */
+	private static final Map<File, AnvilRegionFile> openFiles =
+			new LinkedHashMap<File, AnvilRegionFile>(16, 0.75f, true);
+	/**
+	 * Region files that were removed from {@link #openFiles} but might not
+	 * be closed yet, by file.  They are closed without holding the lock (as
+	 * closing waits for any batch being written), and a file in here isn't
+	 * opened again until it is closed, so that a file is never open twice.
+	 */
+	private static final Map<File, AnvilRegionFile> closingFiles =
+			new HashMap<File, AnvilRegionFile>();
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	/**
+	 * Which sectors are in use, including the header's.
+	 */
+	private final BitSet usedSectors = new BitSet();
+	/**
+	 * Number of sectors in the file.
+	 */
+	private int sectorCount;
+	private boolean closed = false;
+
+	/**
+	 * A compressed chunk to write.
+	 */
+	public static class ChunkPayload {
+		public final int x;
+		public final int z;
+		/**
+		 * The chunk's NBT, compressed with zlib (as done by
+		 * {@link ChunkSavePipeline#compress}).
+		 */
+		public final byte[] data;
+
+		public ChunkPayload(int x, int z, byte[] data) {
+			this.x = x;
+			this.z = z;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Writes the given chunks, which must all be in the same region, in the
+	 * region folder.  If a chunk is in the list more than once, only its last
+	 * payload is kept.
+	 *
+	 * @param chunkSaveLocation The folder containing the "region" folder.
+	 */
+	public static void writeChunks(File chunkSaveLocation,
+			List<ChunkPayload> chunks) throws IOException {
+		if (chunks.isEmpty()) {
+			return;
+		}
+		ChunkPayload first = chunks.get(0);
+
+		while (true) {
+			AnvilRegionFile region = get(chunkSaveLocation, first.x, first.z);
+			synchronized (region) {
+				// Closed by closeAll while this thread was waiting for it;
+				// open it again.
+				if (!region.closed) {
+					region.write(chunks);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a stream to read the given chunk's NBT, or <code>null</code> if the
+	 * chunk hasn't been saved.
+	 *
+	 * @param chunkSaveLocation The folder containing the "region" folder.
+	 */
+	public static DataInputStream getChunkInputStream(File chunkSaveLocation,
+			int chunkX, int chunkZ) throws IOException {
+		while (true) {
+			AnvilRegionFile region = get(chunkSaveLocation, chunkX, chunkZ);
+			synchronized (region) {
+				if (!region.closed) {
+					return region.read(chunkX, chunkZ);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all open region files, making sure that their headers are
+	 * written.  They are opened again as needed.
+	 */
+	public static void closeAll() throws IOException {
+		List<AnvilRegionFile> regions;
+		synchronized (openFiles) {
+			// Including ones that other threads are still closing, so that
+			// they are all written once this returns.
+			regions = new ArrayList<AnvilRegionFile>(closingFiles.values());
+			for (AnvilRegionFile region : openFiles.values()) {
+				closingFiles.put(region.file, region);
+				regions.add(region);
+			}
+			openFiles.clear();
+		}
+
+		IOException exception = null;
+		for (AnvilRegionFile region : regions) {
+			try {
+				closeRemoved(region);
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Gets (or opens) the region file containing the given chunk.
+	 */
+	private static AnvilRegionFile get(File chunkSaveLocation, int chunkX,
+			int chunkZ) throws IOException {
+		File regionFolder = new File(chunkSaveLocation, "region");
+		File file = new File(regionFolder, "r." + (chunkX >> 5) + "."
+				+ (chunkZ >> 5) + ".mca");
+
+		while (true) {
+			AnvilRegionFile region;
+			AnvilRegionFile closing = null;
+			AnvilRegionFile eldest = null;
+			synchronized (openFiles) {
+				region = openFiles.get(file);
+				if (region == null) {
+					closing = closingFiles.get(file);
+				}
+				if (region == null && closing == null) {
+					regionFolder.mkdirs();
+					region = new AnvilRegionFile(file);
+
+					if (openFiles.size() >= MAX_OPEN_FILES) {
+						Iterator<AnvilRegionFile> itr = openFiles.values()
+								.iterator();
+						eldest = itr.next();
+						itr.remove();
+						closingFiles.put(eldest.file, eldest);
+					}
+					openFiles.put(file, region);
+				}
+			}
+
+			if (closing != null) {
+				// Still being closed by another thread; make sure that it's
+				// closed (waiting for that thread if needed), then open it.
+				try {
+					closeRemoved(closing);
+				} catch (IOException e) {
+					logger.warn("Failed to close " + closing, e);
+				}
+				continue;
+			}
+			if (eldest != null) {
+				try {
+					closeRemoved(eldest);
+				} catch (IOException e) {
+					logger.warn("Failed to close " + eldest, e);
+				}
+			}
+			return region;
+		}
+	}
+
+	/**
+	 * Closes a region file that was moved to {@link #closingFiles}, without
+	 * holding the global lock, and then lets its file be opened again.
+	 * Several threads may do this for the same file; only the first one
+	 * actually closes it, and the rest wait for it.
+	 */
+	private static void closeRemoved(AnvilRegionFile region)
+			throws IOException {
+		try {
+			region.close();
+		} finally {
+			synchronized (openFiles) {
+				if (closingFiles.get(region.file) == region) {
+					closingFiles.remove(region.file);
+				}
+			}
+		}
+	}
+
+	private AnvilRegionFile(File file) throws IOException {
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+
+		try {
+			long length = channel.size();
+			if (length < HEADER_SIZE) {
+				writeFully(ByteBuffer.allocate((int) (HEADER_SIZE - length)),
+						length);
+				length = HEADER_SIZE;
+			}
+			if (length % SECTOR_SIZE != 0) {
+				// Vanilla pads broken files the same way.
+				int padding = (int) (SECTOR_SIZE - length % SECTOR_SIZE);
+				writeFully(ByteBuffer.allocate(padding), length);
+				length += padding;
+			}
+			this.sectorCount = (int) (length / SECTOR_SIZE);
+
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		usedSectors.set(0, HEADER_SECTORS);
+		for (int i = 0; i < 1024; i++) {
+			int offset = getOffset(i);
+			// Like vanilla, entries pointing outside of the file are ignored
+			// (and will be overwritten).
+			if (isValid(offset)) {
+				int sector = offset >>> 8;
+				int count = offset & 0xFF;
+				usedSectors.set(sector, sector + count);
+			}
+		}
+	}
+
+	/**
+	 * Allocates sectors for all of the given chunks, writes them, and then
+	 * points the header at them.
+	 */
+	private void write(List<ChunkPayload> chunks) throws IOException {
+		// Only the last payload of each chunk matters.
+		Map<Integer, ChunkPayload> byIndex =
+				new LinkedHashMap<Integer, ChunkPayload>();
+		for (ChunkPayload chunk : chunks) {
+			Integer index = getIndex(chunk.x, chunk.z);
+			byIndex.remove(index);
+			byIndex.put(index, chunk);
+		}
+
+		List<Allocation> allocations = new ArrayList<Allocation>();
+		for (Map.Entry<Integer, ChunkPayload> e : byIndex.entrySet()) {
+			ChunkPayload chunk = e.getValue();
+			int needed = (chunk.data.length + CHUNK_HEADER_SIZE
+					+ SECTOR_SIZE - 1) / SECTOR_SIZE;
+			if (needed > MAX_SECTORS) {
+				throw new IOException("Chunk at " + chunk.x + ", " + chunk.z
+						+ " is too large to save (" + chunk.data.length
+						+ " bytes)");
+			}
+			allocations.add(new Allocation(e.getKey(), chunk, needed));
+		}
+
+		// Chunks always go into free sectors, never over their old version
+		// or sectors freed earlier in this batch, so that the header keeps
+		// pointing at intact chunks until the new ones are written.  If the
+		// batch fails, its sectors are freed again.
+		int oldSectorCount = sectorCount;
+		for (Allocation allocation : allocations) {
+			allocation.sector = allocate(allocation.sectors);
+		}
+
+		try {
+			// Write runs of neighbouring chunks with a single gathering
+			// write.
+			Collections.sort(allocations, new Comparator<Allocation>() {
+				@Override
+				public int compare(Allocation a, Allocation b) {
+					return a.sector < b.sector ? -1
+							: (a.sector == b.sector ? 0 : 1);
+				}
+			});
+			int runStart = 0;
+			for (int i = 1; i <= allocations.size(); i++) {
+				if (i == allocations.size()
+						|| allocations.get(i).sector != allocations.get(i - 1)
+								.sector + allocations.get(i - 1).sectors) {
+					writeRun(allocations.subList(runStart, i));
+					runStart = i;
+				}
+			}
+		} catch (IOException e) {
+			for (Allocation allocation : allocations) {
+				usedSectors.clear(allocation.sector, allocation.sector
+						+ allocation.sectors);
+			}
+			sectorCount = oldSectorCount;
+			throw e;
+		}
+
+		// Only now point the header at the new chunks, and free their old
+		// sectors for later batches.
+		int timestamp = (int) (System.currentTimeMillis() / 1000L);
+		for (Allocation allocation : allocations) {
+			int oldOffset = getOffset(allocation.index);
+			if (isValid(oldOffset)) {
+				int oldSector = oldOffset >>> 8;
+				usedSectors.clear(oldSector, oldSector + (oldOffset & 0xFF));
+			}
+
+			header.putInt(allocation.index * 4,
+					(allocation.sector << 8) | allocation.sectors);
+			header.putInt(SECTOR_SIZE + allocation.index * 4, timestamp);
+		}
+	}
+
+	/**
+	 * Finds the first free space of the given number of sectors, growing the
+	 * file if there isn't any, and marks it as used.
+	 *
+	 * @return The first sector.
+	 */
+	private int allocate(int sectors) {
+		int start = usedSectors.nextClearBit(HEADER_SECTORS);
+		while (start < sectorCount) {
+			int end = usedSectors.nextSetBit(start);
+			if (end == -1 || end >= start + sectors) {
+				break;
+			}
+			start = usedSectors.nextClearBit(end);
+		}
+
+		usedSectors.set(start, start + sectors);
+		// The file itself grows when the chunk is written.
+		sectorCount = Math.max(sectorCount, start + sectors);
+		return start;
+	}
+
+	/**
+	 * Writes chunks that are right after each other in the file.
+	 */
+	private void writeRun(List<Allocation> run) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[run.size() * 3];
+		for (int i = 0; i < run.size(); i++) {
+			Allocation allocation = run.get(i);
+			byte[] data = allocation.chunk.data;
+
+			ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+			chunkHeader.putInt(data.length + 1);
+			chunkHeader.put(COMPRESSION_ZLIB);
+			chunkHeader.flip();
+
+			ByteBuffer padding = PADDING.duplicate();
+			padding.limit(allocation.sectors * SECTOR_SIZE - data.length
+					- CHUNK_HEADER_SIZE);
+
+			buffers[i * 3] = chunkHeader;
+			buffers[i * 3 + 1] = ByteBuffer.wrap(data);
+			buffers[i * 3 + 2] = padding;
+		}
+
+		channel.position((long) run.get(0).sector * SECTOR_SIZE);
+		// Gathering writes may stop early (for instance if there are more
+		// buffers than the OS takes at once).  Padding buffers can be empty,
+		// so the loop only ends once every buffer has been written.
+		int first = 0;
+		while (first < buffers.length) {
+			channel.write(buffers, first, buffers.length - first);
+			while (first < buffers.length && !buffers[first].hasRemaining()) {
+				first++;
+			}
+		}
+	}
+
+	/**
+	 * Reads the given chunk's NBT.
+	 */
+	private DataInputStream read(int chunkX, int chunkZ) throws IOException {
+		int offset = getOffset(getIndex(chunkX, chunkZ));
+		if (!isValid(offset)) {
+			// Not saved yet.
+			return null;
+		}
+		int sector = offset >>> 8;
+		int count = offset & 0xFF;
+
+		ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+		readFully(chunkHeader, (long) sector * SECTOR_SIZE);
+		chunkHeader.flip();
+		int length = chunkHeader.getInt();
+		byte compression = chunkHeader.get();
+		if (length <= 0 || length > count * SECTOR_SIZE) {
+			return null;
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(length - 1);
+		readFully(data, (long) sector * SECTOR_SIZE + CHUNK_HEADER_SIZE);
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data.array());
+
+		if (compression == COMPRESSION_GZIP) {
+			return new DataInputStream(new BufferedInputStream(
+					new GZIPInputStream(bytes)));
+		} else if (compression == COMPRESSION_ZLIB) {
+			return new DataInputStream(new BufferedInputStream(
+					new InflaterInputStream(bytes)));
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the header to disk and closes the file, unmapping the header
+	 * (otherwise the file stays locked on Windows until the mapping is
+	 * garbage collected).
+	 */
+	private synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			header.force();
+		} finally {
+			channel.close();
+			unmap(header);
+		}
+	}
+
+	/**
+	 * Releases a mapping right away, if the JVM allows it.  Nothing can use
+	 * the buffer afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// Left to the garbage collector.
+			logger.debug("Couldn't unmap region file header", e);
+		}
+	}
+
+	private int getOffset(int index) {
+		return header.getInt(index * 4);
+	}
+
+	/**
+	 * Checks whether a header entry points at a chunk inside of the file.
+	 */
+	private boolean isValid(int offset) {
+		int sector = offset >>> 8;
+		int count = offset & 0xFF;
+		return offset != 0 && sector >= HEADER_SECTORS
+				&& sector + count <= sectorCount;
+	}
+
+	private static int getIndex(int chunkX, int chunkZ) {
+		return (chunkX & 31) + (chunkZ & 31) * 32;
+	}
+
+	private void writeFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of " + file);
+			}
+			position += read;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AnvilRegionFile [file=" + file + ", sectorCount="
+				+ sectorCount + ", closed=" + closed + "]";
+	}
+
+	/**
+	 * Where a chunk of a batch is written.
+	 */
+	private static class Allocation {
+		public final int index;
+		public final ChunkPayload chunk;
+		public final int sectors;
+		/**
+		 * The first sector, once allocated.
+		 */
+		public int sector;
+
+		public Allocation(int index, ChunkPayload chunk, int sectors) {
+			this.index = index;
+			this.chunk = chunk;
+			this.sectors = sectors;
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package wdl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.world.ChunkCoordIntPair;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Fingerprints of the chunks that have been written to the world, so that
+ * saving a chunk that hasn't changed since it was last written can be
+ * skipped.
+ * <br/>
+ * A fingerprint is a 64-bit hash of the chunk's NBT, as it would be
+ * written, except for the parts that change every time a chunk is saved or
+ * downloaded (see {@link #VOLATILE_TAGS} and {@link #ENTITY_VOLATILE_TAGS}).
+ * <br/>
+ * The fingerprints are kept for each dimension of a world in a file next to
+ * the world's <code>WorldDownloader.txt</code>, so that downloading an area
+ * that is already saved again only writes the chunks that changed.  The file
+ * records the world's <code>LastSaved</code> time, and is ignored if that
+ * doesn't match; it isn't loaded at all if the world was played since it
+ * was saved.  It also records the length and modification time of each
+ * region file, and the fingerprints of a region whose file was deleted or
+ * replaced since then (such as to download it again) are dropped.
+ */
+public class ChunkFingerprints {
+	/**
+	 * Tags of the "Level" compound that are left out of the fingerprint.
+	 */
+	private static final List<String> VOLATILE_TAGS = Arrays.asList(
+			"LastUpdate", "InhabitedTime");
+	/**
+	 * Tags of each entity that are left out of the fingerprint.  The client
+	 * makes up new UUIDs for most entities each time they are spawned.
+	 */
+	private static final List<String> ENTITY_VOLATILE_TAGS = Arrays.asList(
+			"UUIDMost", "UUIDLeast");
+
+	/**
+	 * Start of the fingerprint file.
+	 */
+	private static final String MAGIC = "WDLCHUNKS";
+	private static final int VERSION = 2;
+
+	/**
+	 * The fingerprint of the last version of each chunk that was written, by
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}.
+	 */
+	private static final Map<Long, Long> savedFingerprints =
+			new HashMap<Long, Long>();
+	/**
+	 * Number of versions of each chunk that were handed to a writer but not
+	 * written yet, by {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}.  A
+	 * chunk's fingerprint is only known once none are left.
+	 */
+	private static final Map<Long, Integer> writesInFlight =
+			new HashMap<Long, Integer>();
+
+	/**
+	 * Computes the fingerprint of a chunk's root tag (the one containing
+	 * "Level").  The tag is left unchanged.
+	 */
+	public static long compute(NBTTagCompound rootTag) {
+		NBTTagCompound levelTag = rootTag.getCompoundTag("Level");
+
+		// Only the tags themselves are shared with the view, not copied.
+		NBTTagCompound view = new NBTTagCompound();
+		for (Object key : levelTag.getKeySet()) {
+			String name = (String) key;
+			if (!VOLATILE_TAGS.contains(name)) {
+				view.setTag(name, levelTag.getTag(name));
+			}
+		}
+
+		NBTTagList entities = levelTag.getTagList("Entities", 10);
+		NBTTagList entitiesView = new NBTTagList();
+		for (int i = 0; i < entities.tagCount(); i++) {
+			entitiesView.appendTag(withoutVolatileTags(
+					entities.getCompoundTagAt(i)));
+		}
+		view.setTag("Entities", entitiesView);
+
+		try {
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			CompressedStreamTools.write(view, new DataOutputStream(
+					Funnels.asOutputStream(hasher)));
+			return hasher.hash().asLong();
+		} catch (IOException e) {
+			// Hashing doesn't do any IO.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Makes a shallow copy of an entity's tag without the tags that differ
+	 * each time it is downloaded, including in whatever it is riding.
+	 */
+	private static NBTTagCompound withoutVolatileTags(NBTTagCompound entity) {
+		NBTTagCompound view = new NBTTagCompound();
+		for (Object key : entity.getKeySet()) {
+			String name = (String) key;
+			if (name.equals("Riding")) {
+				view.setTag(name, withoutVolatileTags(entity
+						.getCompoundTag(name)));
+			} else if (!ENTITY_VOLATILE_TAGS.contains(name)) {
+				view.setTag(name, entity.getTag(name));
+			}
+		}
+		return view;
+	}
+
+	/**
+	 * Checks whether the given version of a chunk is the one that was last
+	 * written.
+	 */
+	public static synchronized boolean isSaved(int chunkX, int chunkZ,
+			long fingerprint) {
+		Long saved = savedFingerprints.get(ChunkCoordIntPair.chunkXZ2Int(
+				chunkX, chunkZ));
+		return saved != null && saved.longValue() == fingerprint;
+	}
+
+	/**
+	 * Should be called when a version of a chunk is handed to a writer.
+	 * Until it has been written, the chunk's fingerprint is unknown, so it
+	 * is never skipped.
+	 */
+	public static synchronized void onSubmitted(int chunkX, int chunkZ) {
+		long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+		savedFingerprints.remove(key);
+		Integer count = writesInFlight.get(key);
+		writesInFlight.put(key, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Should be called when saving a chunk failed before it was handed to a
+	 * writer, so that it isn't taken to be saved.
+	 */
+	public static synchronized void forget(int chunkX, int chunkZ) {
+		savedFingerprints.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX,
+				chunkZ));
+	}
+
+	/**
+	 * Checks whether the latest version of a chunk that was handed to a
+	 * writer is on disk (or was skipped as being the same as the one on
+	 * disk).
+	 */
+	public static synchronized boolean isWritten(int chunkX, int chunkZ) {
+		return savedFingerprints.containsKey(ChunkCoordIntPair.chunkXZ2Int(
+				chunkX, chunkZ));
+	}
+
+	/**
+	 * Should be called by the writer once a submitted chunk is on disk.  The
+	 * fingerprint is only kept if no newer version of the chunk is still
+	 * waiting to be written.
+	 */
+	public static synchronized void onWritten(int chunkX, int chunkZ,
+			long fingerprint) {
+		long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+		if (onWriteDone(key)) {
+			savedFingerprints.put(key, fingerprint);
+		}
+	}
+
+	/**
+	 * Should be called by the writer if a submitted chunk couldn't be
+	 * written, or was dropped for a newer version before being written.  The
+	 * chunk's fingerprint stays unknown.
+	 */
+	public static synchronized void onNotWritten(int chunkX, int chunkZ) {
+		onWriteDone(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+	}
+
+	/**
+	 * @return Whether no other version of the chunk is waiting to be
+	 *         written.
+	 */
+	private static boolean onWriteDone(long key) {
+		Integer count = writesInFlight.get(key);
+		if (count == null || count <= 1) {
+			writesInFlight.remove(key);
+			return true;
+		}
+		writesInFlight.put(key, count - 1);
+		return false;
+	}
+
+	/**
+	 * Should be called when a download starts.  Forgets all fingerprints.
+	 */
+	public static synchronized void reset() {
+		savedFingerprints.clear();
+		writesInFlight.clear();
+	}
+
+	/**
+	 * Gets the number of chunks with a known fingerprint.
+	 */
+	public static synchronized int size() {
+		return savedFingerprints.size();
+	}
+
+	/**
+	 * Replaces the known fingerprints with the ones in the given file, if
+	 * it was written when the world was last saved.  Nothing is loaded if
+	 * the file doesn't exist, is from another save or can't be read, and
+	 * the fingerprints of regions whose file changed since are left out.
+	 *
+	 * @param file The file to read.
+	 * @param lastSaved The world's <code>LastSaved</code> time.
+	 * @param regionFolder The dimension's "region" folder.
+	 */
+	public static synchronized void load(File file, long lastSaved,
+			File regionFolder) {
+		savedFingerprints.clear();
+		writesInFlight.clear();
+		if (!file.exists()) {
+			return;
+		}
+
+		try {
+			DataInputStream input = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (!input.readUTF().equals(MAGIC)
+						|| input.readInt() != VERSION) {
+					WDL.chatDebug(WDLMessageTypes.SAVING, "Ignoring chunk "
+							+ "fingerprints in unknown format: " + file);
+					return;
+				}
+				long fileLastSaved = input.readLong();
+				if (fileLastSaved != lastSaved) {
+					WDL.chatDebug(WDLMessageTypes.SAVING, "Ignoring chunk "
+							+ "fingerprints from another save (%s, not %s)",
+							fileLastSaved, lastSaved);
+					return;
+				}
+
+				int count = input.readInt();
+				for (int i = 0; i < count; i++) {
+					savedFingerprints.put(input.readLong(), input.readLong());
+				}
+
+				Set<Long> changedRegions = new HashSet<Long>();
+				int regionCount = input.readInt();
+				for (int i = 0; i < regionCount; i++) {
+					int regionX = input.readInt();
+					int regionZ = input.readInt();
+					long length = input.readLong();
+					long lastModified = input.readLong();
+
+					File regionFile = getRegionFile(regionFolder, regionX,
+							regionZ);
+					if (regionFile.length() != length
+							|| regionFile.lastModified() != lastModified) {
+						changedRegions.add(ChunkCoordIntPair.chunkXZ2Int(
+								regionX, regionZ));
+					}
+				}
+				if (!changedRegions.isEmpty()) {
+					Iterator<Long> itr = savedFingerprints.keySet()
+							.iterator();
+					while (itr.hasNext()) {
+						if (changedRegions.contains(getRegionKey(itr.next()))) {
+							itr.remove();
+						}
+					}
+					WDL.chatDebug(WDLMessageTypes.SAVING, "%s region files "
+							+ "changed since the last save; their chunks "
+							+ "will be saved again", changedRegions.size());
+				}
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			savedFingerprints.clear();
+			WDL.chatError("Failed to read chunk fingerprints; all chunks "
+					+ "will be saved: " + e);
+			e.printStackTrace();
+			return;
+		}
+
+		WDL.chatDebug(WDLMessageTypes.SAVING, "Loaded %s chunk fingerprints",
+				savedFingerprints.size());
+	}
+
+	/**
+	 * Writes the known fingerprints to the given file.  Only chunks that
+	 * were confirmed as written have a known fingerprint; chunks that failed
+	 * or are still waiting to be written are left out, and so are saved
+	 * again next time.  Should only be called once everything that was
+	 * saved has actually been written (and the region files are closed), as
+	 * the region files' lengths and modification times are recorded too.
+	 *
+	 * @param file The file to write.
+	 * @param lastSaved The world's <code>LastSaved</code> time for this
+	 *            save.
+	 * @param regionFolder The dimension's "region" folder.
+	 */
+	public static synchronized void save(File file, long lastSaved,
+			File regionFolder) throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName()
+				+ "_new");
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			output.writeUTF(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(lastSaved);
+			output.writeInt(savedFingerprints.size());
+			Set<Long> regions = new HashSet<Long>();
+			for (Map.Entry<Long, Long> e : savedFingerprints.entrySet()) {
+				output.writeLong(e.getKey());
+				output.writeLong(e.getValue());
+				regions.add(getRegionKey(e.getKey()));
+			}
+
+			output.writeInt(regions.size());
+			for (long region : regions) {
+				int regionX = (int) region;
+				int regionZ = (int) (region >>> 32);
+				File regionFile = getRegionFile(regionFolder, regionX,
+						regionZ);
+				output.writeInt(regionX);
+				output.writeInt(regionZ);
+				output.writeLong(regionFile.length());
+				output.writeLong(regionFile.lastModified());
+			}
+		} finally {
+			output.close();
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Couldn't replace " + file);
+		}
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("Couldn't rename " + tempFile + " to "
+					+ file);
+		}
+	}
+
+	/**
+	 * Gets the region that a chunk is in, from and in the form of
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}.
+	 */
+	private static long getRegionKey(long chunkKey) {
+		int chunkX = (int) chunkKey;
+		int chunkZ = (int) (chunkKey >>> 32);
+		return ChunkCoordIntPair.chunkXZ2Int(chunkX >> 5, chunkZ >> 5);
+	}
+
+	private static File getRegionFile(File regionFolder, int regionX,
+			int regionZ) {
+		return new File(regionFolder, "r." + regionX + "." + regionZ
+				+ ".mca");
+	}
+
+	private ChunkFingerprints() { }
+}
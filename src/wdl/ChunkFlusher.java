@@ -0,0 +1,185 @@
+package wdl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.chunk.Chunk;
+
+/**
+ * Saves loaded chunks in the background while downloading, so that stopping
+ * the download only needs to save the chunks that changed since then.
+ * <br/>
+ * Only capturing a {@link ChunkSnapshot} of each chunk is done on the
+ * client thread (as it reads from the live chunk), for a small amount of
+ * time each tick.  Importing old tile entities, building the NBT and
+ * writing it is done by the {@link UnloadSaveQueue}'s saver thread.  If
+ * its queue is full, the remaining chunks are left for the next pass.  A
+ * chunk counts as saved once its snapshot is queued; if writing it fails
+ * later on, it is marked dirty again.
+ * <br/>
+ * Chunks that still have an older copy waiting in the
+ * {@link UnloadSaveQueue} are left for a later pass, as that copy would
+ * otherwise overwrite the newer one.
+ */
+public class ChunkFlusher {
+	/**
+	 * Maximum amount of time to spend saving chunks each tick, in
+	 * nanoseconds.
+	 */
+	private static final long TICK_BUDGET_NANOS = 2000000L;
+	/**
+	 * Number of ticks to wait after finishing a pass over the loaded chunks
+	 * before starting the next one.
+	 */
+	private static final int TICKS_BETWEEN_PASSES = 100;
+
+	/**
+	 * Keys (from {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}) of the
+	 * chunks that have been saved and not changed since then.
+	 * <br/>
+	 * A chunk that isn't in here is dirty.  Block changes are tracked by the
+	 * chunk itself (via {@link Chunk#needsSaving(boolean)}); everything else
+	 * (loading, new tile entities and remembered entities) removes the chunk
+	 * from this set.
+	 */
+	private static final Set<Long> flushedChunks =
+			Collections.synchronizedSet(new HashSet<Long>());
+
+	/**
+	 * Chunks left to check in the current pass.
+	 */
+	private static Chunk[] passQueue = new Chunk[0];
+	/**
+	 * Position in {@link #passQueue}.
+	 */
+	private static int passIndex = 0;
+	/**
+	 * Ticks left until the next pass starts.
+	 */
+	private static int ticksUntilNextPass = TICKS_BETWEEN_PASSES;
+
+	/**
+	 * Should be called when a download starts.  Marks all chunks as dirty.
+	 */
+	public static void reset() {
+		flushedChunks.clear();
+		passQueue = new Chunk[0];
+		passIndex = 0;
+		ticksUntilNextPass = TICKS_BETWEEN_PASSES;
+	}
+
+	/**
+	 * Marks the given chunk as needing to be saved again.
+	 */
+	public static void markDirty(int chunkX, int chunkZ) {
+		flushedChunks.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+	}
+
+	/**
+	 * Marks the chunk containing the given block as needing to be saved
+	 * again.
+	 */
+	public static void markDirty(BlockPos pos) {
+		markDirty(pos.getX() >> 4, pos.getZ() >> 4);
+	}
+
+	/**
+	 * Checks whether the given chunk has changed since it was last saved.
+	 *
+	 * @param all Whether this is the final save, which (like vanilla's
+	 *            save-all) also saves every chunk with entities that hasn't
+	 *            been saved this tick, as entities moving around don't mark
+	 *            the chunk as modified.  Otherwise, those chunks are only
+	 *            saved every so often, like the vanilla autosave.
+	 */
+	public static boolean needsFlush(Chunk chunk, boolean all) {
+		if (!flushedChunks.contains(ChunkCoordIntPair.chunkXZ2Int(
+				chunk.xPosition, chunk.zPosition))) {
+			return true;
+		}
+
+		return chunk.needsSaving(all);
+	}
+
+	/**
+	 * Should be called once a snapshot of a chunk has been handed off to be
+	 * saved.  If saving it fails, whatever was saving it needs to
+	 * {@linkplain #markDirty(int, int) mark it dirty} again.
+	 */
+	public static void onChunkSaved(Chunk chunk) {
+		chunk.setModified(false);
+		chunk.setLastSaveTime(WDL.worldClient.getTotalWorldTime());
+
+		flushedChunks.add(ChunkCoordIntPair.chunkXZ2Int(chunk.xPosition,
+				chunk.zPosition));
+	}
+
+	/**
+	 * Should be called each tick while downloading.  Saves dirty chunks
+	 * until the tick's time budget is used up.
+	 */
+	public static void onWorldTick() {
+		if (!WDL.downloading || WDL.saving) {
+			return;
+		}
+		if (!WDLPluginChannels.canDownloadInGeneral()) {
+			return;
+		}
+
+		if (passIndex >= passQueue.length) {
+			if (ticksUntilNextPass > 0) {
+				ticksUntilNextPass--;
+				return;
+			}
+
+			passQueue = LoadedChunkIndex.forWorld(WDL.worldClient).getChunks();
+			passIndex = 0;
+			ticksUntilNextPass = TICKS_BETWEEN_PASSES;
+		}
+
+		long start = System.nanoTime();
+
+		while (passIndex < passQueue.length) {
+			if (System.nanoTime() - start > TICK_BUDGET_NANOS) {
+				break;
+			}
+
+			Chunk chunk = passQueue[passIndex];
+			passQueue[passIndex] = null;
+			passIndex++;
+
+			if (chunk == null || !chunk.isLoaded()
+					|| !needsFlush(chunk, false)) {
+				continue;
+			}
+			if (!WDLPluginChannels.canSaveChunk(chunk)) {
+				continue;
+			}
+			if (UnloadSaveQueue.isQueued(chunk.xPosition, chunk.zPosition)) {
+				continue;
+			}
+
+			ChunkSnapshot snapshot;
+			try {
+				snapshot = ChunkSnapshot.capture(chunk);
+			} catch (Exception e) {
+				WDL.chatError("Chunk at chunk position " + chunk.xPosition
+						+ "," + chunk.zPosition + " can't be saved!");
+				e.printStackTrace();
+				continue;
+			}
+
+			if (!UnloadSaveQueue.offer(snapshot)) {
+				// The saver is behind; the chunk stays dirty, so it's
+				// saved in a later pass.
+				break;
+			}
+			onChunkSaved(chunk);
+		}
+	}
+
+	private ChunkFlusher() { }
+}
@@ -0,0 +1,363 @@
+package wdl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.chunk.storage.IChunkLoader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Saves chunks using multiple threads.
+ * <br/>
+ * The chunk's NBT is built from a {@link ChunkSnapshot} on the calling
+ * thread, and turning that NBT into compressed bytes is done on a bounded
+ * pool of workers.  The compressed payloads are then handed to a
+ * single writer per region file, which writes the ones that are ready in
+ * batches, in the order that they were submitted, using
+ * {@link AnvilRegionFile}.
+ * <br/>
+ * The bytes written are the same as the ones that
+ * {@link AnvilChunkLoader#saveChunk(World, Chunk)} would produce (the same
+ * NBT serializer and the same default deflater are used), only without
+ * going through {@link net.minecraft.world.storage.ThreadedFileIOBase}.
+ */
+public class ChunkSavePipeline {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Reference to the private {@link AnvilChunkLoader#writeChunkToNBT}
+	 * method.
+	 */
+	private static Method writeChunkToNBT;
+
+	private final File chunkSaveLocation;
+
+	/**
+	 * Workers that convert NBT into compressed bytes.  The queue is bounded,
+	 * and when it is full the submitting thread does the work itself.
+	 */
+	private final ExecutorService compressors;
+	/**
+	 * Threads that run the {@link RegionWriter}s.
+	 */
+	private final ExecutorService writers;
+	/**
+	 * All region writers, by {@link #getRegionKey(int, int)}.
+	 */
+	private final Map<Long, RegionWriter> regionWriters =
+			new HashMap<Long, RegionWriter>();
+	/**
+	 * Limits the number of chunks that have been submitted but not yet
+	 * written, so that finished payloads don't pile up in memory when the
+	 * disk is slower than the compressors.
+	 */
+	private final Semaphore inFlight;
+
+	/**
+	 * Number of chunks that have been written successfully.
+	 */
+	private final AtomicInteger chunksWritten = new AtomicInteger();
+	/**
+	 * Number of compressed bytes written (not counting sector padding).
+	 */
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Creates a new pipeline that saves into the same location as the given
+	 * chunk loader.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the chunk loader is not an {@link AnvilChunkLoader}.
+	 */
+	public ChunkSavePipeline(IChunkLoader chunkLoader) {
+		if (!(chunkLoader instanceof AnvilChunkLoader)) {
+			throw new IllegalArgumentException("Can't save chunks in "
+					+ "parallel using " + chunkLoader + " (not an anvil loader)");
+		}
+		findMethods();
+
+		this.chunkSaveLocation = ReflectionUtils.stealAndGetField(
+				chunkLoader, File.class);
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		int compressorCount = Math.max(1, processors - 1);
+		int writerCount = Math.max(1, Math.min(4, processors / 2));
+
+		this.compressors = new ThreadPoolExecutor(compressorCount,
+				compressorCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(compressorCount * 4),
+				new NamedThreadFactory("WDL Chunk Compressor"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.writers = Executors.newFixedThreadPool(writerCount,
+				new NamedThreadFactory("WDL Region Writer"));
+		this.inFlight = new Semaphore(compressorCount * 16);
+	}
+
+	/**
+	 * Finds the method needed to build chunk NBT without saving it.
+	 */
+	private static synchronized void findMethods() {
+		if (writeChunkToNBT != null) {
+			return;
+		}
+
+		for (Method m : AnvilChunkLoader.class.getDeclaredMethods()) {
+			Class<?>[] params = m.getParameterTypes();
+			if (params.length == 3 && params[0].equals(Chunk.class)
+					&& params[1].equals(World.class)
+					&& params[2].equals(NBTTagCompound.class)) {
+				m.setAccessible(true);
+				writeChunkToNBT = m;
+				break;
+			}
+		}
+
+		if (writeChunkToNBT == null) {
+			throw new RuntimeException("WorldDownloader: Couldn't find "
+					+ "AnvilChunkLoader.writeChunkToNBT!");
+		}
+	}
+
+	/**
+	 * Builds the "Level" tag that the given chunk loader would save for the
+	 * chunk, without saving it anywhere.
+	 */
+	static NBTTagCompound writeChunkToNBT(AnvilChunkLoader chunkLoader,
+			World world, Chunk chunk) throws Exception {
+		findMethods();
+
+		NBTTagCompound levelTag = new NBTTagCompound();
+		writeChunkToNBT.invoke(chunkLoader, chunk, world, levelTag);
+		return levelTag;
+	}
+
+	/**
+	 * Queues already built chunk NBT to be compressed and written.
+	 *
+	 * @param fingerprint The chunk's {@link ChunkFingerprints fingerprint},
+	 *            recorded once it has been written.
+	 */
+	public void submit(int chunkX, int chunkZ, final NBTTagCompound rootTag,
+			long fingerprint) throws InterruptedException {
+		inFlight.acquire();
+
+		Future<byte[]> payload = compressors.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return compress(rootTag);
+			}
+		});
+
+		getRegionWriter(chunkX, chunkZ).add(
+				new PendingChunk(chunkX, chunkZ, fingerprint, payload,
+						SaveMetrics.getCurrent()));
+	}
+
+	/**
+	 * Waits for all submitted chunks to be written, and then stops the
+	 * worker threads.  The pipeline cannot be used afterwards.
+	 *
+	 * @return The number of chunks that were written successfully.
+	 */
+	public int finish() throws InterruptedException {
+		compressors.shutdown();
+		compressors.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		// No more chunks can be added to the writers once submitting is
+		// done, so they'll stop once they run out of work.
+		writers.shutdown();
+		writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		return chunksWritten.get();
+	}
+
+	/**
+	 * Gets the number of compressed chunk bytes written so far.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Gets (or creates) the writer for the region containing the given chunk.
+	 */
+	private RegionWriter getRegionWriter(int chunkX, int chunkZ) {
+		Long key = getRegionKey(chunkX, chunkZ);
+		RegionWriter writer = regionWriters.get(key);
+		if (writer == null) {
+			writer = new RegionWriter();
+			regionWriters.put(key, writer);
+		}
+		return writer;
+	}
+
+	/**
+	 * Gets a key for the region containing the given chunk.
+	 */
+	private static long getRegionKey(int chunkX, int chunkZ) {
+		return ((long) (chunkX >> 5) << 32) | ((chunkZ >> 5) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Serializes and compresses chunk NBT the same way that
+	 * {@link net.minecraft.world.chunk.storage.RegionFile#getChunkDataOutputStream(int, int)}
+	 * does.
+	 */
+	static byte[] compress(NBTTagCompound rootTag) throws Exception {
+		// RegionFile.ChunkBuffer uses the same initial size.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8096);
+		DataOutputStream stream = new DataOutputStream(
+				new DeflaterOutputStream(bytes));
+		try {
+			CompressedStreamTools.write(rootTag, stream);
+		} finally {
+			stream.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A chunk whose payload may still be getting compressed.
+	 */
+	private static class PendingChunk {
+		public final int x;
+		public final int z;
+		public final long fingerprint;
+		public final Future<byte[]> payload;
+		/**
+		 * The save that the chunk belongs to, or null.
+		 */
+		public final SaveMetrics metrics;
+		public final long submitTime = System.nanoTime();
+
+		public PendingChunk(int x, int z, long fingerprint,
+				Future<byte[]> payload, SaveMetrics metrics) {
+			this.x = x;
+			this.z = z;
+			this.fingerprint = fingerprint;
+			this.payload = payload;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Records how long the chunk took, once it was written or failed to
+		 * be.
+		 */
+		public void onDone() {
+			if (metrics != null) {
+				metrics.onChunkWritten(System.nanoTime() - submitTime);
+			}
+		}
+	}
+
+	/**
+	 * Writes the chunks of a single region file in the order they were
+	 * added.  Each time, the first chunk is waited for, and then it and all
+	 * following chunks that are already compressed are written as one batch.
+	 * Only runs on one writer thread at a time.
+	 */
+	private class RegionWriter implements Runnable {
+		private final Queue<PendingChunk> queue = new LinkedList<PendingChunk>();
+		private boolean scheduled = false;
+
+		public void add(PendingChunk chunk) {
+			synchronized (this) {
+				queue.add(chunk);
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			writers.execute(this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				List<PendingChunk> batch = new ArrayList<PendingChunk>();
+				synchronized (this) {
+					PendingChunk chunk = queue.poll();
+					if (chunk == null) {
+						scheduled = false;
+						return;
+					}
+					batch.add(chunk);
+					while (queue.peek() != null
+							&& queue.peek().payload.isDone()) {
+						batch.add(queue.poll());
+					}
+				}
+
+				List<PendingChunk> compressed = new ArrayList<PendingChunk>();
+				List<AnvilRegionFile.ChunkPayload> payloads =
+						new ArrayList<AnvilRegionFile.ChunkPayload>();
+				long batchBytes = 0;
+				for (PendingChunk chunk : batch) {
+					try {
+						byte[] payload = chunk.payload.get();
+						payloads.add(new AnvilRegionFile.ChunkPayload(chunk.x,
+								chunk.z, payload));
+						compressed.add(chunk);
+						batchBytes += payload.length;
+					} catch (Exception e) {
+						ChunkFingerprints.onNotWritten(chunk.x, chunk.z);
+						ChunkFlusher.markDirty(chunk.x, chunk.z);
+						chunk.onDone();
+						WDL.chatError("Chunk at chunk position " + chunk.x + ","
+								+ chunk.z + " can't be saved!");
+						logger.warn("Failed to compress chunk at " + chunk.x
+								+ ", " + chunk.z, e);
+					}
+				}
+
+				try {
+					AnvilRegionFile.writeChunks(chunkSaveLocation, payloads);
+					for (PendingChunk chunk : compressed) {
+						ChunkFingerprints.onWritten(chunk.x, chunk.z,
+								chunk.fingerprint);
+						chunk.onDone();
+					}
+					chunksWritten.addAndGet(payloads.size());
+					bytesWritten.addAndGet(batchBytes);
+				} catch (Exception e) {
+					for (PendingChunk chunk : compressed) {
+						ChunkFingerprints.onNotWritten(chunk.x, chunk.z);
+						ChunkFlusher.markDirty(chunk.x, chunk.z);
+						chunk.onDone();
+						WDL.chatError("Chunk at chunk position " + chunk.x
+								+ "," + chunk.z + " can't be saved!");
+					}
+					logger.warn("Failed to write " + payloads.size()
+							+ " chunks", e);
+				} finally {
+					inFlight.release(batch.size());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package wdl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagDouble;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraft.world.chunk.storage.IChunkLoader;
+
+/**
+ * Everything about a chunk that gets saved, copied at one point in time.
+ * <br/>
+ * A snapshot is {@linkplain #capture(Chunk) captured} on the client thread,
+ * as that's the only thread that may read a live chunk.  Capturing copies
+ * the block arrays and writes the (filtered) entities and the tile entities
+ * to NBT; it doesn't change the chunk or its entities.
+ * <br/>
+ * After that the snapshot doesn't refer to the live chunk at all, so it can
+ * be {@linkplain #writeToNBT(IChunkLoader) serialized} on any thread, by any
+ * number of threads at once, while the game keeps running.  Old tile
+ * entities are only imported when serializing, since that may need to read
+ * the old region file.
+ */
+public class ChunkSnapshot {
+	public final int x;
+	public final int z;
+
+	/**
+	 * A chunk that isn't part of any world's chunk provider, with copies of
+	 * the block, light, biome and height arrays and no entities or tile
+	 * entities.  Only read after capturing.
+	 */
+	private final Chunk blocks;
+	/**
+	 * The world time when the snapshot was captured.
+	 */
+	private final long lastUpdate;
+	/**
+	 * The entities to save, as they go into the chunk's "Entities" list.
+	 */
+	private final NBTTagList entities;
+	/**
+	 * The chunk's tile entities, by position.
+	 */
+	private final Map<BlockPos, NBTTagCompound> tileEntities;
+
+	private ChunkSnapshot(Chunk blocks, long lastUpdate,
+			NBTTagList entities, Map<BlockPos, NBTTagCompound> tileEntities) {
+		this.x = blocks.xPosition;
+		this.z = blocks.zPosition;
+		this.blocks = blocks;
+		this.lastUpdate = lastUpdate;
+		this.entities = entities;
+		this.tileEntities = Collections.unmodifiableMap(tileEntities);
+	}
+
+	/**
+	 * Captures a snapshot of the given chunk.  Must be called on the client
+	 * thread (or whichever thread owns the chunk).
+	 * <br/>
+	 * Entities are filtered the same way as when saving: disabled entity
+	 * types are left out (or all entities if the server doesn't allow saving
+	 * them), and entities that were {@linkplain WDL#newEntities remembered}
+	 * in the chunk are added.
+	 */
+	public static ChunkSnapshot capture(Chunk chunk) {
+		Chunk blocks = copyBlocks(chunk);
+		// Everything that is saved is treated as generated.
+		blocks.setTerrainPopulated(true);
+
+		NBTTagList entities = new NBTTagList();
+		if (WDLPluginChannels.canSaveEntities()) {
+			//TODO: Handle holograms
+			for (Iterable<Entity> entityList : chunk.getEntityLists()) {
+				for (Entity e : entityList) {
+					if (e instanceof EntityPlayer) {
+						// Players are saved separately.
+						continue;
+					}
+					if (!EntityUtils.isEntityEnabled(e)) {
+						continue;
+					}
+
+					addEntity(entities, e);
+				}
+			}
+
+			for (Entity e : WDL.newEntities.getEntitiesInChunk(
+					chunk.xPosition, chunk.zPosition)) {
+				// Unkill the entity so that it doesn't despawn on
+				// world load.  Note that 'isDead' is a bad name, as
+				// it actually means "Delete this entity next tick",
+				// not "this entitiy was killed by a player".
+				// (Remembered entities are no longer in the world, so
+				// this doesn't affect the game.)
+				e.isDead = false;
+				addEntity(entities, e);
+			}
+		}
+
+		Map<BlockPos, NBTTagCompound> tileEntities =
+				new HashMap<BlockPos, NBTTagCompound>();
+		for (Object o : chunk.getTileEntityMap().values()) {
+			TileEntity te = (TileEntity) o;
+			NBTTagCompound tag = new NBTTagCompound();
+			te.writeToNBT(tag);
+			tileEntities.put(te.getPos(), tag);
+		}
+
+		return new ChunkSnapshot(blocks, chunk.getWorld().getTotalWorldTime(),
+				entities, tileEntities);
+	}
+
+	/**
+	 * Copies the chunk's block, light, biome and height data into a new
+	 * chunk, since the live chunk's arrays keep changing (and are reused once
+	 * it is unloaded).
+	 */
+	private static Chunk copyBlocks(Chunk chunk) {
+		Chunk copy = new Chunk(chunk.getWorld(), chunk.xPosition,
+				chunk.zPosition);
+
+		ExtendedBlockStorage[] storageArrays = chunk.getBlockStorageArray();
+		ExtendedBlockStorage[] copiedArrays =
+				new ExtendedBlockStorage[storageArrays.length];
+		for (int i = 0; i < storageArrays.length; i++) {
+			ExtendedBlockStorage storage = storageArrays[i];
+			if (storage == null) {
+				continue;
+			}
+
+			NibbleArray skylight = storage.getSkylightArray();
+			ExtendedBlockStorage copied = new ExtendedBlockStorage(
+					storage.getYLocation(), skylight != null);
+			copied.setData(storage.getData().clone());
+			copied.setBlocklightArray(new NibbleArray(storage
+					.getBlocklightArray().getData().clone()));
+			if (skylight != null) {
+				copied.setSkylightArray(new NibbleArray(skylight.getData()
+						.clone()));
+			}
+			copiedArrays[i] = copied;
+		}
+		copy.setStorageArrays(copiedArrays);
+
+		copy.setBiomeArray(chunk.getBiomeArray().clone());
+		copy.setHeightMap(chunk.getHeightMap().clone());
+		copy.setLightPopulated(chunk.isLightPopulated());
+		copy.setInhabitedTime(chunk.getInhabitedTime());
+
+		return copy;
+	}
+
+	/**
+	 * Writes an entity the way the chunk loader would, but at its serverside
+	 * location.
+	 */
+	private static void addEntity(NBTTagList list, Entity entity) {
+		NBTTagCompound tag = new NBTTagCompound();
+		if (!entity.writeToNBTOptional(tag)) {
+			// Ridden entities are saved with their rider.
+			return;
+		}
+
+		setServerPos(tag, entity);
+		list.appendTag(tag);
+	}
+
+	/**
+	 * Replaces the position in the entity's NBT (and in that of whatever it
+	 * is riding) with the serverside location.  Needed for certain things
+	 * that move clientside, such as boats (http://imgur.com/3QQchZL).
+	 */
+	private static void setServerPos(NBTTagCompound tag, Entity entity) {
+		NBTTagList pos = new NBTTagList();
+		pos.appendTag(new NBTTagDouble(WDL.convertServerPos(entity.serverPosX)));
+		pos.appendTag(new NBTTagDouble(WDL.convertServerPos(entity.serverPosY)));
+		pos.appendTag(new NBTTagDouble(WDL.convertServerPos(entity.serverPosZ)));
+		tag.setTag("Pos", pos);
+
+		if (entity.ridingEntity != null && tag.hasKey("Riding", 10)) {
+			setServerPos(tag.getCompoundTag("Riding"), entity.ridingEntity);
+		}
+	}
+
+	/**
+	 * Builds the NBT that the given chunk loader would save for this chunk
+	 * (the root tag, containing "Level"), importing old tile entities.  Can
+	 * be called on any thread.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the chunk loader is not an {@link AnvilChunkLoader}.
+	 */
+	public NBTTagCompound writeToNBT(IChunkLoader chunkLoader)
+			throws Exception {
+		if (!(chunkLoader instanceof AnvilChunkLoader)) {
+			throw new IllegalArgumentException("Can't save chunks using "
+					+ chunkLoader + " (not an anvil loader)");
+		}
+
+		NBTTagCompound levelTag = ChunkSavePipeline.writeChunkToNBT(
+				(AnvilChunkLoader) chunkLoader, blocks.getWorld(), blocks);
+		levelTag.setLong("LastUpdate", lastUpdate);
+		levelTag.setTag("Entities", entities.copy());
+
+		Map<BlockPos, NBTTagCompound> savedTileEntities =
+				new HashMap<BlockPos, NBTTagCompound>(tileEntities);
+		for (TileEntity te : WDL.getTileEntitiesToImport(blocks)) {
+			NBTTagCompound tag = new NBTTagCompound();
+			te.writeToNBT(tag);
+			savedTileEntities.put(te.getPos(), tag);
+		}
+
+		NBTTagList tileEntityList = new NBTTagList();
+		for (NBTTagCompound tag : savedTileEntities.values()) {
+			tileEntityList.appendTag(tag.copy());
+		}
+		levelTag.setTag("TileEntities", tileEntityList);
+
+		NBTTagCompound rootTag = new NBTTagCompound();
+		rootTag.setTag("Level", levelTag);
+		return rootTag;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkSnapshot [x=" + x + ", z=" + z + ", entities="
+				+ entities.tagCount() + ", tileEntities="
+				+ tileEntities.size() + "]";
+	}
+}
@@ -0,0 +1,274 @@
+package wdl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.world.ChunkCoordIntPair;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Entities that were remembered after being removed from the world, indexed
+ * both by their EID and by the chunk that they are in.
+ * <br/>
+ * The chunk is taken from {@link Entity#chunkCoordX} and
+ * {@link Entity#chunkCoordZ} when the entity is added, so those need to be
+ * set first.
+ * <br/>
+ * If created with a {@link SpillStore}, only a limited number of entities
+ * are kept in memory.  Past that, the entities of the chunks that were
+ * used least recently are written to the store as NBT (by its background
+ * writer, so only the serialization happens on the thread adding them), and
+ * read back the next time that their chunk is asked for.
+ * <br/>
+ * Spilled entities are recreated from their own NBT, which doesn't include
+ * what they were riding or what was riding them, so a spilled entity comes
+ * back without its riding relation (a saddled pig loses its rider, a
+ * minecart its passenger).
+ */
+public class EntityChunkMap {
+	/**
+	 * Group used for the entities in the {@link SpillStore}.
+	 */
+	private static final String SPILL_GROUP = "entities";
+	/**
+	 * Tag used to keep the entity's EID in the {@link SpillStore}.
+	 */
+	private static final String EID_TAG = "WDLEntityID";
+
+	/**
+	 * All entities in memory, by EID.  Used so that an entity that is
+	 * removed a second time replaces the old copy rather than being saved
+	 * twice.
+	 */
+	private final Map<Integer, Entity> entitiesById =
+			new HashMap<Integer, Entity>();
+	/**
+	 * All entities in memory, by
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}.
+	 */
+	private final Multimap<Long, Entity> entitiesByChunk =
+			HashMultimap.<Long, Entity>create();
+	/**
+	 * The chunks with entities in memory, least recently used first.
+	 */
+	private final Set<Long> chunkOrder = new LinkedHashSet<Long>();
+	/**
+	 * The chunk that each spilled entity was spilled from, by EID.  An
+	 * entity that is added again is removed from here, so that its older
+	 * spilled copy is ignored.
+	 */
+	private final Map<Integer, Long> spilledIds = new HashMap<Integer, Long>();
+
+	private final SpillStore spillStore;
+	private final int maxInMemory;
+	/**
+	 * Whether writing to the spill store failed, in which case everything
+	 * is kept in memory from then on.
+	 */
+	private boolean spillFailed;
+
+	/**
+	 * Creates a map that keeps everything in memory.
+	 */
+	public EntityChunkMap() {
+		this(null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a map that spills to the given store.
+	 *
+	 * @param spillStore The store to write entities to.
+	 * @param maxInMemory Number of entities to keep in memory before
+	 *            spilling.
+	 */
+	public EntityChunkMap(SpillStore spillStore, int maxInMemory) {
+		this.spillStore = spillStore;
+		this.maxInMemory = maxInMemory;
+	}
+
+	/**
+	 * Adds an entity, replacing any other entity with the same EID.
+	 */
+	public synchronized void add(Entity entity) {
+		Entity old = entitiesById.put(entity.getEntityId(), entity);
+		if (old != null) {
+			entitiesByChunk.remove(getKey(old), old);
+		}
+		spilledIds.remove(entity.getEntityId());
+
+		long key = getKey(entity);
+		entitiesByChunk.put(key, entity);
+		touch(key);
+
+		if (entitiesById.size() > maxInMemory) {
+			spill();
+		}
+	}
+
+	/**
+	 * Gets all of the entities in the given chunk, reading back any that
+	 * were spilled.
+	 *
+	 * @return A copy of the entities, which may be empty.
+	 */
+	public synchronized List<Entity> getEntitiesInChunk(int chunkX,
+			int chunkZ) {
+		long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+		unspill(key);
+		if (entitiesByChunk.containsKey(key)) {
+			touch(key);
+		}
+
+		return new ArrayList<Entity>(entitiesByChunk.get(key));
+	}
+
+	/**
+	 * Removes all of the entities in the given chunk.  Should only be used
+	 * once the chunk has been written for the last time.
+	 *
+	 * @return The removed entities.
+	 */
+	public synchronized Collection<Entity> removeEntitiesInChunk(int chunkX,
+			int chunkZ) {
+		long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+		unspill(key);
+
+		Collection<Entity> removed = entitiesByChunk.removeAll(key);
+		for (Entity entity : removed) {
+			entitiesById.remove(entity.getEntityId());
+		}
+		chunkOrder.remove(key);
+		return removed;
+	}
+
+	/**
+	 * Gets the total number of entities, including spilled ones.
+	 */
+	public synchronized int size() {
+		return entitiesById.size() + spilledIds.size();
+	}
+
+	/**
+	 * Marks a chunk as the most recently used.
+	 */
+	private void touch(long key) {
+		chunkOrder.remove(key);
+		chunkOrder.add(key);
+	}
+
+	/**
+	 * Hands the entities of the least recently used chunks to the spill
+	 * store until a quarter of the limit is free.  The store writes them in
+	 * the background.
+	 */
+	private void spill() {
+		if (spillStore == null || spillFailed) {
+			return;
+		}
+
+		Iterator<Long> itr = chunkOrder.iterator();
+		while (entitiesById.size() > maxInMemory * 3 / 4 && itr.hasNext()) {
+			long key = itr.next();
+
+			NBTTagList tags = new NBTTagList();
+			List<Entity> spilled = new ArrayList<Entity>();
+			for (Entity entity : entitiesByChunk.get(key)) {
+				NBTTagCompound tag = EntityUtils.writeEntityToNBT(entity);
+				if (tag != null) {
+					tag.setInteger(EID_TAG, entity.getEntityId());
+					tags.appendTag(tag);
+					spilled.add(entity);
+				}
+			}
+
+			if (!spilled.isEmpty()) {
+				try {
+					spillStore.append(SPILL_GROUP, key, tags);
+				} catch (IOException e) {
+					spillFailed = true;
+					WDL.chatError("Failed to spill entities to disk; "
+							+ "keeping them in memory instead: " + e);
+					e.printStackTrace();
+					return;
+				}
+			}
+
+			for (Entity entity : spilled) {
+				entitiesById.remove(entity.getEntityId());
+				entitiesByChunk.remove(key, entity);
+				spilledIds.put(entity.getEntityId(), key);
+			}
+			// Entities that can't be written stay in memory.
+			if (!entitiesByChunk.containsKey(key)) {
+				itr.remove();
+			}
+		}
+	}
+
+	/**
+	 * Reads back the spilled entities of the given chunk, if there are any.
+	 */
+	private void unspill(long key) {
+		if (spillStore == null || !spillStore.contains(SPILL_GROUP, key)) {
+			return;
+		}
+
+		NBTTagList tags;
+		try {
+			tags = spillStore.take(SPILL_GROUP, key);
+		} catch (IOException e) {
+			WDL.chatError("Failed to read back spilled entities: " + e);
+			e.printStackTrace();
+			return;
+		}
+
+		// Newest first, so that only the last copy of an entity that was
+		// spilled more than once is used.
+		for (int i = tags.tagCount() - 1; i >= 0; i--) {
+			NBTTagCompound tag = tags.getCompoundTagAt(i);
+			int id = tag.getInteger(EID_TAG);
+
+			Long spilledFrom = spilledIds.get(id);
+			if (spilledFrom == null || spilledFrom.longValue() != key) {
+				// Added again or spilled from another chunk since.
+				continue;
+			}
+			spilledIds.remove(id);
+
+			Entity entity = EntityUtils.createEntityFromNBT(tag,
+					WDL.worldClient);
+			if (entity == null) {
+				continue;
+			}
+			entity.setEntityId(id);
+			entity.chunkCoordX = (int) (key & 0xFFFFFFFFL);
+			entity.chunkCoordZ = (int) (key >>> 32);
+
+			entitiesById.put(id, entity);
+			entitiesByChunk.put(key, entity);
+		}
+	}
+
+	private static long getKey(Entity entity) {
+		return ChunkCoordIntPair.chunkXZ2Int(entity.chunkCoordX,
+				entity.chunkCoordZ);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return entitiesById.toString() + " (+" + spilledIds.size()
+				+ " spilled)";
+	}
+}
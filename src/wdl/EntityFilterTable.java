@@ -0,0 +1,151 @@
+package wdl;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+
+/**
+ * The entity settings from {@link WDL#worldProps}, resolved per entity class.
+ * <br/>
+ * Checking whether an entity is enabled used to build two property names
+ * and scan {@link EntityUtils#entitiesByGroup} for every entity; here each
+ * class (or, for entities with {@link wdl.api.ISpecialEntityHandler special
+ * variants}, each type) is resolved the first time it's seen, and after
+ * that it's a single map read.
+ * <br/>
+ * The table is thrown away when {@link WDL#worldProps} is replaced, and
+ * must be {@link #invalidate() invalidated} when the entity settings in it
+ * are changed.
+ */
+class EntityFilterTable {
+	/**
+	 * Resolved settings for one type of entity.
+	 */
+	static class Entry {
+		/**
+		 * The type, from {@link EntityUtils#getEntityType(Entity)}.
+		 */
+		public final String type;
+		/**
+		 * The group, from {@link EntityUtils#getEntityGroup(String)}.  May be
+		 * null.
+		 */
+		public final String group;
+		/**
+		 * Whether both the entity and its group are enabled.
+		 */
+		public final boolean enabled;
+		/**
+		 * The track distance set in the "user" mode, or -1.
+		 */
+		public final int userTrackDistance;
+
+		private Entry(String type, Properties props) {
+			this.type = type;
+			this.group = EntityUtils.getEntityGroup(type);
+
+			boolean groupEnabled = props.getProperty("EntityGroup." + group
+					+ ".Enabled", "true").equals("true");
+			boolean singleEnabled = props.getProperty("Entity." + type
+					+ ".Enabled", "true").equals("true");
+			this.enabled = groupEnabled && singleEnabled;
+
+			int trackDistance;
+			try {
+				trackDistance = Integer.parseInt(props.getProperty("Entity."
+						+ type + ".TrackDistance", "-1"));
+			} catch (NumberFormatException e) {
+				trackDistance = -1;
+			}
+			this.userTrackDistance = trackDistance;
+		}
+	}
+
+	/**
+	 * Entries for classes that always have the same type.
+	 */
+	private final Map<Class<?>, Entry> byClass =
+			new IdentityHashMap<Class<?>, Entry>();
+	/**
+	 * Classes that have special variants, whose type depends on the
+	 * individual entity.
+	 */
+	private final Map<Class<?>, Boolean> hasVariants =
+			new IdentityHashMap<Class<?>, Boolean>();
+	/**
+	 * Entries by type.
+	 */
+	private final Map<String, Entry> byType = new HashMap<String, Entry>();
+	/**
+	 * The properties that the entries were resolved from.
+	 */
+	private Properties props;
+
+	/**
+	 * Gets the resolved settings for the given entity.
+	 */
+	public synchronized Entry get(Entity entity) {
+		checkProps();
+
+		Class<?> c = entity.getClass();
+		Entry entry = byClass.get(c);
+		if (entry != null) {
+			return entry;
+		}
+
+		Boolean variants = hasVariants.get(c);
+		if (variants == null) {
+			variants = EntityUtils.hasSpecialVariants(EntityList
+					.getEntityString(entity));
+			hasVariants.put(c, variants);
+		}
+
+		entry = getByType(EntityUtils.getEntityType(entity));
+		if (!variants) {
+			byClass.put(c, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Gets the resolved settings for the given entity type.
+	 */
+	public synchronized Entry get(String type) {
+		checkProps();
+
+		return getByType(type);
+	}
+
+	/**
+	 * Forgets all resolved settings, so that they are read again.
+	 */
+	public synchronized void invalidate() {
+		byClass.clear();
+		hasVariants.clear();
+		byType.clear();
+	}
+
+	private Entry getByType(String type) {
+		Entry entry = byType.get(type);
+		if (entry == null) {
+			entry = new Entry(type, props);
+			byType.put(type, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Starts over if {@link WDL#worldProps} has been replaced, such as when
+	 * changing worlds.
+	 */
+	private void checkProps() {
+		if (props != WDL.worldProps) {
+			invalidate();
+			props = WDL.worldProps;
+		}
+	}
+}
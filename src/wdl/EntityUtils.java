@@ -6,6 +6,7 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -45,6 +46,9 @@ import net.minecraft.entity.projectile.EntityFishHook;
 import net.minecraft.entity.projectile.EntityPotion;
 import net.minecraft.entity.projectile.EntitySmallFireball;
 import net.minecraft.entity.projectile.EntitySnowball;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.world.World;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -61,6 +65,12 @@ import com.google.common.collect.Multimap;
 public class EntityUtils {
 	private static Logger logger = LogManager.getLogger();
 	
+	/**
+	 * Name of the tag that {@link #writeEntityToNBT(Entity)} stores the
+	 * entity's server position in, as WDL saves entities there.
+	 */
+	public static final String SERVER_POS_TAG = "WDLServerPos";
+	
 	/**
 	 * Reference to the {@link EntityList#stringToClassMapping} field.
 	 */
@@ -182,6 +192,28 @@ public class EntityUtils {
 	private static final Map<String, IEntityAdder> addedEntities = 
 			new HashMap<String, IEntityAdder>();
 	
+	/**
+	 * The entity settings, resolved per entity class.
+	 */
+	private static final EntityFilterTable filterTable =
+			new EntityFilterTable();
+	
+	/**
+	 * Track distances in the "default" or "server" mode, by entity class.
+	 * Working them out means going through long chains of
+	 * {@link Class#isAssignableFrom(Class)} checks, which is too slow to do
+	 * for every entity that is removed.
+	 * <br/>
+	 * Only valid for {@link #trackDistanceCacheMode}; cleared by
+	 * {@link #onTrackDistanceSettingsChanged()}.
+	 */
+	private static final Map<Class<?>, Integer> trackDistanceCache =
+			new IdentityHashMap<Class<?>, Integer>();
+	/**
+	 * The track distance mode that {@link #trackDistanceCache} is for.
+	 */
+	private static String trackDistanceCacheMode;
+	
 	public static void addSpecialEntityHandler(ISpecialEntityHandler handler) {
 		specialEntityHandlers.add(handler);
 		
@@ -205,6 +237,8 @@ public class EntityUtils {
 			WDL.defaultProps.setProperty("EntityGroup." + group + ".Enabled",
 					"true");
 		}
+		
+		onEntitySettingsChanged();
 	}
 	
 	public static void addEntityAdder(IEntityAdder adder) {
@@ -225,6 +259,8 @@ public class EntityUtils {
 			WDL.defaultProps.setProperty("EntityGroup." + group + ".Enabled",
 					"true");
 		}
+		
+		onEntitySettingsChanged();
 	}
 	
 	/**
@@ -289,8 +325,53 @@ public class EntityUtils {
 	 * @return
 	 */
 	public static int getEntityTrackDistance(Entity e) {
-		return getEntityTrackDistance(
-				WDL.worldProps.getProperty("Entity.TrackDistanceMode"), e);
+		String mode = WDL.worldProps.getProperty("Entity.TrackDistanceMode");
+		if ("user".equals(mode)) {
+			// Already resolved per class by the filter table.
+			return filterTable.get(e).userTrackDistance;
+		}
+		
+		Class<?> c = e.getClass();
+		synchronized (trackDistanceCache) {
+			if (mode == null ? trackDistanceCacheMode != null
+					: !mode.equals(trackDistanceCacheMode)) {
+				trackDistanceCache.clear();
+				trackDistanceCacheMode = mode;
+			}
+			
+			Integer cached = trackDistanceCache.get(c);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		
+		int trackDistance = getEntityTrackDistance(mode, e);
+		
+		// Entities with special variants can have different distances
+		// for the same class.
+		if (!hasSpecialVariants(EntityList.getEntityString(e))) {
+			synchronized (trackDistanceCache) {
+				if (mode == null ? trackDistanceCacheMode == null
+						: mode.equals(trackDistanceCacheMode)) {
+					trackDistanceCache.put(c, trackDistance);
+				}
+			}
+		}
+		
+		return trackDistance;
+	}
+	
+	/**
+	 * Should be called when anything that the "default" and "server" track
+	 * distances depend on changes: the server's settings packets (including
+	 * the entity ranges in packet #2) and its brand (which decides whether
+	 * Spigot's ranges are used).  Changes to the mode itself are detected
+	 * automatically.
+	 */
+	public static void onTrackDistanceSettingsChanged() {
+		synchronized (trackDistanceCache) {
+			trackDistanceCache.clear();
+		}
 	}
 	
 	/**
@@ -312,10 +393,7 @@ public class EntityUtils {
 			
 			return serverDistance;
 		} else if ("user".equals(mode)) {
-			String prop = WDL.worldProps.getProperty("Entity." +
-					getEntityType(e) + ".TrackDistance", "-1");
-			
-			return Integer.valueOf(prop);
+			return filterTable.get(e).userTrackDistance;
 		} else {
 			throw new IllegalArgumentException("Mode is not a valid mode: " + mode);
 		}
@@ -352,10 +430,7 @@ public class EntityUtils {
 			
 			return serverDistance;
 		} else if ("user".equals(mode)) {
-			String prop = WDL.worldProps.getProperty("Entity." +
-					type + ".TrackDistance", "-1");
-			
-			return Integer.valueOf(prop);
+			return filterTable.get(type).userTrackDistance;
 		} else {
 			throw new IllegalArgumentException("Mode is not a valid mode: " + mode);
 		}
@@ -384,7 +459,11 @@ public class EntityUtils {
 	 * @return
 	 */
 	public static boolean isEntityEnabled(Entity e) {
-		return isEntityEnabled(getEntityType(e));
+		if (!WDLPluginChannels.canSaveEntities()) {
+			return false; //Shouldn't get here, but an extra check.
+		}
+		
+		return filterTable.get(e).enabled;
 	}
 	
 	/**
@@ -398,12 +477,27 @@ public class EntityUtils {
 			return false; //Shouldn't get here, but an extra check.
 		}
 		
-		boolean groupEnabled = WDL.worldProps.getProperty("EntityGroup." +
-				getEntityGroup(type) + ".Enabled", "true").equals("true");
-		boolean singleEnabled = WDL.worldProps.getProperty("Entity." +
-				type + ".Enabled", "true").equals("true");
-		
-		return groupEnabled && singleEnabled;
+		return filterTable.get(type).enabled;
+	}
+	
+	/**
+	 * Should be called after changing any of the <code>Entity.</code> or
+	 * <code>EntityGroup.</code> properties in {@link WDL#worldProps}, so
+	 * that {@link #isEntityEnabled(Entity)} and the "user" track distances
+	 * use the new values.  (Replacing {@link WDL#worldProps} entirely is
+	 * detected automatically.)
+	 */
+	public static void onEntitySettingsChanged() {
+		filterTable.invalidate();
+	}
+	
+	/**
+	 * Checks whether any {@link ISpecialEntityHandler} has special variants
+	 * of the given vanilla entity, meaning that entities of that class can
+	 * have different types.
+	 */
+	static boolean hasSpecialVariants(String vanillaName) {
+		return !extendedEntities.get(vanillaName).isEmpty();
 	}
 	
 	/**
@@ -546,4 +640,44 @@ public class EntityUtils {
 			return otherRange;
 		}
 	}
+	
+	/**
+	 * Writes an entity to NBT along with its type and server position, so
+	 * that it can be recreated later by {@link #createEntityFromNBT}.
+	 * 
+	 * @return The NBT, or null if the entity can't be recreated from NBT
+	 *         (such as players).
+	 */
+	public static NBTTagCompound writeEntityToNBT(Entity entity) {
+		String name = EntityList.getEntityString(entity);
+		if (name == null) {
+			return null;
+		}
+		
+		NBTTagCompound tag = new NBTTagCompound();
+		tag.setString("id", name);
+		entity.writeToNBT(tag);
+		tag.setTag(SERVER_POS_TAG, new NBTTagIntArray(new int[] {
+				entity.serverPosX, entity.serverPosY, entity.serverPosZ }));
+		return tag;
+	}
+	
+	/**
+	 * Creates an entity written by {@link #writeEntityToNBT(Entity)}, at its
+	 * server position.
+	 * 
+	 * @return The entity, or null if its type is unknown.
+	 */
+	public static Entity createEntityFromNBT(NBTTagCompound tag, World world) {
+		Entity entity = EntityList.createEntityFromNBT(tag, world);
+		if (entity != null) {
+			int[] serverPos = tag.getIntArray(SERVER_POS_TAG);
+			if (serverPos.length == 3) {
+				entity.serverPosX = serverPos[0];
+				entity.serverPosY = serverPos[1];
+				entity.serverPosZ = serverPos[2];
+			}
+		}
+		return entity;
+	}
 }
@@ -0,0 +1,175 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counters for the time spent in each of the {@link WDLHooks}, and in each
+ * WDL extension's listener for it.
+ * <br/>
+ * The vanilla profiler only shows these in its pie chart, and only while
+ * it is open; these counters are always kept (they cost a couple of
+ * {@link System#nanoTime()} calls per hook) so that an extension that is
+ * eating tick time can be found afterwards, from the in-game GUI or from a
+ * crash report.
+ */
+public class HookProfiler {
+	/**
+	 * Listener name for the whole hook, including WDL's own work.
+	 */
+	public static final String TOTAL = "Total";
+	/**
+	 * Listener name for WDL's own handling of a hook.
+	 */
+	public static final String CORE = "Core";
+
+	/**
+	 * Timings for one hook or listener.
+	 */
+	public static class Counter {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private synchronized void record(long nanos) {
+			count++;
+			totalNanos += nanos;
+			if (nanos > maxNanos) {
+				maxNanos = nanos;
+			}
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public synchronized long getMaxNanos() {
+			return maxNanos;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%d calls, %.2f ms total, %.3f ms avg, "
+					+ "%.3f ms max", count, totalNanos / 1e6,
+					(count != 0 ? totalNanos / 1e6 / count : 0), maxNanos / 1e6);
+		}
+	}
+
+	/**
+	 * Counters by hook and then by listener.
+	 */
+	private static final ConcurrentMap<String, ConcurrentMap<String, Counter>> counters =
+			new ConcurrentHashMap<String, ConcurrentMap<String, Counter>>();
+
+	/**
+	 * Gets the time to pass to {@link #record(String, String, long)} later.
+	 */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a call.
+	 *
+	 * @param hook The name of the hook, such as <code>onBlockEvent</code>.
+	 * @param listener The name of the listener, which is either the name of
+	 *            the extension, {@link #CORE} or {@link #TOTAL}.
+	 * @param startNanos The value of {@link #now()} when the call started.
+	 */
+	public static void record(String hook, String listener, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+
+		ConcurrentMap<String, Counter> hookCounters = counters.get(hook);
+		if (hookCounters == null) {
+			hookCounters = new ConcurrentHashMap<String, Counter>();
+			ConcurrentMap<String, Counter> existing = counters.putIfAbsent(
+					hook, hookCounters);
+			if (existing != null) {
+				hookCounters = existing;
+			}
+		}
+
+		Counter counter = hookCounters.get(listener);
+		if (counter == null) {
+			counter = new Counter();
+			Counter existing = hookCounters.putIfAbsent(listener, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+
+		counter.record(nanos);
+	}
+
+	/**
+	 * Clears all counters.
+	 */
+	public static void reset() {
+		counters.clear();
+	}
+
+	/**
+	 * Gets a readable report, one line per hook and listener.  Hooks are
+	 * sorted by total time, and so are the listeners within them.
+	 */
+	public static List<String> getReport() {
+		List<Map.Entry<String, ConcurrentMap<String, Counter>>> hooks =
+				new ArrayList<Map.Entry<String, ConcurrentMap<String, Counter>>>(
+						counters.entrySet());
+		Collections.sort(hooks, new Comparator<Map.Entry<String, ConcurrentMap<String, Counter>>>() {
+			@Override
+			public int compare(Map.Entry<String, ConcurrentMap<String, Counter>> a,
+					Map.Entry<String, ConcurrentMap<String, Counter>> b) {
+				return compareNanos(getTotalNanos(b.getValue()),
+						getTotalNanos(a.getValue()));
+			}
+		});
+
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, ConcurrentMap<String, Counter>> hook : hooks) {
+			Counter total = hook.getValue().get(TOTAL);
+			lines.add(hook.getKey() + ": "
+					+ (total != null ? total : "(no total)"));
+
+			List<Map.Entry<String, Counter>> listeners =
+					new ArrayList<Map.Entry<String, Counter>>(
+							hook.getValue().entrySet());
+			Collections.sort(listeners, new Comparator<Map.Entry<String, Counter>>() {
+				@Override
+				public int compare(Map.Entry<String, Counter> a,
+						Map.Entry<String, Counter> b) {
+					return compareNanos(b.getValue().getTotalNanos(),
+							a.getValue().getTotalNanos());
+				}
+			});
+			for (Map.Entry<String, Counter> listener : listeners) {
+				if (listener.getKey().equals(TOTAL)) {
+					continue;
+				}
+				lines.add("  " + listener.getKey() + ": "
+						+ listener.getValue());
+			}
+		}
+		return lines;
+	}
+
+	private static long getTotalNanos(Map<String, Counter> hookCounters) {
+		Counter total = hookCounters.get(TOTAL);
+		return (total != null ? total.getTotalNanos() : 0);
+	}
+
+	private static int compareNanos(long a, long b) {
+		return (a < b ? -1 : (a == b ? 0 : 1));
+	}
+
+	private HookProfiler() { }
+}
@@ -0,0 +1,418 @@
+package wdl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import wdl.WorldBackup.IBackupProgressMonitor;
+
+/**
+ * Deduplicated backups, which only store the parts of the world that changed
+ * since the previous backup.
+ * <br/>
+ * Files are split into blocks which are stored by their SHA-1 hash in the
+ * <code>objects</code> folder; a block that is already there isn't written
+ * again.  Region files are split where each chunk starts (chunks are sector
+ * aligned and usually keep their place in the file), so an unchanged chunk
+ * is an unchanged block.  Other files are split into fixed-size blocks.
+ * <br/>
+ * Each backup is a manifest in the <code>manifests</code> folder, listing
+ * every file with the hashes of its blocks, which is enough to
+ * {@link #restore(File, File) rebuild} that snapshot.  Files that have the
+ * same size and modification time as in the previous manifest reuse its
+ * hashes without being read.
+ */
+public class IncrementalBackup {
+	/**
+	 * Size of blocks for files that aren't region files.
+	 */
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	/**
+	 * Size of a region file sector.
+	 */
+	private static final int SECTOR_SIZE = 4096;
+	/**
+	 * Size of a region file's header (the offset and timestamp tables).
+	 */
+	private static final int REGION_HEADER_SIZE = SECTOR_SIZE * 2;
+
+	private static final String MANIFEST_HEADER =
+			"# WorldDownloader incremental backup manifest v1";
+
+	/**
+	 * Backs up a world.
+	 *
+	 * @param worldFolder The folder containing the world.
+	 * @param backupFolder The folder that holds the blocks and manifests
+	 *            for this world.
+	 * @param snapshotName The name of the new manifest, without extension.
+	 * @param monitor Notified of progress.  May be null.
+	 * @return The manifest that was written.
+	 */
+	public static File backup(File worldFolder, File backupFolder,
+			String snapshotName, IBackupProgressMonitor monitor)
+			throws IOException {
+		File objectsFolder = new File(backupFolder, "objects");
+		File manifestsFolder = new File(backupFolder, "manifests");
+		File manifest = new File(manifestsFolder, snapshotName + ".txt");
+
+		if (manifest.exists()) {
+			throw new IOException("Backup manifest (" + manifest
+					+ ") already exists!");
+		}
+
+		Map<String, FileEntry> previous = new HashMap<String, FileEntry>();
+		File previousManifest = getLatestManifest(manifestsFolder);
+		if (previousManifest != null) {
+			for (FileEntry entry : readManifest(previousManifest)) {
+				previous.put(entry.path, entry);
+			}
+		}
+
+		List<File> files = WorldBackup.listFiles(worldFolder);
+		int pathStartIndex = worldFolder.getPath().length() + 1;
+
+		if (monitor != null) {
+			monitor.setNumberOfFiles(files.size());
+		}
+
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		for (File file : files) {
+			WorldBackup.checkCancelled();
+			String path = file.getPath().substring(pathStartIndex)
+					.replace(File.separatorChar, '/');
+
+			FileEntry entry = previous.get(path);
+			if (entry == null || entry.size != file.length()
+					|| entry.lastModified != file.lastModified()
+					|| !allObjectsExist(objectsFolder, entry)) {
+				entry = storeFile(file, path, objectsFolder);
+			}
+			entries.add(entry);
+
+			if (monitor != null) {
+				monitor.onNextFile(path);
+			}
+		}
+
+		writeManifest(manifest, entries);
+		return manifest;
+	}
+
+	/**
+	 * Rebuilds the world from a manifest.
+	 *
+	 * @param manifest The manifest of the snapshot.
+	 * @param destination The folder to restore the world into.  Should not
+	 *            exist yet.
+	 */
+	public static void restore(File manifest, File destination)
+			throws IOException {
+		if (destination.exists()) {
+			throw new IOException("Restore destination (" + destination
+					+ ") already exists!");
+		}
+
+		File objectsFolder = new File(manifest.getParentFile()
+				.getParentFile(), "objects");
+
+		for (FileEntry entry : readManifest(manifest)) {
+			File file = new File(destination, entry.path.replace('/',
+					File.separatorChar));
+			file.getParentFile().mkdirs();
+
+			FileOutputStream output = new FileOutputStream(file);
+			try {
+				for (String hash : entry.hashes) {
+					FileInputStream input = new FileInputStream(
+							getObjectFile(objectsFolder, hash));
+					try {
+						IOUtils.copy(input, output);
+					} finally {
+						input.close();
+					}
+				}
+			} finally {
+				output.close();
+			}
+
+			if (file.length() != entry.size) {
+				throw new IOException("Restored " + entry.path + " has size "
+						+ file.length() + ", but the manifest says "
+						+ entry.size);
+			}
+			file.setLastModified(entry.lastModified);
+		}
+	}
+
+	/**
+	 * Gets the most recent manifest in the given folder, or null if there
+	 * are none.  Manifest names end with the date, in a format that sorts
+	 * the same way as the dates.
+	 */
+	private static File getLatestManifest(File manifestsFolder) {
+		File[] manifests = manifestsFolder.listFiles();
+		if (manifests == null || manifests.length == 0) {
+			return null;
+		}
+
+		File latest = null;
+		for (File manifest : manifests) {
+			if (!manifest.getName().endsWith(".txt")) {
+				continue;
+			}
+			if (latest == null || manifest.getName().compareTo(
+					latest.getName()) > 0) {
+				latest = manifest;
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Splits a file into blocks and stores the ones that aren't stored yet.
+	 */
+	private static FileEntry storeFile(File file, String path,
+			File objectsFolder) throws IOException {
+		FileEntry entry = new FileEntry();
+		entry.path = path;
+		entry.lastModified = file.lastModified();
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			entry.size = input.length();
+
+			long[] boundaries;
+			if (path.endsWith(".mca") || path.endsWith(".mcr")) {
+				boundaries = getRegionBoundaries(input);
+			} else {
+				boundaries = getFixedBoundaries(entry.size);
+			}
+
+			for (int i = 0; i < boundaries.length - 1; i++) {
+				long start = boundaries[i];
+				byte[] block = new byte[(int) (boundaries[i + 1] - start)];
+				input.seek(start);
+				input.readFully(block);
+
+				String hash = hash(block);
+				File object = getObjectFile(objectsFolder, hash);
+				if (!object.exists()) {
+					writeObject(object, block);
+				}
+				entry.hashes.add(hash);
+			}
+		} finally {
+			input.close();
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Gets the offsets at which a region file should be split: after the
+	 * header, and at the start of each chunk.
+	 *
+	 * @return The sorted offsets, starting with 0 and ending with the
+	 *         length of the file.
+	 */
+	private static long[] getRegionBoundaries(RandomAccessFile input)
+			throws IOException {
+		long length = input.length();
+		if (length < REGION_HEADER_SIZE) {
+			return getFixedBoundaries(length);
+		}
+
+		TreeSet<Long> boundaries = new TreeSet<Long>();
+		boundaries.add(0L);
+		boundaries.add((long) REGION_HEADER_SIZE);
+
+		byte[] offsets = new byte[SECTOR_SIZE];
+		input.seek(0);
+		input.readFully(offsets);
+		for (int i = 0; i < SECTOR_SIZE; i += 4) {
+			// 3 bytes of sector number, then a byte of sector count.
+			long sector = ((offsets[i] & 0xFF) << 16)
+					| ((offsets[i + 1] & 0xFF) << 8)
+					| (offsets[i + 2] & 0xFF);
+			long offset = sector * SECTOR_SIZE;
+			if (offset >= REGION_HEADER_SIZE && offset < length) {
+				boundaries.add(offset);
+			}
+		}
+
+		boundaries.add(length);
+
+		long[] returned = new long[boundaries.size()];
+		int i = 0;
+		for (Long boundary : boundaries) {
+			returned[i++] = boundary;
+		}
+		return returned;
+	}
+
+	/**
+	 * Gets the offsets at which a file should be split into fixed-size
+	 * blocks.
+	 */
+	private static long[] getFixedBoundaries(long length) {
+		int blocks = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		long[] returned = new long[blocks + 1];
+		for (int i = 0; i < blocks; i++) {
+			returned[i] = (long) i * BLOCK_SIZE;
+		}
+		returned[blocks] = length;
+		return returned;
+	}
+
+	private static boolean allObjectsExist(File objectsFolder,
+			FileEntry entry) {
+		for (String hash : entry.hashes) {
+			if (!getObjectFile(objectsFolder, hash).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static File getObjectFile(File objectsFolder, String hash) {
+		return new File(new File(objectsFolder, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Writes a block to a temporary file first, so that an interrupted
+	 * backup never leaves a partial block under its hash.
+	 */
+	private static void writeObject(File object, byte[] block)
+			throws IOException {
+		object.getParentFile().mkdirs();
+		File temp = new File(object.getParentFile(), object.getName()
+				+ ".tmp");
+		FileUtils.writeByteArrayToFile(temp, block);
+		if (!temp.renameTo(object)) {
+			temp.delete();
+			if (!object.exists()) {
+				throw new IOException("Failed to store backup block "
+						+ object);
+			}
+		}
+	}
+
+	private static String hash(byte[] block) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("WorldDownloader: SHA-1 is not "
+					+ "available", e);
+		}
+
+		byte[] hash = digest.digest(block);
+		StringBuilder builder = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+			builder.append(Character.forDigit(b & 0xF, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes a manifest.  Each line is a file: its path, size, modification
+	 * time and block hashes, separated by tabs.
+	 */
+	private static void writeManifest(File manifest, List<FileEntry> entries)
+			throws IOException {
+		manifest.getParentFile().mkdirs();
+		File temp = new File(manifest.getParentFile(), manifest.getName()
+				+ ".tmp");
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp),
+				"UTF-8");
+		try {
+			writer.write(MANIFEST_HEADER + "\n");
+			for (FileEntry entry : entries) {
+				writer.write(entry.path + "\t" + entry.size + "\t"
+						+ entry.lastModified);
+				for (String hash : entry.hashes) {
+					writer.write("\t" + hash);
+				}
+				writer.write("\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!temp.renameTo(manifest)) {
+			throw new IOException("Failed to write backup manifest "
+					+ manifest);
+		}
+	}
+
+	private static List<FileEntry> readManifest(File manifest)
+			throws IOException {
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(manifest), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] parts = line.split("\t");
+				if (parts.length < 3) {
+					throw new IOException("Malformed line in backup manifest "
+							+ manifest + ": " + line);
+				}
+
+				FileEntry entry = new FileEntry();
+				entry.path = parts[0];
+				try {
+					entry.size = Long.parseLong(parts[1]);
+					entry.lastModified = Long.parseLong(parts[2]);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed line in backup manifest "
+							+ manifest + ": " + line);
+				}
+				entry.hashes.addAll(Arrays.asList(parts).subList(3,
+						parts.length));
+				entries.add(entry);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return entries;
+	}
+
+	/**
+	 * A file in a manifest.
+	 */
+	private static class FileEntry {
+		public String path;
+		public long size;
+		public long lastModified;
+		public final List<String> hashes = new ArrayList<String>();
+	}
+
+	private IncrementalBackup() { }
+}
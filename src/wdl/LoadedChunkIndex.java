@@ -0,0 +1,226 @@
+package wdl;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.chunk.Chunk;
+
+/**
+ * Index of the chunks that are loaded in a {@link WorldClient}, kept up to
+ * date by {@link WDLHooks#onWorldClientDoPreChunk}.
+ * <br/>
+ * This replaces walking the chunk provider's {@link net.minecraft.util.LongHashMap}
+ * by reflection: the keys are stored in a primitive open-addressed table
+ * (no boxing), and enumerating it is proportional to the number of loaded
+ * chunks rather than the size of the hash array.
+ * <br/>
+ * Chunks are only looked up from the world when first needed, since the
+ * hook runs before the chunk itself is created.
+ */
+public class LoadedChunkIndex {
+	/**
+	 * Indexes for each world.  Weak, so that old worlds can still be garbage
+	 * collected, but an index survives long enough for a save that was
+	 * deferred by a world change.
+	 */
+	private static final Map<WorldClient, LoadedChunkIndex> indexes =
+			new WeakHashMap<WorldClient, LoadedChunkIndex>();
+
+	/**
+	 * Gets the index for the given world, creating it if needed.
+	 */
+	public static LoadedChunkIndex forWorld(WorldClient world) {
+		synchronized (indexes) {
+			LoadedChunkIndex index = indexes.get(world);
+			if (index == null) {
+				index = new LoadedChunkIndex(world);
+				indexes.put(world, index);
+			}
+			return index;
+		}
+	}
+
+	private final WorldClient world;
+
+	/**
+	 * Keys from {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}.
+	 */
+	private long[] keys;
+	/**
+	 * The chunk for each key, or null if it hasn't been looked up yet.
+	 */
+	private Chunk[] chunks;
+	/**
+	 * Whether each slot is in use.
+	 */
+	private boolean[] used;
+	private int size;
+	private int mask;
+
+	private LoadedChunkIndex(WorldClient world) {
+		this.world = world;
+		allocate(256);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		chunks = new Chunk[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	/**
+	 * Should be called before a chunk is loaded.
+	 */
+	public synchronized void onChunkLoaded(int x, int z) {
+		long key = ChunkCoordIntPair.chunkXZ2Int(x, z);
+		if ((size + 1) * 4 > keys.length * 3) {
+			rehash(keys.length * 2);
+		}
+
+		int i = slot(key);
+		while (used[i]) {
+			if (keys[i] == key) {
+				// Reloaded without being unloaded; the chunk object changed.
+				chunks[i] = null;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+
+		used[i] = true;
+		keys[i] = key;
+		chunks[i] = null;
+		size++;
+	}
+
+	/**
+	 * Should be called once a chunk has been unloaded.
+	 */
+	public synchronized void onChunkUnloaded(int x, int z) {
+		int i = find(ChunkCoordIntPair.chunkXZ2Int(x, z));
+		if (i < 0) {
+			return;
+		}
+
+		// Backward-shift deletion, so that no tombstones are needed.
+		int gap = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (!used[j]) {
+				break;
+			}
+			int ideal = slot(keys[j]);
+			if (!isCyclicallyBetween(gap, ideal, j)) {
+				keys[gap] = keys[j];
+				chunks[gap] = chunks[j];
+				gap = j;
+			}
+		}
+
+		used[gap] = false;
+		chunks[gap] = null;
+		size--;
+	}
+
+	/**
+	 * Checks whether the given chunk is loaded.
+	 */
+	public synchronized boolean isLoaded(int x, int z) {
+		return find(ChunkCoordIntPair.chunkXZ2Int(x, z)) >= 0;
+	}
+
+	/**
+	 * Gets the number of loaded chunks.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets a snapshot of all loaded chunks.
+	 */
+	public synchronized Chunk[] getChunks() {
+		Chunk[] returned = new Chunk[size];
+		int count = 0;
+
+		for (int i = 0; i < keys.length; i++) {
+			if (!used[i]) {
+				continue;
+			}
+			if (chunks[i] == null) {
+				long key = keys[i];
+				Chunk chunk = world.getChunkFromChunkCoords((int) key,
+						(int) (key >>> 32));
+				if (chunk.isEmpty()) {
+					// ChunkProviderClient's blank chunk; the real one isn't
+					// there (yet).
+					continue;
+				}
+				chunks[i] = chunk;
+			}
+			returned[count++] = chunks[i];
+		}
+
+		if (count == returned.length) {
+			return returned;
+		}
+		Chunk[] trimmed = new Chunk[count];
+		System.arraycopy(returned, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	private int find(long key) {
+		int i = slot(key);
+		while (used[i]) {
+			if (keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Chunk[] oldChunks = chunks;
+		boolean[] oldUsed = used;
+
+		allocate(capacity);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (!oldUsed[i]) {
+				continue;
+			}
+			int j = slot(oldKeys[i]);
+			while (used[j]) {
+				j = (j + 1) & mask;
+			}
+			used[j] = true;
+			keys[j] = oldKeys[i];
+			chunks[j] = oldChunks[i];
+			size++;
+		}
+	}
+
+	private int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Checks whether <code>value</code> is in the range
+	 * <code>(start, end]</code>, wrapping around the end of the table.
+	 */
+	private static boolean isCyclicallyBetween(int start, int value, int end) {
+		if (start <= end) {
+			return start < value && value <= end;
+		} else {
+			return start < value || value <= end;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package wdl;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagDouble;
+import net.minecraft.nbt.NBTTagFloat;
+import net.minecraft.nbt.NBTTagInt;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagLong;
+import net.minecraft.nbt.NBTTagShort;
+import net.minecraft.nbt.NBTTagString;
+
+/**
+ * Reads only selected tags from an NBT stream.
+ * <br/>
+ * Unlike {@link net.minecraft.nbt.CompressedStreamTools#read}, which builds
+ * the whole tree, this walks the stream and skips every tag that isn't on
+ * the way to a requested path using the tag's length, so that (for
+ * instance) a chunk's block arrays are never allocated when only its tile
+ * entities are wanted.  Reading stops as soon as every requested tag has
+ * been found.
+ * <br/>
+ * Paths are the names of the compounds leading to the tag, separated by
+ * <code>/</code>, starting below the (unnamed) root compound, such as
+ * <code>"Level/TileEntities"</code> or <code>"Data/LastPlayed"</code>.
+ * A path can't go through lists.
+ */
+public class NBTPartialReader {
+	private static final int TAG_END = 0;
+	private static final int TAG_BYTE = 1;
+	private static final int TAG_SHORT = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_FLOAT = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_BYTE_ARRAY = 7;
+	private static final int TAG_STRING = 8;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+	private static final int TAG_INT_ARRAY = 11;
+
+	/**
+	 * Same limit as vanilla's NBT reader.
+	 */
+	private static final int MAX_DEPTH = 512;
+
+	/**
+	 * Reads the tags at the given paths from the stream, which should be
+	 * positioned at the start of the root tag.
+	 *
+	 * @param input The stream to read from.  It is not closed, and is left
+	 *              part way through if everything was found early.
+	 * @param paths The paths to read.
+	 * @return The found tags by path.  Paths that weren't found are missing.
+	 */
+	public static Map<String, NBTBase> read(DataInput input, String... paths)
+			throws IOException {
+		PathNode root = new PathNode(null, null);
+		for (String path : paths) {
+			PathNode node = root;
+			for (String name : path.split("/")) {
+				node = node.getOrCreateChild(name);
+			}
+			node.path = path;
+		}
+
+		NBTPartialReader reader = new NBTPartialReader(input, paths.length);
+
+		int type = input.readByte();
+		if (type != TAG_COMPOUND) {
+			throw new IOException("Root tag must be a compound (got "
+					+ type + ")");
+		}
+		reader.skipString(); // Root name
+		reader.readCompound(root, 1);
+
+		return reader.found;
+	}
+
+	private final DataInput input;
+	private final Map<String, NBTBase> found = new HashMap<String, NBTBase>();
+	/**
+	 * Number of requested paths not yet found.
+	 */
+	private int remaining;
+	/**
+	 * Reused buffer for tag names, so that skipped tags don't allocate.
+	 */
+	private byte[] nameBuffer = new byte[64];
+
+	private NBTPartialReader(DataInput input, int pathCount) {
+		this.input = input;
+		this.remaining = pathCount;
+	}
+
+	/**
+	 * Reads a compound's payload, only keeping the tags that the node wants.
+	 */
+	private void readCompound(PathNode node, int depth) throws IOException {
+		checkDepth(depth);
+
+		while (remaining > 0) {
+			int type = input.readByte();
+			if (type == TAG_END) {
+				return;
+			}
+
+			PathNode child = readNameAndMatch(node);
+			if (child == null) {
+				skipPayload(type, depth + 1);
+			} else if (child.path != null) {
+				found.put(child.path, readPayload(type, depth + 1));
+				remaining--;
+			} else if (type == TAG_COMPOUND) {
+				readCompound(child, depth + 1);
+			} else {
+				skipPayload(type, depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * Reads a tag name and finds the child node with that name, without
+	 * allocating a string for it.
+	 */
+	private PathNode readNameAndMatch(PathNode node) throws IOException {
+		int length = input.readUnsignedShort();
+		if (length > nameBuffer.length) {
+			nameBuffer = new byte[length];
+		}
+		input.readFully(nameBuffer, 0, length);
+
+		for (PathNode child : node.children) {
+			if (child.nameBytes.length != length) {
+				continue;
+			}
+			boolean matches = true;
+			for (int i = 0; i < length; i++) {
+				if (child.nameBytes[i] != nameBuffer[i]) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fully reads the payload of a tag.
+	 */
+	private NBTBase readPayload(int type, int depth) throws IOException {
+		checkDepth(depth);
+
+		switch (type) {
+		case TAG_BYTE:
+			return new NBTTagByte(input.readByte());
+		case TAG_SHORT:
+			return new NBTTagShort(input.readShort());
+		case TAG_INT:
+			return new NBTTagInt(input.readInt());
+		case TAG_LONG:
+			return new NBTTagLong(input.readLong());
+		case TAG_FLOAT:
+			return new NBTTagFloat(input.readFloat());
+		case TAG_DOUBLE:
+			return new NBTTagDouble(input.readDouble());
+		case TAG_BYTE_ARRAY: {
+			byte[] data = new byte[input.readInt()];
+			input.readFully(data);
+			return new NBTTagByteArray(data);
+		}
+		case TAG_STRING:
+			return new NBTTagString(input.readUTF());
+		case TAG_LIST: {
+			int elementType = input.readByte();
+			int length = input.readInt();
+			NBTTagList list = new NBTTagList();
+			for (int i = 0; i < length; i++) {
+				list.appendTag(readPayload(elementType, depth + 1));
+			}
+			return list;
+		}
+		case TAG_COMPOUND: {
+			NBTTagCompound compound = new NBTTagCompound();
+			while (true) {
+				int childType = input.readByte();
+				if (childType == TAG_END) {
+					break;
+				}
+				String name = input.readUTF();
+				compound.setTag(name, readPayload(childType, depth + 1));
+			}
+			return compound;
+		}
+		case TAG_INT_ARRAY: {
+			int[] data = new int[input.readInt()];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = input.readInt();
+			}
+			return new NBTTagIntArray(data);
+		}
+		default:
+			throw new IOException("Invalid NBT tag type " + type);
+		}
+	}
+
+	/**
+	 * Skips over the payload of a tag without building it.
+	 */
+	private void skipPayload(int type, int depth) throws IOException {
+		checkDepth(depth);
+
+		switch (type) {
+		case TAG_BYTE:
+			skip(1);
+			return;
+		case TAG_SHORT:
+			skip(2);
+			return;
+		case TAG_INT:
+		case TAG_FLOAT:
+			skip(4);
+			return;
+		case TAG_LONG:
+		case TAG_DOUBLE:
+			skip(8);
+			return;
+		case TAG_BYTE_ARRAY:
+			skip(input.readInt());
+			return;
+		case TAG_STRING:
+			skipString();
+			return;
+		case TAG_LIST: {
+			int elementType = input.readByte();
+			int length = input.readInt();
+			int size = getFixedSize(elementType);
+			if (size >= 0) {
+				skip((long) size * length);
+			} else {
+				for (int i = 0; i < length; i++) {
+					skipPayload(elementType, depth + 1);
+				}
+			}
+			return;
+		}
+		case TAG_COMPOUND:
+			while (true) {
+				int childType = input.readByte();
+				if (childType == TAG_END) {
+					return;
+				}
+				skipString();
+				skipPayload(childType, depth + 1);
+			}
+		case TAG_INT_ARRAY:
+			skip(4L * input.readInt());
+			return;
+		default:
+			throw new IOException("Invalid NBT tag type " + type);
+		}
+	}
+
+	/**
+	 * Gets the size of a tag's payload if it is always the same.
+	 *
+	 * @return The size, or -1 if it varies.
+	 */
+	private static int getFixedSize(int type) {
+		switch (type) {
+		case TAG_END: return 0;
+		case TAG_BYTE: return 1;
+		case TAG_SHORT: return 2;
+		case TAG_INT: return 4;
+		case TAG_LONG: return 8;
+		case TAG_FLOAT: return 4;
+		case TAG_DOUBLE: return 8;
+		default: return -1;
+		}
+	}
+
+	private void skipString() throws IOException {
+		skip(input.readUnsignedShort());
+	}
+
+	/**
+	 * Skips the given number of bytes.  {@link DataInput#skipBytes(int)} may
+	 * skip fewer bytes than requested (it often does on compressed streams),
+	 * so this keeps going until done.
+	 */
+	private void skip(long count) throws IOException {
+		while (count > 0) {
+			int skipped = input.skipBytes((int) Math.min(count,
+					Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				// Either the end of the stream (which throws), or a stream
+				// that can't skip right now.
+				input.readByte();
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	private static void checkDepth(int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Tried to read NBT tag with too high "
+					+ "complexity, depth > " + MAX_DEPTH);
+		}
+	}
+
+	/**
+	 * A part of a requested path.
+	 */
+	private static class PathNode {
+		/**
+		 * The name encoded the way NBT stores it.  Null for the root.
+		 */
+		public final byte[] nameBytes;
+		/**
+		 * The full path if this node was requested; null if it's only on
+		 * the way to one.
+		 */
+		public String path;
+		public final List<PathNode> children = new ArrayList<PathNode>();
+
+		public PathNode(String name, String path) {
+			this.nameBytes = (name != null ? encode(name) : null);
+			this.path = path;
+		}
+
+		public PathNode getOrCreateChild(String name) {
+			byte[] bytes = encode(name);
+			for (PathNode child : children) {
+				if (Arrays.equals(child.nameBytes, bytes)) {
+					return child;
+				}
+			}
+			PathNode child = new PathNode(name, null);
+			children.add(child);
+			return child;
+		}
+
+		/**
+		 * Encodes a name as UTF-8.  This is the same as the modified UTF-8
+		 * that {@link DataInput#readUTF()} uses, except for null characters
+		 * and supplementary characters, which don't appear in tag names.
+		 */
+		private static byte[] encode(String name) {
+			try {
+				return name.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
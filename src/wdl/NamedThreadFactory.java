@@ -0,0 +1,30 @@
+package wdl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a common name prefix.
+ */
+class NamedThreadFactory implements ThreadFactory {
+	private final String name;
+	private final int priority;
+	private final AtomicInteger count = new AtomicInteger();
+
+	public NamedThreadFactory(String name) {
+		this(name, Thread.NORM_PRIORITY);
+	}
+
+	public NamedThreadFactory(String name, int priority) {
+		this.name = name;
+		this.priority = priority;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, name + " #" + count.incrementAndGet());
+		thread.setDaemon(true);
+		thread.setPriority(priority);
+		return thread;
+	}
+}
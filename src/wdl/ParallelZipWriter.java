@@ -0,0 +1,546 @@
+package wdl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes a standard zip file, compressing the entries on several threads.
+ * <br/>
+ * {@link java.util.zip.ZipOutputStream} can only deflate one entry at a
+ * time, on the thread that writes it.  Here each file is read, checksummed
+ * and deflated on a pool thread, and the finished entries are then written
+ * out in the order they were added, followed by the central directory.
+ * <br/>
+ * Entries are kept in memory until written, so only a few (and only a
+ * limited number of bytes) are allowed to be pending at once.  Files larger
+ * than {@link #STREAM_THRESHOLD} aren't read into memory; they are
+ * compressed on the writing thread while being written, and their header is
+ * filled in afterwards.
+ * <br/>
+ * Zip64 records are used when the archive is larger than 4 GB or has more
+ * than 65535 entries, so such backups can't be opened by Java 6's
+ * {@link java.util.zip.ZipFile}, but they can by later versions and other
+ * zip tools.
+ */
+class ParallelZipWriter {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+	/**
+	 * Bit 11: names are UTF-8.
+	 */
+	private static final int FLAGS = 0x0800;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	/**
+	 * Sizes and offsets from here on are stored in Zip64 records.
+	 */
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+	/**
+	 * Entry counts from here on are stored in Zip64 records.
+	 */
+	private static final int MAX_ENTRIES = 0xFFFF;
+	/**
+	 * Files larger than this are streamed instead of being read into memory.
+	 */
+	private static final long STREAM_THRESHOLD = 8 * 1024 * 1024;
+	/**
+	 * Maximum total size of the files being compressed at once.
+	 */
+	private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+	private final FileOutputStream fileOutput;
+	private final OutputStream output;
+	private final ExecutorService compressors;
+	private final int maxPending;
+	private final int compressionLevel;
+	private final WorldBackup.IBackupProgressMonitor monitor;
+
+	/**
+	 * Entries that are being compressed, in the order they were added.
+	 */
+	private final LinkedList<Future<Entry>> pending =
+			new LinkedList<Future<Entry>>();
+	/**
+	 * The size of the file of each pending entry, in the same order.
+	 */
+	private final LinkedList<Long> pendingSizes = new LinkedList<Long>();
+	private long pendingBytes = 0;
+	/**
+	 * Entries that have been written, for the central directory.
+	 */
+	private final List<Entry> written = new ArrayList<Entry>();
+	/**
+	 * Number of bytes written so far.
+	 */
+	private long offset = 0;
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param destination The zip file to create.
+	 * @param compressionLevel The {@link Deflater} level (0-9).
+	 * @param monitor Notified as each entry is written.  May be null.
+	 */
+	public ParallelZipWriter(File destination, int compressionLevel,
+			WorldBackup.IBackupProgressMonitor monitor) throws IOException {
+		int threads = Math.max(1,
+				Runtime.getRuntime().availableProcessors() - 1);
+
+		this.fileOutput = new FileOutputStream(destination);
+		this.output = new BufferedOutputStream(fileOutput, 65536);
+		this.compressors = Executors.newFixedThreadPool(threads,
+				new NamedThreadFactory("WDL Backup Compressor"));
+		this.maxPending = threads * 2;
+		this.compressionLevel = compressionLevel;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Adds a file to the zip.  This may block while earlier entries are
+	 * written.
+	 *
+	 * @param file The file to add.
+	 * @param name The name of the entry, using <code>/</code> as separator.
+	 * @param store Whether to store the file without compressing it (for
+	 *              files whose contents are already compressed).
+	 */
+	public void addFile(final File file, final String name,
+			final boolean store) throws IOException {
+		long size = file.length();
+		if (size > STREAM_THRESHOLD) {
+			// Everything before it has to be written first.
+			while (!pending.isEmpty()) {
+				writeNextEntry();
+			}
+			writeLargeFile(file, name, store);
+			return;
+		}
+
+		pending.add(compressors.submit(new Callable<Entry>() {
+			@Override
+			public Entry call() throws IOException {
+				return compress(file, name, store);
+			}
+		}));
+		pendingSizes.add(size);
+		pendingBytes += size;
+
+		while (pending.size() > maxPending
+				|| (pendingBytes > MAX_PENDING_BYTES && pending.size() > 1)) {
+			writeNextEntry();
+		}
+	}
+
+	/**
+	 * Writes all remaining entries and the central directory, and closes
+	 * the file.
+	 */
+	public void finish() throws IOException {
+		try {
+			while (!pending.isEmpty()) {
+				writeNextEntry();
+			}
+
+			long centralStart = offset;
+			for (Entry entry : written) {
+				writeCentralHeader(entry);
+			}
+			long centralSize = offset - centralStart;
+			int count = written.size();
+
+			if (count >= MAX_ENTRIES || centralSize >= MAX_SIZE
+					|| centralStart >= MAX_SIZE) {
+				long zip64EndStart = offset;
+				writeInt(ZIP64_END_SIGNATURE);
+				writeLong(44); // Size of the rest of the record
+				writeShort(VERSION_ZIP64); // Made by
+				writeShort(VERSION_ZIP64); // Needed to extract
+				writeInt(0); // This disk
+				writeInt(0); // Disk with the central directory
+				writeLong(count);
+				writeLong(count);
+				writeLong(centralSize);
+				writeLong(centralStart);
+
+				writeInt(ZIP64_LOCATOR_SIGNATURE);
+				writeInt(0); // Disk with the Zip64 end record
+				writeLong(zip64EndStart);
+				writeInt(1); // Number of disks
+			}
+
+			writeInt(END_SIGNATURE);
+			writeShort(0); // This disk
+			writeShort(0); // Disk with the central directory
+			writeShort(Math.min(count, MAX_ENTRIES));
+			writeShort(Math.min(count, MAX_ENTRIES));
+			writeInt((int) Math.min(centralSize, MAX_SIZE));
+			writeInt((int) Math.min(centralStart, MAX_SIZE));
+			writeShort(0); // Comment length
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Stops compressing and closes the file, without finishing it.
+	 */
+	public void close() throws IOException {
+		compressors.shutdownNow();
+		pending.clear();
+		pendingSizes.clear();
+		output.close();
+	}
+
+	/**
+	 * Reads and compresses a file.  Runs on a compressor thread.
+	 */
+	private Entry compress(File file, String name, boolean store)
+			throws IOException {
+		Entry entry = new Entry();
+		entry.name = encode(name);
+		entry.dosTime = toDosTime(file.lastModified());
+
+		byte[] contents = FileUtils.readFileToByteArray(file);
+		entry.size = contents.length;
+
+		CRC32 crc = new CRC32();
+		crc.update(contents);
+		entry.crc = crc.getValue();
+
+		if (!store) {
+			Deflater deflater = new Deflater(compressionLevel, true);
+			try {
+				deflater.setInput(contents);
+				deflater.finish();
+
+				ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+						Math.max(64, contents.length / 2));
+				byte[] buffer = new byte[65536];
+				while (!deflater.finished()) {
+					int count = deflater.deflate(buffer);
+					deflated.write(buffer, 0, count);
+				}
+
+				// Keep the original if deflating didn't help.
+				if (deflated.size() < contents.length) {
+					entry.method = METHOD_DEFLATED;
+					entry.data = deflated.toByteArray();
+					return entry;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+
+		entry.method = METHOD_STORED;
+		entry.data = contents;
+		return entry;
+	}
+
+	/**
+	 * Reads a large file in chunks, compressing it (unless it is to be
+	 * stored) and writing it as it goes.  As the sizes and checksum aren't
+	 * known until the end, they are then written into the header, which
+	 * always has a Zip64 field since the sizes may turn out to be larger
+	 * than 4 GB.
+	 */
+	private void writeLargeFile(File file, String name, boolean store)
+			throws IOException {
+		Entry entry = new Entry();
+		entry.name = encode(name);
+		entry.dosTime = toDosTime(file.lastModified());
+		entry.method = (store ? METHOD_STORED : METHOD_DEFLATED);
+		entry.zip64Header = true;
+		entry.headerOffset = offset;
+
+		writeInt(LOCAL_HEADER_SIGNATURE);
+		writeShort(VERSION_ZIP64);
+		writeShort(FLAGS);
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		long crcOffset = offset;
+		writeInt(0); // CRC, filled in later
+		writeInt((int) MAX_SIZE); // Sizes are in the Zip64 field
+		writeInt((int) MAX_SIZE);
+		writeShort(entry.name.length);
+		writeShort(20); // Extra field length
+		writeBytes(entry.name);
+		writeShort(ZIP64_EXTRA_ID);
+		writeShort(16);
+		long sizesOffset = offset;
+		writeLong(0); // Sizes, filled in later
+		writeLong(0);
+
+		long dataStart = offset;
+		CRC32 crc = new CRC32();
+		Deflater deflater = (store ? null : new Deflater(compressionLevel,
+				true));
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] contents = new byte[65536];
+			byte[] buffer = new byte[65536];
+			int count;
+			while ((count = input.read(contents)) != -1) {
+				crc.update(contents, 0, count);
+				entry.size += count;
+
+				if (deflater == null) {
+					writeBytes(contents, 0, count);
+				} else {
+					deflater.setInput(contents, 0, count);
+					while (!deflater.needsInput()) {
+						writeBytes(buffer, 0, deflater.deflate(buffer));
+					}
+				}
+			}
+
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					writeBytes(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+		} finally {
+			input.close();
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		entry.crc = crc.getValue();
+		entry.compressedSize = offset - dataStart;
+
+		output.flush();
+		ByteBuffer crcBytes = ByteBuffer.allocate(4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		crcBytes.putInt((int) entry.crc).flip();
+		writeAt(crcBytes, crcOffset);
+		ByteBuffer sizeBytes = ByteBuffer.allocate(16)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		sizeBytes.putLong(entry.size).putLong(entry.compressedSize).flip();
+		writeAt(sizeBytes, sizesOffset);
+
+		written.add(entry);
+		if (monitor != null) {
+			monitor.onNextFile(name);
+		}
+	}
+
+	/**
+	 * Overwrites part of what was already written and flushed.
+	 */
+	private void writeAt(ByteBuffer bytes, long position) throws IOException {
+		FileChannel channel = fileOutput.getChannel();
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+	}
+
+	/**
+	 * Waits for the oldest pending entry and writes it.
+	 */
+	private void writeNextEntry() throws IOException {
+		Future<Entry> next = pending.removeFirst();
+		pendingBytes -= pendingSizes.removeFirst();
+		writeEntry(take(next));
+	}
+
+	/**
+	 * Writes an entry's local header and data.  Entries that are compressed
+	 * in memory are never larger than 4 GB, so they don't need Zip64
+	 * fields.
+	 */
+	private void writeEntry(Entry entry) throws IOException {
+		entry.headerOffset = offset;
+
+		writeInt(LOCAL_HEADER_SIGNATURE);
+		writeShort(VERSION);
+		writeShort(FLAGS);
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		writeInt((int) entry.crc);
+		writeInt(entry.data.length);
+		writeInt((int) entry.size);
+		writeShort(entry.name.length);
+		writeShort(0); // Extra field length
+		writeBytes(entry.name);
+		writeBytes(entry.data);
+
+		// The data isn't needed for the central directory.
+		entry.compressedSize = entry.data.length;
+		entry.data = null;
+		written.add(entry);
+
+		if (monitor != null) {
+			monitor.onNextFile(new String(entry.name, "UTF-8"));
+		}
+	}
+
+	/**
+	 * Writes an entry's header in the central directory, with a Zip64 field
+	 * for the sizes and offset that don't fit in the normal one.
+	 */
+	private void writeCentralHeader(Entry entry) throws IOException {
+		boolean largeSize = entry.size >= MAX_SIZE;
+		boolean largeCompressedSize = entry.compressedSize >= MAX_SIZE;
+		boolean largeOffset = entry.headerOffset >= MAX_SIZE;
+		int zip64Length = (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0)
+				+ (largeOffset ? 8 : 0);
+		int version = (zip64Length > 0 || entry.zip64Header ? VERSION_ZIP64
+				: VERSION);
+
+		writeInt(CENTRAL_HEADER_SIGNATURE);
+		writeShort(version); // Made by
+		writeShort(version); // Needed to extract
+		writeShort(FLAGS);
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		writeInt((int) entry.crc);
+		writeInt((int) Math.min(entry.compressedSize, MAX_SIZE));
+		writeInt((int) Math.min(entry.size, MAX_SIZE));
+		writeShort(entry.name.length);
+		writeShort(zip64Length > 0 ? zip64Length + 4 : 0); // Extra length
+		writeShort(0); // Comment length
+		writeShort(0); // Disk number
+		writeShort(0); // Internal attributes
+		writeInt(0); // External attributes
+		writeInt((int) Math.min(entry.headerOffset, MAX_SIZE));
+		writeBytes(entry.name);
+
+		if (zip64Length > 0) {
+			writeShort(ZIP64_EXTRA_ID);
+			writeShort(zip64Length);
+			if (largeSize) {
+				writeLong(entry.size);
+			}
+			if (largeCompressedSize) {
+				writeLong(entry.compressedSize);
+			}
+			if (largeOffset) {
+				writeLong(entry.headerOffset);
+			}
+		}
+	}
+
+	private static Entry take(Future<Entry> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while zipping");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new RuntimeException("WorldDownloader: Failed to compress "
+					+ "file for backup", cause);
+		}
+	}
+
+	private void writeShort(int value) throws IOException {
+		output.write(value & 0xFF);
+		output.write((value >>> 8) & 0xFF);
+		offset += 2;
+	}
+
+	private void writeInt(int value) throws IOException {
+		output.write(value & 0xFF);
+		output.write((value >>> 8) & 0xFF);
+		output.write((value >>> 16) & 0xFF);
+		output.write((value >>> 24) & 0xFF);
+		offset += 4;
+	}
+
+	private void writeLong(long value) throws IOException {
+		writeInt((int) value);
+		writeInt((int) (value >>> 32));
+	}
+
+	private void writeBytes(byte[] bytes) throws IOException {
+		writeBytes(bytes, 0, bytes.length);
+	}
+
+	private void writeBytes(byte[] bytes, int start, int length)
+			throws IOException {
+		output.write(bytes, start, length);
+		offset += length;
+	}
+
+	private static byte[] encode(String name) {
+		try {
+			return name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Converts a java timestamp to the MS-DOS format used in zip files (the
+	 * date in the high 16 bits and the time in the low 16 bits).
+	 */
+	private static int toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			// Earliest possible date: 1980-01-01.
+			return (1 << 21) | (1 << 16);
+		}
+
+		return ((year - 1980) << 25)
+				| ((calendar.get(Calendar.MONTH) + 1) << 21)
+				| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+				| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+				| (calendar.get(Calendar.MINUTE) << 5)
+				| (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	private static class Entry {
+		public byte[] name;
+		public int dosTime;
+		public int method;
+		public long crc;
+		/**
+		 * The uncompressed size.
+		 */
+		public long size;
+		public byte[] data;
+		public long compressedSize;
+		public long headerOffset;
+		/**
+		 * Whether the local header has a Zip64 field.
+		 */
+		public boolean zip64Header;
+	}
+}
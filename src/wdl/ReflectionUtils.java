@@ -1,14 +1,35 @@
 package wdl;
 
 import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Reflection utilities.
  */
 public class ReflectionUtils {
 
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Fields that have already been found, by declaring class and then by
+	 * field type.  Looking a field up is much slower than using it, and the
+	 * same few fields are stolen over and over (once per chunk, or each
+	 * time a GUI is closed).
+	 */
+	private static final Map<Class<?>, Map<Class<?>, Field>> fieldCache =
+			new HashMap<Class<?>, Map<Class<?>, Field>>();
+
 	/**
 	 * Uses Java's reflection API to get access to an unaccessible field
+	 * <br/>
+	 * The result is cached, so only the first call for a given class and
+	 * field type needs to look at the class's fields.  If there is more than
+	 * one field of that type, the first one is used and a warning is
+	 * logged.
 	 *
 	 * @param typeOfClass
 	 *            Class that the field should be read from
@@ -17,20 +38,54 @@ public class ReflectionUtils {
 	 * @return An Object of type Field
 	 */
 	public static Field stealField(Class typeOfClass, Class typeOfField) {
+		synchronized (fieldCache) {
+			Map<Class<?>, Field> fieldsByType = fieldCache.get(typeOfClass);
+			if (fieldsByType == null) {
+				fieldsByType = new HashMap<Class<?>, Field>();
+				fieldCache.put(typeOfClass, fieldsByType);
+			}
+
+			Field field = fieldsByType.get(typeOfField);
+			if (field == null) {
+				field = findField(typeOfClass, typeOfField);
+				fieldsByType.put(typeOfField, field);
+			}
+			return field;
+		}
+	}
+
+	/**
+	 * Looks through the fields of the given class for one of the given
+	 * type, without using the cache.
+	 */
+	private static Field findField(Class typeOfClass, Class typeOfField) {
 		Field[] fields = typeOfClass.getDeclaredFields();
+		Field match = null;
 	
 		for (Field f : fields) {
-			if (f.getType().equals(typeOfField)) {
-				try {
-					f.setAccessible(true);
-					return f;
-				} catch (Exception e) {
-					throw new RuntimeException(
-						"WorldDownloader: Couldn't steal Field of type \""
-						+ typeOfField + "\" from class \"" + typeOfClass
-						+ "\" !", e);
-				}
+			if (!f.getType().equals(typeOfField)) {
+				continue;
 			}
+			if (match != null) {
+				logger.warn("Class " + typeOfClass + " has more than "
+						+ "one field of type " + typeOfField + " (" 
+						+ match.getName() + " and " + f.getName() 
+						+ "); using the first one.");
+				continue;
+			}
+			try {
+				f.setAccessible(true);
+				match = f;
+			} catch (Exception e) {
+				throw new RuntimeException(
+					"WorldDownloader: Couldn't steal Field of type \""
+					+ typeOfField + "\" from class \"" + typeOfClass
+					+ "\" !", e);
+			}
+		}
+
+		if (match != null) {
+			return match;
 		}
 	
 		throw new RuntimeException(
@@ -0,0 +1,326 @@
+package wdl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import net.minecraft.client.Minecraft;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Timings and counts for one run of {@link WDL#saveEverything()}, so that
+ * changes to saving can be measured instead of guessed at.
+ * <br/>
+ * Each save records the wall time of every {@link Phase}, the number of
+ * chunks saved and skipped, the bytes written, and how long each chunk took
+ * from being handed to a writer until it was written or failed to be (for
+ * the median and 99th percentile).  When the save is done, a line is added
+ * to {@link #getHistoryFile() the history file}, and the result is kept for
+ * {@link WDL#getDebugInfo()}.
+ */
+public class SaveMetrics {
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final String HISTORY_HEADER = "date,world,totalMs,"
+			+ "playerMs,worldInfoMs,mapsMs,chunksMs,ioWaitMs,backupMs,"
+			+ "chunksSaved,chunksSkipped,chunksPerSecond,bytesWritten,"
+			+ "chunkP50Ms,chunkP99Ms";
+	private static final DateFormat HISTORY_DATE_FORMAT =
+			new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * The parts of a save.
+	 */
+	public static enum Phase {
+		PLAYER("Player"),
+		WORLD_INFO("World info"),
+		MAPS("Maps"),
+		CHUNKS("Chunks"),
+		IO_WAIT("ThreadedFileIOBase wait"),
+		BACKUP("Backup snapshot");
+
+		public final String description;
+
+		private Phase(String description) {
+			this.description = description;
+		}
+	}
+
+	/**
+	 * The save that is currently running, or null.
+	 */
+	private static volatile SaveMetrics current;
+	/**
+	 * The last save that finished, or null.
+	 */
+	private static volatile SaveMetrics last;
+
+	/**
+	 * Starts recording a new save.
+	 */
+	public static SaveMetrics begin(String worldName) {
+		SaveMetrics metrics = new SaveMetrics(worldName);
+		current = metrics;
+		return metrics;
+	}
+
+	/**
+	 * Gets the save that is currently being recorded, or null if there is
+	 * none.
+	 */
+	public static SaveMetrics getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Gets the last save that finished, or null if there hasn't been one
+	 * since the game started.
+	 */
+	public static SaveMetrics getLast() {
+		return last;
+	}
+
+	/**
+	 * Gets the file that past saves are recorded in, as comma separated
+	 * values.
+	 */
+	public static File getHistoryFile() {
+		return new File(new File(Minecraft.getMinecraft().mcDataDir, "logs"),
+				"WorldDownloader-saves.csv");
+	}
+
+	private final String worldName;
+	private final long startTime;
+	private long endTime;
+	/**
+	 * Nanoseconds spent in each phase, by {@link Phase#ordinal()}.
+	 */
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private Phase currentPhase;
+	private long currentPhaseStart;
+
+	private int chunksSaved;
+	private int chunksSkipped;
+	private long bytesWritten;
+	/**
+	 * Number of chunks whose write finished, successfully or not.
+	 */
+	private int chunksWritten;
+	/**
+	 * Time each written chunk took, in nanoseconds.  Only the first
+	 * {@link #chunksWritten} values are used.
+	 */
+	private long[] chunkNanos = new long[256];
+
+	private SaveMetrics(String worldName) {
+		this.worldName = worldName;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Ends the current phase (if any) and starts the given one.
+	 */
+	public synchronized void startPhase(Phase phase) {
+		long now = System.nanoTime();
+		endPhase(now);
+		currentPhase = phase;
+		currentPhaseStart = now;
+	}
+
+	/**
+	 * Records a chunk that was handed to a writer.
+	 */
+	public synchronized void onChunkSaved() {
+		chunksSaved++;
+	}
+
+	/**
+	 * Records a chunk whose write finished, whether it succeeded or not.
+	 * Called by the writer threads.
+	 *
+	 * @param nanos How long it took from handing the chunk to the writer
+	 *            until then.
+	 */
+	public synchronized void onChunkWritten(long nanos) {
+		if (chunksWritten == chunkNanos.length) {
+			chunkNanos = Arrays.copyOf(chunkNanos, chunkNanos.length * 2);
+		}
+		chunkNanos[chunksWritten++] = nanos;
+	}
+
+	/**
+	 * Records a chunk that didn't need saving.
+	 */
+	public synchronized void onChunkSkipped() {
+		chunksSkipped++;
+	}
+
+	/**
+	 * Records bytes written to disk.
+	 */
+	public synchronized void addBytesWritten(long bytes) {
+		bytesWritten += bytes;
+	}
+
+	/**
+	 * Ends the last phase, adds the save to the history file, and makes it
+	 * the {@link #getLast() last save}.  Should always be called once the
+	 * save is over, even if it failed, so that it stops being the
+	 * {@link #getCurrent() current save}.
+	 */
+	public void finish() {
+		synchronized (this) {
+			endPhase(System.nanoTime());
+			currentPhase = null;
+			endTime = System.currentTimeMillis();
+		}
+
+		last = this;
+		if (current == this) {
+			current = null;
+		}
+
+		if (Minecraft.getMinecraft() == null) {
+			// Headless, as in the benchmarks; there's no game folder for the
+			// history.
+			return;
+		}
+		try {
+			appendToHistory();
+		} catch (IOException e) {
+			logger.warn("Failed to write WDL save history", e);
+		}
+	}
+
+	/**
+	 * Gets a short line about the progress of the current phase, for the
+	 * progress screen.
+	 */
+	public synchronized String getProgressInfo() {
+		if (currentPhase == Phase.CHUNKS) {
+			return String.format("%.1f chunks/s, %d unchanged",
+					getChunksPerSecond(), chunksSkipped);
+		}
+		return "";
+	}
+
+	/**
+	 * Gets a readable summary of the save, one item per line.
+	 */
+	public synchronized List<String> getSummary() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("Total: " + (getEndTime() - startTime) + " ms");
+		for (Phase phase : Phase.values()) {
+			lines.add(phase.description + ": " + toMillis(getPhaseNanos(phase))
+					+ " ms");
+		}
+		lines.add("Chunks: " + chunksSaved + " saved, " + chunksSkipped
+				+ " unchanged");
+		lines.add(String.format("Throughput: %.1f chunks/s, %d bytes written",
+				getChunksPerSecond(), bytesWritten));
+		lines.add(String.format("Chunk write latency: p50 %.2f ms, p99 %.2f ms",
+				getChunkPercentile(50) / 1e6, getChunkPercentile(99) / 1e6));
+		return lines;
+	}
+
+	/**
+	 * Chunks saved per second of the chunk phase.
+	 */
+	private double getChunksPerSecond() {
+		long nanos = getPhaseNanos(Phase.CHUNKS);
+		if (nanos <= 0) {
+			return 0;
+		}
+		return chunksSaved * 1e9 / nanos;
+	}
+
+	/**
+	 * Gets the given percentile of the chunk write latencies, in
+	 * nanoseconds.
+	 */
+	private long getChunkPercentile(int percentile) {
+		if (chunksWritten == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(chunkNanos, chunksWritten);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Gets the time spent in a phase so far, including the one that is
+	 * running.
+	 */
+	private long getPhaseNanos(Phase phase) {
+		long nanos = phaseNanos[phase.ordinal()];
+		if (phase == currentPhase) {
+			nanos += System.nanoTime() - currentPhaseStart;
+		}
+		return nanos;
+	}
+
+	private long getEndTime() {
+		return (endTime != 0 ? endTime : System.currentTimeMillis());
+	}
+
+	private void endPhase(long now) {
+		if (currentPhase != null) {
+			phaseNanos[currentPhase.ordinal()] += now - currentPhaseStart;
+		}
+	}
+
+	private void appendToHistory() throws IOException {
+		StringBuilder line = new StringBuilder();
+		synchronized (HISTORY_DATE_FORMAT) {
+			line.append(HISTORY_DATE_FORMAT.format(new Date(startTime)));
+		}
+		synchronized (this) {
+			line.append(',').append(worldName.replaceAll("[,\r\n]", "_"));
+			line.append(',').append(endTime - startTime);
+			for (Phase phase : Phase.values()) {
+				line.append(',').append(toMillis(phaseNanos[phase.ordinal()]));
+			}
+			line.append(',').append(chunksSaved);
+			line.append(',').append(chunksSkipped);
+			line.append(',').append(String.format(Locale.ROOT, "%.1f",
+					getChunksPerSecond()));
+			line.append(',').append(bytesWritten);
+			line.append(',').append(String.format(Locale.ROOT, "%.2f",
+					getChunkPercentile(50) / 1e6));
+			line.append(',').append(String.format(Locale.ROOT, "%.2f",
+					getChunkPercentile(99) / 1e6));
+		}
+		line.append('\n');
+
+		File file = getHistoryFile();
+		file.getParentFile().mkdirs();
+		boolean isNew = !file.exists();
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file,
+				true), "UTF-8");
+		try {
+			if (isNew) {
+				writer.write(HISTORY_HEADER + "\n");
+			}
+			writer.write(line.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+}
@@ -0,0 +1,403 @@
+package wdl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import net.minecraft.block.Block;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.entity.Entity;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.storage.MapData;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records what reaches the WDL hooks during a download, so that the session
+ * can be replayed later without a server (see the replay benchmark in the
+ * <code>benchmark</code> folder).
+ * <br/>
+ * Packets themselves aren't recorded; instead the state that WDL reads when
+ * handling them is.  Chunks are recorded as chunk NBT on the first tick
+ * after they are loaded (once the server has filled them) and again right
+ * before they are unloaded, so a replay saves the same blocks, entities and
+ * tile entities that the real session did.
+ * <br/>
+ * The file is a gzipped stream of {@link java.io.DataOutputStream} values:
+ * a header (<code>"WDLSESSION"</code>, {@link #VERSION}, the world name and
+ * the dimension), followed by records that each start with one of the
+ * <code>RECORD_</code> bytes.  NBT is written with
+ * {@link CompressedStreamTools#write(NBTTagCompound, java.io.DataOutput)}.
+ * Entities have their server position added as an int array named
+ * {@link #SERVER_POS_TAG}, as WDL saves entities there.
+ * <br/>
+ * Sessions are only recorded when the <code>RecordSession</code> property
+ * is true.  Recording is done on the game thread and costs about as much
+ * as saving every chunk twice, so it isn't meant for normal downloads.
+ */
+public class SessionRecorder {
+	private static final Logger logger = LogManager.getLogger();
+
+	public static final String MAGIC = "WDLSESSION";
+	public static final int VERSION = 1;
+
+	/** A world tick.  No data. */
+	public static final byte RECORD_TICK = 0;
+	/** <code>doPreChunk</code> loading a chunk.  Chunk X and Z. */
+	public static final byte RECORD_CHUNK_LOAD = 1;
+	/** The contents of a loaded chunk.  Chunk X and Z, then its NBT. */
+	public static final byte RECORD_CHUNK_DATA = 2;
+	/**
+	 * <code>doPreChunk</code> unloading a chunk.  Chunk X and Z, then its
+	 * NBT as of the unload.
+	 */
+	public static final byte RECORD_CHUNK_UNLOAD = 3;
+	/**
+	 * An entity being removed.  The player's X and Z (as doubles), then the
+	 * entity's NBT.
+	 */
+	public static final byte RECORD_REMOVE_ENTITY = 4;
+	/** A map being loaded.  The map ID, then its NBT. */
+	public static final byte RECORD_MAP = 5;
+	/**
+	 * A block action.  The position (as a long), block ID, and both data
+	 * values.
+	 */
+	public static final byte RECORD_BLOCK_ACTION = 6;
+	/**
+	 * A plugin channel message.  The channel name, the payload length, then
+	 * the payload.
+	 */
+	public static final byte RECORD_CUSTOM_PAYLOAD = 7;
+	/** The end of the session.  No data. */
+	public static final byte RECORD_END = 8;
+
+	/**
+	 * Name of the tag containing an entity's server position.
+	 */
+	public static final String SERVER_POS_TAG = EntityUtils.SERVER_POS_TAG;
+
+	private static final DateFormat FILE_DATE_FORMAT =
+			new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+
+	/**
+	 * The current session, or null if none is being recorded.
+	 */
+	private static SessionRecorder session;
+
+	/**
+	 * Checks whether a session is currently being recorded.
+	 */
+	public static boolean isRecording() {
+		return session != null;
+	}
+
+	/**
+	 * Starts recording a session, if enabled.  Any session that was already
+	 * being recorded is ended first.
+	 *
+	 * @param worldName The name of the world being downloaded, used in the
+	 *            file name.
+	 */
+	public static synchronized void startSession(String worldName) {
+		endSession();
+
+		if (!WDL.baseProps.getProperty("RecordSession", "false")
+				.equals("true")) {
+			return;
+		}
+		if (!(WDL.chunkLoader instanceof AnvilChunkLoader)) {
+			WDL.chatError("Can't record the session: the chunk loader ("
+					+ WDL.chunkLoader + ") isn't an anvil chunk loader.");
+			return;
+		}
+
+		String date;
+		synchronized (FILE_DATE_FORMAT) {
+			date = FILE_DATE_FORMAT.format(new Date());
+		}
+		File folder = new File(new File(Minecraft.getMinecraft().mcDataDir,
+				"logs"), "wdl-sessions");
+		File file = new File(folder, worldName.replaceAll("[^\\w.-]", "_")
+				+ "_" + date + ".wdlsession");
+
+		try {
+			folder.mkdirs();
+			session = new SessionRecorder(file, worldName, WDL.worldClient);
+		} catch (IOException e) {
+			WDL.chatError("Failed to start recording the session to "
+					+ file + ": " + e);
+			e.printStackTrace();
+			return;
+		}
+
+		// Chunks loaded before the download started don't get a load
+		// event, so record them now.
+		for (Chunk chunk : LoadedChunkIndex.forWorld(WDL.worldClient)
+				.getChunks()) {
+			onChunkLoaded(chunk.xPosition, chunk.zPosition);
+		}
+
+		WDL.chatMsg("Recording the session to " + file.getName());
+	}
+
+	/**
+	 * Stops recording the current session.
+	 */
+	public static synchronized void endSession() {
+		SessionRecorder current = session;
+		if (current == null) {
+			return;
+		}
+		session = null;
+
+		try {
+			current.output.writeByte(RECORD_END);
+			current.output.close();
+			logger.info("Recorded " + current.records + " events to "
+					+ current.file);
+		} catch (IOException e) {
+			WDL.chatError("Failed to finish recording the session: " + e);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records a world tick, along with the contents of any chunks that
+	 * were loaded since the last one.
+	 */
+	public static synchronized void onTick(WorldClient world) {
+		if (session == null || world != session.world) {
+			return;
+		}
+
+		try {
+			session.writePendingChunks();
+			session.output.writeByte(RECORD_TICK);
+			session.records++;
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records a chunk being loaded.  Its contents are recorded on the next
+	 * tick, as the server hasn't sent them yet.
+	 */
+	public static synchronized void onChunkLoaded(int x, int z) {
+		if (session == null) {
+			return;
+		}
+
+		try {
+			session.output.writeByte(RECORD_CHUNK_LOAD);
+			session.output.writeInt(x);
+			session.output.writeInt(z);
+			session.records++;
+			session.pendingChunks.add(new ChunkCoordIntPair(x, z));
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records a chunk that is about to be unloaded, with its contents.
+	 */
+	public static synchronized void onChunkUnloading(Chunk chunk) {
+		if (session == null) {
+			return;
+		}
+
+		try {
+			// It's too late to record the contents it was loaded with;
+			// these will do.
+			ChunkCoordIntPair pos = chunk.getChunkCoordIntPair();
+			if (session.pendingChunks.remove(pos)) {
+				session.writeChunk(RECORD_CHUNK_DATA, chunk);
+			}
+			session.writeChunk(RECORD_CHUNK_UNLOAD, chunk);
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records an entity being removed from the world.  Entities that can't
+	 * be created from NBT (such as players) are skipped.
+	 */
+	public static synchronized void onEntityRemoved(Entity entity,
+			double playerX, double playerZ) {
+		if (session == null || entity == null) {
+			return;
+		}
+
+		try {
+			NBTTagCompound tag = EntityUtils.writeEntityToNBT(entity);
+			if (tag == null) {
+				return;
+			}
+
+			session.output.writeByte(RECORD_REMOVE_ENTITY);
+			session.output.writeDouble(playerX);
+			session.output.writeDouble(playerZ);
+			CompressedStreamTools.write(tag, session.output);
+			session.records++;
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records a map being loaded.
+	 */
+	public static synchronized void onMapDataLoaded(int id, MapData mapData) {
+		if (session == null || mapData == null) {
+			return;
+		}
+
+		try {
+			NBTTagCompound tag = new NBTTagCompound();
+			mapData.writeToNBT(tag);
+
+			session.output.writeByte(RECORD_MAP);
+			session.output.writeInt(id);
+			CompressedStreamTools.write(tag, session.output);
+			session.records++;
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records a block action.
+	 */
+	public static synchronized void onBlockAction(BlockPos pos, Block block,
+			int data1, int data2) {
+		if (session == null) {
+			return;
+		}
+
+		try {
+			session.output.writeByte(RECORD_BLOCK_ACTION);
+			session.output.writeLong(pos.toLong());
+			session.output.writeInt(Block.getIdFromBlock(block));
+			session.output.writeInt(data1);
+			session.output.writeInt(data2);
+			session.records++;
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Records a plugin channel message.
+	 */
+	public static synchronized void onCustomPayload(String channel,
+			byte[] payload) {
+		if (session == null) {
+			return;
+		}
+
+		try {
+			session.output.writeByte(RECORD_CUSTOM_PAYLOAD);
+			session.output.writeUTF(channel);
+			session.output.writeInt(payload.length);
+			session.output.write(payload);
+			session.records++;
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Stops recording after an error, so that the rest of the download
+	 * isn't affected.
+	 */
+	private static void fail(Exception e) {
+		WDL.chatError("Failed to record the session; recording stopped: "
+				+ e);
+		e.printStackTrace();
+		endSession();
+	}
+
+	private final File file;
+	private final WorldClient world;
+	private final AnvilChunkLoader chunkLoader;
+	private final DataOutputStream output;
+	/**
+	 * Chunks that were loaded but whose contents haven't been recorded yet.
+	 */
+	private final Set<ChunkCoordIntPair> pendingChunks =
+			new LinkedHashSet<ChunkCoordIntPair>();
+	private long records;
+
+	private SessionRecorder(File file, String worldName, WorldClient world)
+			throws IOException {
+		this.file = file;
+		this.world = world;
+		this.chunkLoader = (AnvilChunkLoader) WDL.chunkLoader;
+		this.output = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file), 65536)));
+
+		output.writeUTF(MAGIC);
+		output.writeInt(VERSION);
+		output.writeUTF(worldName);
+		output.writeInt(world.provider.getDimensionId());
+	}
+
+	/**
+	 * Records the contents of the chunks loaded since the last tick.
+	 */
+	private void writePendingChunks() throws Exception {
+		for (ChunkCoordIntPair pos : pendingChunks) {
+			Chunk chunk = world.getChunkFromChunkCoords(pos.chunkXPos,
+					pos.chunkZPos);
+			if (chunk.isLoaded()) {
+				writeChunk(RECORD_CHUNK_DATA, chunk);
+			}
+		}
+		pendingChunks.clear();
+	}
+
+	/**
+	 * Writes a chunk's NBT.  Entities are written separately from the
+	 * chunk loader's NBT so that their server positions are kept.
+	 */
+	private void writeChunk(byte type, Chunk chunk) throws Exception {
+		NBTTagCompound levelTag = ChunkSavePipeline.writeChunkToNBT(
+				chunkLoader, world, chunk);
+
+		NBTTagList entities = new NBTTagList();
+		for (Iterable<Entity> entityList : chunk.getEntityLists()) {
+			for (Entity entity : entityList) {
+				NBTTagCompound tag = EntityUtils.writeEntityToNBT(entity);
+				if (tag != null) {
+					entities.appendTag(tag);
+				}
+			}
+		}
+		levelTag.setTag("Entities", entities);
+
+		output.writeByte(type);
+		output.writeInt(chunk.xPosition);
+		output.writeInt(chunk.zPosition);
+		CompressedStreamTools.write(levelTag, output);
+		records++;
+	}
+}
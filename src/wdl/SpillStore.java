@@ -0,0 +1,332 @@
+package wdl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Temporary files that the download session's state is moved into when
+ * too much of it is kept in memory (see {@link EntityChunkMap} and
+ * {@link TileEntityChunkMap}).
+ * <br/>
+ * Entries are lists of NBT compounds, grouped by a name (such as
+ * "entities") and a key (such as the chunk).  Adding to an entry appends
+ * to its file, so spilling more of the same chunk later doesn't need to
+ * read what was already there.  Taking an entry reads it back and deletes
+ * it.
+ * <br/>
+ * Appending only queues the tags; they are written by a background thread,
+ * so that spilling (which happens on the client thread) doesn't wait for
+ * the disk.  Until then they are kept in memory, and taking the entry
+ * returns them along with what was already written.
+ * <br/>
+ * The folder is emptied when the store is created (in case the game
+ * crashed during the last session) and deleted when it is
+ * {@linkplain #close() closed}.
+ */
+public class SpillStore {
+	private final File folder;
+	/**
+	 * The keys that have a file, by group.
+	 */
+	private final Map<String, Set<Long>> keys =
+			new HashMap<String, Set<Long>>();
+	/**
+	 * Appended tags that haven't been written yet, by file, oldest first.
+	 */
+	private final Map<File, List<NBTTagList>> unwritten =
+			new HashMap<File, List<NBTTagList>>();
+	/**
+	 * The file that the writer thread is currently appending to, or null.
+	 */
+	private File writing;
+	/**
+	 * The first error that the writer thread ran into.  Once set, nothing
+	 * more is written, and what wasn't written stays in memory.
+	 */
+	private IOException writeFailure;
+	private final ExecutorService writer = Executors
+			.newSingleThreadExecutor(new NamedThreadFactory("WDL Spill Writer"));
+	private long bytesWritten;
+	private boolean closed;
+
+	/**
+	 * Creates a store.  Nothing is written until something is spilled.
+	 *
+	 * @param folder The folder to put the files in.  Anything already in
+	 *            it is deleted.
+	 */
+	public SpillStore(File folder) {
+		this.folder = folder;
+		FileUtils.deleteQuietly(folder);
+	}
+
+	/**
+	 * Appends tags to an entry.  They are written in the background.
+	 *
+	 * @param group The group of the entry.
+	 * @param key The key of the entry within the group.
+	 * @param tags The compounds to add.  Must not be changed afterwards.
+	 * @throws IOException If the store is closed, or if an earlier write
+	 *             failed.
+	 */
+	public synchronized void append(String group, long key, NBTTagList tags)
+			throws IOException {
+		if (closed) {
+			throw new IOException("Spill store " + folder + " is closed");
+		}
+		if (writeFailure != null) {
+			throw new IOException("Failed to write to spill store " + folder,
+					writeFailure);
+		}
+
+		final File file = getFile(group, key);
+		List<NBTTagList> fileTags = unwritten.get(file);
+		if (fileTags == null) {
+			fileTags = new ArrayList<NBTTagList>();
+			unwritten.put(file, fileTags);
+		}
+		fileTags.add(tags);
+		getKeys(group).add(key);
+
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				write(file);
+			}
+		});
+	}
+
+	/**
+	 * Writes the unwritten tags of a file.  Runs on the writer thread.
+	 */
+	private void write(File file) {
+		List<NBTTagList> fileTags;
+		synchronized (this) {
+			if (closed || writeFailure != null) {
+				return;
+			}
+			fileTags = unwritten.remove(file);
+			if (fileTags == null) {
+				// Already written by an earlier task, or taken back
+				return;
+			}
+			writing = file;
+		}
+
+		file.getParentFile().mkdirs();
+		long lengthBefore = file.length();
+		long written = 0;
+		IOException failure = null;
+		try {
+			DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file, true)));
+			try {
+				for (NBTTagList tags : fileTags) {
+					NBTTagCompound root = new NBTTagCompound();
+					root.setTag("Entries", tags);
+					CompressedStreamTools.write(root, output);
+				}
+			} finally {
+				output.close();
+			}
+			written = file.length() - lengthBefore;
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		synchronized (this) {
+			writing = null;
+			if (failure == null) {
+				bytesWritten += written;
+			} else {
+				// Keep the tags in memory, ahead of anything appended since,
+				// and cut off whatever part of them made it into the file.
+				writeFailure = failure;
+				List<NBTTagList> newer = unwritten.remove(file);
+				if (newer != null) {
+					fileTags.addAll(newer);
+				}
+				unwritten.put(file, fileTags);
+				truncate(file, lengthBefore);
+
+				WDL.chatError("Failed to write spilled data; keeping it in "
+						+ "memory instead: " + failure);
+				failure.printStackTrace();
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Cuts a file back to the given length, after a failed append.
+	 */
+	private static void truncate(File file, long length) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads an entry and removes it from the store.
+	 *
+	 * @return All of the compounds that were appended to the entry, oldest
+	 *         first.  Empty if there weren't any.
+	 */
+	public synchronized NBTTagList take(String group, long key)
+			throws IOException {
+		NBTTagList tags = new NBTTagList();
+		if (!getKeys(group).remove(key)) {
+			return tags;
+		}
+
+		File file = getFile(group, key);
+		try {
+			while (file.equals(writing)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			getKeys(group).add(key);
+			throw new InterruptedIOException(
+					"Interrupted while waiting for spill writer");
+		}
+		List<NBTTagList> fileTags = unwritten.remove(file);
+
+		if (file.exists()) {
+			readFile(file, tags);
+		}
+		if (fileTags != null) {
+			for (NBTTagList list : fileTags) {
+				for (int i = 0; i < list.tagCount(); i++) {
+					tags.appendTag(list.getCompoundTagAt(i));
+				}
+			}
+		}
+
+		return tags;
+	}
+
+	/**
+	 * Reads all of the compounds in a file into the given list, and deletes
+	 * the file.
+	 */
+	private static void readFile(File file, NBTTagList tags)
+			throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			while (true) {
+				NBTTagCompound root;
+				try {
+					root = CompressedStreamTools.read(input);
+				} catch (EOFException e) {
+					break;
+				}
+
+				NBTTagList entries = root.getTagList("Entries", 10);
+				for (int i = 0; i < entries.tagCount(); i++) {
+					tags.appendTag(entries.getCompoundTagAt(i));
+				}
+			}
+		} finally {
+			input.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Checks whether an entry has anything spilled.
+	 */
+	public synchronized boolean contains(String group, long key) {
+		return getKeys(group).contains(key);
+	}
+
+	/**
+	 * Gets the number of bytes spilled so far, including entries that have
+	 * since been taken back.
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Deletes all of the files, dropping anything not yet written.  Nothing
+	 * can be spilled afterwards.
+	 */
+	public synchronized void close() {
+		closed = true;
+		keys.clear();
+		unwritten.clear();
+		writer.shutdown();
+		// Don't delete the folder out from under a write in progress
+		boolean interrupted = false;
+		while (writing != null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		FileUtils.deleteQuietly(folder);
+	}
+
+	private Set<Long> getKeys(String group) {
+		Set<Long> groupKeys = keys.get(group);
+		if (groupKeys == null) {
+			groupKeys = new HashSet<Long>();
+			keys.put(group, groupKeys);
+		}
+		return groupKeys;
+	}
+
+	private File getFile(String group, long key) {
+		return new File(new File(folder, group), Long.toHexString(key)
+				+ ".nbt");
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder("SpillStore [folder=")
+				.append(folder);
+		for (Map.Entry<String, Set<Long>> e : keys.entrySet()) {
+			result.append(", ").append(e.getKey()).append('=')
+					.append(e.getValue().size());
+		}
+		return result.append(", unwritten=").append(unwritten.size())
+				.append(", bytesWritten=").append(bytesWritten)
+				.append(']').toString();
+	}
+}
@@ -0,0 +1,224 @@
+package wdl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.ChunkCoordIntPair;
+
+/**
+ * Tile entities that were saved by the player (by opening containers and
+ * such) during the session, by position and grouped by chunk.
+ * <br/>
+ * If created with a {@link SpillStore}, only a limited number of tile
+ * entities are kept in memory.  Past that, the tile entities of the chunks
+ * that were used least recently are written to the store as NBT, and read
+ * back the next time anything in their chunk is asked for.  Spilled tile
+ * entities are recreated from their NBT, so they are copies; that's fine,
+ * as a tile entity is only ever put here once it's done changing.
+ */
+public class TileEntityChunkMap {
+	/**
+	 * Group used for the tile entities in the {@link SpillStore}.
+	 */
+	private static final String SPILL_GROUP = "tileEntities";
+
+	/**
+	 * Tile entities in memory, by
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)} and then by position.
+	 * Ordered least recently used first.
+	 */
+	private final LinkedHashMap<Long, Map<BlockPos, TileEntity>> byChunk =
+			new LinkedHashMap<Long, Map<BlockPos, TileEntity>>(16, 0.75f, true);
+	/**
+	 * Number of tile entities in memory.
+	 */
+	private int inMemory;
+	/**
+	 * Number of tile entities spilled.
+	 */
+	private int spilled;
+
+	private final SpillStore spillStore;
+	private final int maxInMemory;
+	/**
+	 * Whether writing to the spill store failed, in which case everything
+	 * is kept in memory from then on.
+	 */
+	private boolean spillFailed;
+
+	/**
+	 * Creates a map that keeps everything in memory.
+	 */
+	public TileEntityChunkMap() {
+		this(null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a map that spills to the given store.
+	 *
+	 * @param spillStore The store to write tile entities to.
+	 * @param maxInMemory Number of tile entities to keep in memory before
+	 *            spilling.
+	 */
+	public TileEntityChunkMap(SpillStore spillStore, int maxInMemory) {
+		this.spillStore = spillStore;
+		this.maxInMemory = maxInMemory;
+	}
+
+	/**
+	 * Adds a tile entity, replacing any other one at that position.
+	 */
+	public synchronized void put(BlockPos pos, TileEntity te) {
+		Map<BlockPos, TileEntity> chunk = getChunk(getKey(pos), true);
+		if (chunk.put(pos, te) == null) {
+			inMemory++;
+		}
+
+		if (inMemory > maxInMemory) {
+			spill();
+		}
+	}
+
+	/**
+	 * Gets the tile entity at the given position, reading back its chunk
+	 * if it was spilled.
+	 *
+	 * @return The tile entity, or null if none was saved there.
+	 */
+	public synchronized TileEntity get(BlockPos pos) {
+		Map<BlockPos, TileEntity> chunk = getChunk(getKey(pos), false);
+		return (chunk != null ? chunk.get(pos) : null);
+	}
+
+	/**
+	 * Checks whether a tile entity was saved at the given position.
+	 */
+	public synchronized boolean containsKey(BlockPos pos) {
+		return get(pos) != null;
+	}
+
+	/**
+	 * Gets the total number of tile entities, including spilled ones.
+	 */
+	public synchronized int size() {
+		return inMemory + spilled;
+	}
+
+	/**
+	 * Gets a chunk's tile entities, reading back any that were spilled and
+	 * marking the chunk as the most recently used.
+	 *
+	 * @param create Whether to create the map if there isn't one.
+	 */
+	private Map<BlockPos, TileEntity> getChunk(long key, boolean create) {
+		unspill(key);
+
+		Map<BlockPos, TileEntity> chunk = byChunk.get(key);
+		if (chunk == null && create) {
+			chunk = new HashMap<BlockPos, TileEntity>();
+			byChunk.put(key, chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Hands the tile entities of the least recently used chunks to the
+	 * spill store until a quarter of the limit is free.  The store writes
+	 * them in the background.
+	 */
+	private void spill() {
+		if (spillStore == null || spillFailed) {
+			return;
+		}
+
+		Iterator<Map.Entry<Long, Map<BlockPos, TileEntity>>> itr =
+				byChunk.entrySet().iterator();
+		while (inMemory > maxInMemory * 3 / 4 && itr.hasNext()) {
+			Map.Entry<Long, Map<BlockPos, TileEntity>> e = itr.next();
+
+			NBTTagList tags = new NBTTagList();
+			for (TileEntity te : e.getValue().values()) {
+				NBTTagCompound tag = new NBTTagCompound();
+				te.writeToNBT(tag);
+				tags.appendTag(tag);
+			}
+
+			try {
+				spillStore.append(SPILL_GROUP, e.getKey(), tags);
+			} catch (IOException ex) {
+				spillFailed = true;
+				WDL.chatError("Failed to spill tile entities to disk; "
+						+ "keeping them in memory instead: " + ex);
+				ex.printStackTrace();
+				return;
+			}
+
+			inMemory -= e.getValue().size();
+			spilled += e.getValue().size();
+			itr.remove();
+		}
+	}
+
+	/**
+	 * Reads back the spilled tile entities of the given chunk, if there are
+	 * any.  Tile entities already in memory are newer, so they are kept.
+	 */
+	private void unspill(long key) {
+		if (spillStore == null || !spillStore.contains(SPILL_GROUP, key)) {
+			return;
+		}
+
+		NBTTagList tags;
+		try {
+			tags = spillStore.take(SPILL_GROUP, key);
+		} catch (IOException e) {
+			WDL.chatError("Failed to read back spilled tile entities: " + e);
+			e.printStackTrace();
+			return;
+		}
+
+		Map<BlockPos, TileEntity> chunk = byChunk.get(key);
+		if (chunk == null) {
+			chunk = new HashMap<BlockPos, TileEntity>();
+			byChunk.put(key, chunk);
+		}
+
+		// A chunk is only spilled as a whole, so its file only has one copy
+		// of each position.
+		spilled -= tags.tagCount();
+		for (int i = 0; i < tags.tagCount(); i++) {
+			TileEntity te = TileEntity.createAndLoadEntity(
+					tags.getCompoundTagAt(i));
+			if (te != null && !chunk.containsKey(te.getPos())) {
+				chunk.put(te.getPos(), te);
+				inMemory++;
+			}
+		}
+	}
+
+	private static long getKey(BlockPos pos) {
+		return ChunkCoordIntPair.chunkXZ2Int(pos.getX() >> 4, pos.getZ() >> 4);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder("{");
+		for (Map<BlockPos, TileEntity> chunk : byChunk.values()) {
+			for (Map.Entry<BlockPos, TileEntity> e : chunk.entrySet()) {
+				if (result.length() > 1) {
+					result.append(", ");
+				}
+				result.append(e.getKey()).append('=').append(e.getValue());
+			}
+		}
+		return result.append("} (+").append(spilled).append(" spilled)")
+				.toString();
+	}
+}
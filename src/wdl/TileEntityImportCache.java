@@ -0,0 +1,149 @@
+package wdl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+
+/**
+ * Caches the tile entities from the previously saved version of the world,
+ * so that {@link WDL#importTileEntities} doesn't need to read and decompress
+ * the old chunk every time that chunk is saved.
+ * <br/>
+ * Each chunk is read from the region files (through {@link AnvilRegionFile},
+ * which also writes them) the first time it's needed in a download session
+ * (using {@link NBTPartialReader}, so the block data is skipped rather than
+ * decoded), and only the tile entities of a type that
+ * {@link WDL#isImportableTileEntityType(TileEntity) can be imported} are
+ * kept, indexed by chunk.  The live world isn't read.
+ * <br/>
+ * As chunks are saved multiple times during a session, the cache must be
+ * created before anything from the session is saved, so that it holds the
+ * old tile entities rather than ones that were just written.
+ * <br/>
+ * To keep memory bounded over a long download, only the
+ * {@link #MAX_CHUNKS} most recently used chunks are kept.  A chunk that was
+ * dropped is read again when it's next saved, which then gives the tile
+ * entities WDL wrote for it: the imported ones plus the ones from the
+ * session, which is what would be imported anyways.
+ */
+public class TileEntityImportCache {
+	/**
+	 * The folder containing the region files.
+	 */
+	private final File chunkSaveLocation;
+	/**
+	 * Maximum number of chunks kept; enough for everything loaded at a
+	 * render distance of 16 or so.
+	 */
+	private static final int MAX_CHUNKS = 2048;
+	/**
+	 * Importable tile entities by
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}, least recently used
+	 * first.  Chunks that were read but had none have an empty list.
+	 */
+	private final Map<Long, List<TileEntity>> tileEntitiesByChunk =
+			new LinkedHashMap<Long, List<TileEntity>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Long, List<TileEntity>> eldest) {
+			return size() > MAX_CHUNKS;
+		}
+	};
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param chunkSaveLocation The folder containing the region files.
+	 */
+	public TileEntityImportCache(File chunkSaveLocation) {
+		this.chunkSaveLocation = chunkSaveLocation;
+	}
+
+	/**
+	 * Gets the old tile entities that should be imported into the given
+	 * chunk.
+	 *
+	 * @param world The world to create the tile entities in.
+	 * @return The tile entities (possibly empty).  Don't modify it.
+	 */
+	public synchronized List<TileEntity> getTileEntities(World world,
+			int chunkX, int chunkZ) throws IOException {
+		Long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+		List<TileEntity> tileEntities = tileEntitiesByChunk.get(key);
+		if (tileEntities == null) {
+			tileEntities = readTileEntities(world, chunkX, chunkZ);
+			tileEntitiesByChunk.put(key, tileEntities);
+		}
+		return tileEntities;
+	}
+
+	/**
+	 * Reads the importable tile entities from the old version of the chunk.
+	 */
+	private List<TileEntity> readTileEntities(World world, int chunkX,
+			int chunkZ) throws IOException {
+		DataInputStream dis = AnvilRegionFile.getChunkInputStream(
+				chunkSaveLocation, chunkX, chunkZ);
+
+		if (dis == null) {
+			// This happens whenever the chunk hasn't been saved before.
+			// It's a normal case.
+			return Collections.emptyList();
+		}
+
+		// Only the tile entities are needed; skip over the block data.
+		NBTBase tag;
+		try {
+			tag = NBTPartialReader.read(dis, "Level/TileEntities").get(
+					"Level/TileEntities");
+		} finally {
+			dis.close();
+		}
+
+		if (!(tag instanceof NBTTagList)) {
+			return Collections.emptyList();
+		}
+		// The official code checks if the chunk is in the right location.
+		// Should I too?.
+		NBTTagList tileEntitiesNBT = (NBTTagList) tag;
+
+		List<TileEntity> returned = new ArrayList<TileEntity>();
+		for (int i = 0; i < tileEntitiesNBT.tagCount(); i++) {
+			TileEntity te = TileEntity.createAndLoadEntity(tileEntitiesNBT
+					.getCompoundTagAt(i));
+			if (te == null) {
+				// Unknown ID.
+				continue;
+			}
+
+			te.setWorldObj(world);
+
+			// Only the type can be checked here: this can run on another
+			// thread, for a chunk that may no longer be loaded.  The block is
+			// checked against the saved chunk by
+			// WDL.getTileEntitiesToImport.
+			if (WDL.isImportableTileEntityType(te)) {
+				returned.add(te);
+			} else {
+				String entityType = te.getClass().getCanonicalName();
+				WDL.chatDebug(WDLMessageTypes.LOAD_TILE_ENTITY,
+						te.getPos().getX() >> 4, te.getPos().getZ() >> 4,
+						entityType, "Old TE does not need importing: %s at %s",
+						entityType, te.getPos());
+			}
+		}
+
+		return returned;
+	}
+}
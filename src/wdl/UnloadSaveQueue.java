@@ -0,0 +1,334 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.chunk.Chunk;
+
+/**
+ * Saves chunks that were unloaded while downloading on a background thread,
+ * so that unloading a chunk doesn't stall the client thread with importing
+ * tile entities and serializing the chunk.
+ * <br/>
+ * When a chunk is unloaded, a {@link ChunkSnapshot} of it is captured and
+ * held back for a while ({@link #POSTPONE_NANOS}).  If the chunk is loaded
+ * again before then (such as when moving back and forth across the edge of
+ * the view distance), the snapshot is dropped, as the loaded chunk will be
+ * saved anyways; otherwise it is queued.  A saved snapshot that is the same
+ * as what was last written is skipped (see {@link ChunkFingerprints}).
+ * <br/>
+ * The queue is bounded.  The client thread never waits for room in it: if
+ * the saver falls behind, snapshots stay held back until there is room
+ * (past {@link #MAX_POSTPONED}, they are queued as soon as there is).
+ * <br/>
+ * {@link ChunkFlusher} also {@linkplain #offer(ChunkSnapshot) queues}
+ * snapshots of loaded chunks here, so that only capturing them happens on
+ * the client thread.
+ * <br/>
+ * Chunks are saved in the order that they were queued.  Anything else that
+ * saves chunks needs to keep that order: {@link ChunkFlusher} skips chunks
+ * that are {@linkplain #isQueued(int, int) still queued}, and
+ * {@link WDL#saveChunks} {@linkplain #flush() flushes} the queue first.
+ */
+public class UnloadSaveQueue {
+	/**
+	 * Maximum number of chunks waiting to be saved.  A snapshot takes up
+	 * to about 200 KB.
+	 */
+	private static final int CAPACITY = 64;
+	/**
+	 * How long an unloaded chunk is held back before it is queued, in
+	 * nanoseconds.
+	 */
+	private static final long POSTPONE_NANOS = TimeUnit.SECONDS.toNanos(30);
+	/**
+	 * Maximum number of held back chunks; past that, the oldest ones are
+	 * queued early (if there is room in the queue).
+	 */
+	private static final int MAX_POSTPONED = 128;
+	/**
+	 * How often the save thread checks that the saver is still running
+	 * while waiting for it, in milliseconds.
+	 */
+	private static final long SAVER_CHECK_MILLIS = 1000L;
+
+	private static final BlockingQueue<ChunkSnapshot> queue =
+			new ArrayBlockingQueue<ChunkSnapshot>(CAPACITY);
+	/**
+	 * Number of queued or currently saving snapshots of each chunk, by
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}.  Also used as the
+	 * lock for everything else here.
+	 */
+	private static final Map<Long, Integer> pending =
+			new HashMap<Long, Integer>();
+	/**
+	 * Snapshots that haven't been queued yet, by
+	 * {@link ChunkCoordIntPair#chunkXZ2Int(int, int)}, oldest first.
+	 */
+	private static final LinkedHashMap<Long, Postponed> postponed =
+			new LinkedHashMap<Long, Postponed>();
+	private static Thread saverThread;
+
+	/**
+	 * Number of held back snapshots that were dropped since the chunk was
+	 * loaded again.
+	 */
+	private static int reloadedCount;
+
+	/**
+	 * Holds back a snapshot of the given chunk to be saved.  Should be
+	 * called on the client thread, before the chunk is unloaded.  Never
+	 * blocks.
+	 */
+	public static void submit(Chunk chunk) {
+		ChunkSnapshot snapshot = ChunkSnapshot.capture(chunk);
+		long key = ChunkCoordIntPair.chunkXZ2Int(chunk.xPosition,
+				chunk.zPosition);
+
+		synchronized (pending) {
+			postponed.remove(key);
+			postponed.put(key, new Postponed(snapshot, System.nanoTime()));
+
+			queuePostponed();
+		}
+	}
+
+	/**
+	 * Queues a snapshot to be saved right away, unless the queue is full.
+	 * Never blocks, so it can be used on the client thread.
+	 *
+	 * @return Whether the snapshot was queued.
+	 */
+	public static boolean offer(ChunkSnapshot snapshot) {
+		long key = ChunkCoordIntPair.chunkXZ2Int(snapshot.x, snapshot.z);
+		onQueueing(key);
+		if (queue.offer(snapshot)) {
+			return true;
+		}
+		onSaved(key);
+		return false;
+	}
+
+	/**
+	 * Should be called when a chunk is loaded.  Drops its held back
+	 * snapshot, if there is one.
+	 */
+	public static void onChunkLoaded(int chunkX, int chunkZ) {
+		synchronized (pending) {
+			if (postponed.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX,
+					chunkZ)) != null) {
+				reloadedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Should be called each tick.  Queues the snapshots that have been held
+	 * back long enough, as long as there is room.  Never blocks.
+	 */
+	public static void onWorldTick() {
+		synchronized (pending) {
+			queuePostponed();
+		}
+	}
+
+	/**
+	 * Queues all held back snapshots, and then waits until all queued
+	 * chunks have been saved.  Should not be called on the client thread.
+	 */
+	public static void flush() throws InterruptedException {
+		List<ChunkSnapshot> all = new ArrayList<ChunkSnapshot>();
+		synchronized (pending) {
+			for (Postponed p : postponed.values()) {
+				all.add(p.snapshot);
+			}
+			postponed.clear();
+		}
+
+		enqueue(all);
+
+		synchronized (pending) {
+			while (!pending.isEmpty()) {
+				// In case the saver died, so that this doesn't wait forever.
+				ensureSaverRunning();
+				pending.wait(SAVER_CHECK_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Should be called when a download starts.  Drops any held back
+	 * snapshots, which would be from another world.
+	 */
+	public static void reset() {
+		synchronized (pending) {
+			postponed.clear();
+			reloadedCount = 0;
+		}
+	}
+
+	/**
+	 * Checks whether a snapshot of the given chunk is waiting to be saved (or
+	 * is being saved).
+	 */
+	public static boolean isQueued(int chunkX, int chunkZ) {
+		synchronized (pending) {
+			return pending.containsKey(ChunkCoordIntPair.chunkXZ2Int(chunkX,
+					chunkZ));
+		}
+	}
+
+	/**
+	 * Gets a short description of the queue's state, for the debug info.
+	 */
+	public static String getDebugInfo() {
+		synchronized (pending) {
+			int queued = 0;
+			for (int count : pending.values()) {
+				queued += count;
+			}
+			return queued + " queued, " + postponed.size() + " held back, "
+					+ reloadedCount + " dropped after reloading";
+		}
+	}
+
+	/**
+	 * Queues the held back snapshots that have been held back long enough,
+	 * or that are past {@link #MAX_POSTPONED}, oldest first.  Stops once the
+	 * queue is full; the rest stay held back and are tried again next tick.
+	 * Must be called while synchronized on {@link #pending}.
+	 */
+	private static void queuePostponed() {
+		long now = System.nanoTime();
+		Iterator<Postponed> itr = postponed.values().iterator();
+		while (itr.hasNext()) {
+			Postponed p = itr.next();
+			if (postponed.size() <= MAX_POSTPONED
+					&& now - p.time < POSTPONE_NANOS) {
+				break;
+			}
+			if (!offer(p.snapshot)) {
+				break;
+			}
+			itr.remove();
+		}
+	}
+
+	/**
+	 * Queues the given snapshots, in order, waiting for room if needed.
+	 * Only for the save thread.
+	 */
+	private static void enqueue(List<ChunkSnapshot> snapshots)
+			throws InterruptedException {
+		for (ChunkSnapshot snapshot : snapshots) {
+			long key = ChunkCoordIntPair.chunkXZ2Int(snapshot.x, snapshot.z);
+			onQueueing(key);
+
+			try {
+				while (!queue.offer(snapshot, SAVER_CHECK_MILLIS,
+						TimeUnit.MILLISECONDS)) {
+					synchronized (pending) {
+						ensureSaverRunning();
+					}
+				}
+			} catch (InterruptedException e) {
+				onSaved(key);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Counts a snapshot as pending before it is put in the queue, and makes
+	 * sure that the saver is running.
+	 */
+	private static void onQueueing(long key) {
+		synchronized (pending) {
+			Integer count = pending.get(key);
+			pending.put(key, count == null ? 1 : count + 1);
+
+			ensureSaverRunning();
+		}
+	}
+
+	/**
+	 * Starts the saver if it isn't running (yet, or anymore).  Must be
+	 * called while synchronized on {@link #pending}.
+	 */
+	private static void ensureSaverRunning() {
+		if (saverThread == null || !saverThread.isAlive()) {
+			saverThread = new NamedThreadFactory("WDL Unload Saver")
+					.newThread(new Saver());
+			saverThread.start();
+		}
+	}
+
+	private static void onSaved(long key) {
+		synchronized (pending) {
+			Integer count = pending.get(key);
+			if (count == null || count <= 1) {
+				pending.remove(key);
+			} else {
+				pending.put(key, count - 1);
+			}
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Saves queued chunks until the game closes.
+	 */
+	private static class Saver implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				ChunkSnapshot snapshot;
+				try {
+					snapshot = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					WDL.saveChunk(snapshot, null);
+				} catch (Throwable e) {
+					// Including errors, as the saver would otherwise die
+					// and leave flush() waiting forever.
+					ChunkFlusher.markDirty(snapshot.x, snapshot.z);
+					WDL.chatError("Failed to save chunk at "
+							+ snapshot.x + ", " + snapshot.z + ": " + e);
+					e.printStackTrace();
+				} finally {
+					onSaved(ChunkCoordIntPair.chunkXZ2Int(snapshot.x,
+							snapshot.z));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A held back snapshot.
+	 */
+	private static class Postponed {
+		public final ChunkSnapshot snapshot;
+		/**
+		 * When the chunk was unloaded, from {@link System#nanoTime()}.
+		 */
+		public final long time;
+
+		public Postponed(ChunkSnapshot snapshot, long time) {
+			this.snapshot = snapshot;
+			this.time = time;
+		}
+	}
+
+	private UnloadSaveQueue() { }
+}
@@ -1,5 +1,6 @@
 package wdl;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,13 +9,14 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockBeacon;
@@ -30,20 +32,20 @@ import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.client.gui.GuiButton;
 import net.minecraft.client.gui.GuiIngameMenu;
 import net.minecraft.client.gui.GuiScreen;
-import net.minecraft.client.multiplayer.ChunkProviderClient;
 import net.minecraft.client.multiplayer.ServerData;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.client.resources.I18n;
 import net.minecraft.entity.Entity;
-import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.inventory.Container;
 import net.minecraft.inventory.IInventory;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTBase;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.nbt.NBTTagDouble;
 import net.minecraft.nbt.NBTTagFloat;
 import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagLong;
 import net.minecraft.network.NetworkManager;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.tileentity.TileEntityBeacon;
@@ -54,16 +56,16 @@ import net.minecraft.tileentity.TileEntityFurnace;
 import net.minecraft.tileentity.TileEntityHopper;
 import net.minecraft.tileentity.TileEntityNote;
 import net.minecraft.util.BlockPos;
-import net.minecraft.util.LongHashMap;
+import net.minecraft.world.ChunkCoordIntPair;
 import net.minecraft.world.MinecraftException;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.storage.AnvilSaveConverter;
 import net.minecraft.world.chunk.storage.IChunkLoader;
-import net.minecraft.world.chunk.storage.RegionFileCache;
 import net.minecraft.world.storage.ISaveHandler;
 import net.minecraft.world.storage.MapData;
 import net.minecraft.world.storage.SaveHandler;
 import net.minecraft.world.storage.ThreadedFileIOBase;
+import wdl.WorldBackup.IBackupProgressMonitor;
 import wdl.WorldBackup.WorldBackupType;
 import wdl.api.IWDLMessageType;
 import wdl.api.IWDLMod;
@@ -125,20 +127,39 @@ public class WDL {
 	 */
 	public static SaveHandler saveHandler;
 	/**
-	 * For the chunks (despite the name it does also SAVE chunks)
+	 * For the chunks (despite the name it does also SAVE chunks; it builds
+	 * their NBT, which is then written by the {@link #chunkWriter} or a
+	 * {@link ChunkSavePipeline})
 	 */
 	public static IChunkLoader chunkLoader;
+	/**
+	 * Writes chunks into the same folder as the {@link #chunkLoader}, when
+	 * they aren't saved through a {@link ChunkSavePipeline}.
+	 */
+	public static AnvilChunkWriter chunkWriter;
+	/**
+	 * Tile entities from the previously saved version of the world, for
+	 * {@linkplain #importTileEntities(Chunk) importing}.
+	 */
+	public static TileEntityImportCache tileEntityImportCache;
 
 	/**
 	 * Positions and contents of all of the new tileentities, to be overwritten
 	 * from the old version when {@linkplain #importTileEntities(Chunk) saving}.
 	 */
-	public static HashMap<BlockPos, TileEntity> newTileEntities = new HashMap<BlockPos, TileEntity>();
+	public static TileEntityChunkMap newTileEntities = new TileEntityChunkMap();
+	
+	/**
+	 * All entities that were downloaded, by EID and by chunk.
+	 */
+	public static EntityChunkMap newEntities = new EntityChunkMap();
 	
 	/**
-	 * All entities that were downloaded.  The key is the entity's EID.
+	 * Where {@link #newTileEntities} and {@link #newEntities} are moved to
+	 * once too many are kept in memory.  Null when there is no session
+	 * (before the first download, and once the last save has finished).
 	 */
-	public static HashMap<Integer, Entity> newEntities = new HashMap<Integer, Entity>();
+	private static SpillStore spillStore;
 	
 	/**
 	 * All of the {@link MapData}s that were sent to the client in the current
@@ -181,6 +202,11 @@ public class WDL {
 	 * Used when going thru portals or otherwise saving data.
 	 */
 	public static boolean worldLoadingDeferred = false;
+	/**
+	 * Number of chunks that {@link #saveChunks} captures on the client
+	 * thread at once, so that the game only pauses briefly each time.
+	 */
+	private static final int SNAPSHOT_BATCH_SIZE = 16;
 
 	// Names:
 	/**
@@ -212,7 +238,11 @@ public class WDL {
 		defaultProps.setProperty("WorldName", "");
 		defaultProps.setProperty("LinkedWorlds", "");
 		defaultProps.setProperty("AutoStart", "false");
+		defaultProps.setProperty("RecordSession", "false");
+		defaultProps.setProperty("SpillThreshold", "4096");
 		defaultProps.setProperty("Backup", "ZIP");
+		defaultProps.setProperty("BackupCompressionLevel", "6");
+		defaultProps.setProperty("BackupStoreRegionFiles", "true");
 		defaultProps.setProperty("AllowCheats", "true");
 		defaultProps.setProperty("GameType", "keep");
 		defaultProps.setProperty("Time", "keep");
@@ -233,6 +263,7 @@ public class WDL {
 		defaultProps.setProperty("PlayerFood", "20");
 		
 		defaultProps.setProperty("Messages.globalDebugEnabled", "true");
+		defaultProps.setProperty("Messages.eventLog", "false");
 		for (WDLMessageTypes cause : WDLMessageTypes.values()) {
 			defaultProps.setProperty("Messages." + cause.name(), "true");
 		}
@@ -280,6 +311,9 @@ public class WDL {
 		saveHandler = (SaveHandler) minecraft.getSaveLoader().getSaveLoader(
 				getWorldFolderName(worldName), true);
 		
+		// Whether the world is as it was left by the last save, so that
+		// the chunk fingerprints from then can be trusted.
+		boolean unchangedSinceSaved = false;
 		FileInputStream worldDat = null;
 		try {
 			long lastSaved = Long.parseLong(worldProps.getProperty("LastSaved"));
@@ -287,8 +321,16 @@ public class WDL {
 			//the saved version.
 			worldDat = new FileInputStream(new File(
 					saveHandler.getWorldDirectory(), "level.dat"));
-			long lastPlayed = CompressedStreamTools.readCompressed(worldDat)
-					.getCompoundTag("Data").getLong("LastPlayed");
+			//Only LastPlayed is needed, so don't build the whole tree
+			//(which can be large, with the player's inventory and such).
+			NBTBase lastPlayedTag = NBTPartialReader.read(
+					new DataInputStream(new BufferedInputStream(
+							new GZIPInputStream(worldDat))),
+					"Data/LastPlayed").get("Data/LastPlayed");
+			long lastPlayed = 0;
+			if (lastPlayedTag instanceof NBTTagLong) {
+				lastPlayed = ((NBTTagLong) lastPlayedTag).getLong();
+			}
 			if (!overrideLastModifiedCheck && lastSaved != -1 &&
 					lastPlayed > lastSaved) {
 				// The world was played later than it was saved; confirm that the
@@ -298,6 +340,7 @@ public class WDL {
 				System.out.println("chk");
 				return;
 			}
+			unchangedSinceSaved = (lastSaved != -1 && lastPlayed == lastSaved);
 		} catch (Exception e) {
 			//TODO: handle this in a useful way -- will always happen
 			//on new worlds.
@@ -315,9 +358,28 @@ public class WDL {
 		WDL.minecraft.displayGuiScreen((GuiScreen) null);
 		WDL.minecraft.setIngameFocus();
 		chunkLoader = saveHandler.getChunkLoader(worldClient.provider);
-		newTileEntities = new HashMap<BlockPos, TileEntity>();
-		newEntities = new HashMap<Integer, Entity>();
+		File chunkSaveLocation = ReflectionUtils.stealAndGetField(
+				chunkLoader, File.class);
+		chunkWriter = new AnvilChunkWriter(chunkSaveLocation);
+		tileEntityImportCache = new TileEntityImportCache(chunkSaveLocation);
+		if (spillStore != null) {
+			spillStore.close();
+		}
+		spillStore = new SpillStore(new File(minecraft.mcDataDir,
+				"WorldDownloader-spill"));
+		int spillThreshold = getSpillThreshold();
+		newTileEntities = new TileEntityChunkMap(spillStore, spillThreshold);
+		newEntities = new EntityChunkMap(spillStore, spillThreshold);
 		newMapDatas = new HashMap<Integer, MapData>();
+		ChunkFlusher.reset();
+		if (unchangedSinceSaved) {
+			ChunkFingerprints.load(getChunkFingerprintsFile(),
+					Long.parseLong(worldProps.getProperty("LastSaved")),
+					new File(chunkSaveLocation, "region"));
+		} else {
+			ChunkFingerprints.reset();
+		}
+		UnloadSaveQueue.reset();
 
 		if (baseProps.getProperty("ServerName").isEmpty()) {
 			baseProps.setProperty("ServerName", getServerName());
@@ -325,6 +387,10 @@ public class WDL {
 
 		startOnChange = true;
 		downloading = true;
+		WDLEventLog.startSession(worldName.isEmpty() ? getServerName()
+				: worldName);
+		SessionRecorder.startSession(worldName.isEmpty() ? getServerName()
+				: worldName);
 		chatMsg("Download started");
 	}
 
@@ -335,6 +401,7 @@ public class WDL {
 			downloading = false;
 			startOnChange = false;
 			chatMsg("Download stopped");
+			SessionRecorder.endSession();
 			startSaveThread();
 		}
 	}
@@ -432,72 +499,83 @@ public class WDL {
 		}
 
 		WDL.chatMsg("Save complete. Your single player file is ready to play!");
+		if (WorldBackup.hasPendingBackups()) {
+			// Usually right before disconnecting; closing the game cancels
+			// them.
+			WDL.chatMsg("The backup is still being made in the background.  "
+					+ "Closing the game before it finishes will cancel it.");
+		}
+		if (spillStore != null) {
+			// Everything was just saved; nothing needs to be read back.
+			spillStore.close();
+			spillStore = null;
+		}
+		WDLEventLog.endSession();
 	}
 
-	/** Load the previously saved TileEntities and add them to the Chunk **/
+	/**
+	 * Load the previously saved TileEntities and add them to the Chunk.
+	 * <br/>
+	 * Only the chunk itself is changed (not the world), so this also works
+	 * on a chunk that has been unloaded or copied.
+	 */
 	public static void importTileEntities(Chunk chunk) {
-		File chunkSaveLocation = ReflectionUtils.stealAndGetField(chunkLoader,
-				File.class);
-		DataInputStream dis = RegionFileCache.getChunkInputStream(
-				chunkSaveLocation, chunk.xPosition, chunk.zPosition);
-
-		if (dis == null) {
-			// This happens whenever the chunk hasn't been saved before.
-			// It's a normal case.
-			return;
+		for (TileEntity te : getTileEntitiesToImport(chunk)) {
+			chunk.getTileEntityMap().put(te.getPos(), te);
 		}
-		
+	}
+
+	/**
+	 * Gets the previously saved TileEntities that should replace the ones in
+	 * the chunk: either the old one, or the one the player saved in this
+	 * session if there is one.
+	 * <br/>
+	 * Only reads from the chunk (to check the blocks), so this can be used
+	 * on a {@link ChunkSnapshot}'s copy from any thread.
+	 */
+	static List<TileEntity> getTileEntitiesToImport(Chunk chunk) {
+		List<TileEntity> oldTileEntities;
 		try {
-			NBTTagCompound chunkNBT = CompressedStreamTools.read(dis);
-			// NBTTagCompound levelNBT = chunkNBT.getCompoundTag( "Level" );
-			NBTTagCompound levelNBT = chunkNBT.getCompoundTag("Level");
-			// The official code checks if the chunk is in the right location.
-			// Should I too?.
-			NBTTagList tileEntitiesNBT = levelNBT
-					.getTagList("TileEntities", 10);
-
-			if (tileEntitiesNBT != null) {
-				for (int i = 0; i < tileEntitiesNBT.tagCount(); i++) {
-					NBTTagCompound tileEntityNBT = tileEntitiesNBT
-							.getCompoundTagAt(i);
-					TileEntity te = TileEntity
-							.createAndLoadEntity(tileEntityNBT);
-					
-					te.setWorldObj(worldClient);
-					
-					String entityType = tileEntityNBT.getString("id") +
-							" (" + te.getClass().getCanonicalName() +")";
-
-					if (shouldImportTileEntity(te)) {
-						if (!newTileEntities.containsKey(te.getPos())) {
-							//The player didn't save this tile entity in
-							//this download session.  So we use the old one.
-							//Note that this doesn't mean that the old one's
-							//a valid one; it could be empty.
-							worldClient.setTileEntity(te.getPos(), te);
-							chatDebug(
-									WDLMessageTypes.LOAD_TILE_ENTITY,
-									"Using old TE from saved file: " +
-											entityType + " at " + te.getPos());
-						} else {
-							worldClient.setTileEntity(te.getPos(), 
-									newTileEntities.get(te.getPos()));
-							chatDebug(WDLMessageTypes.LOAD_TILE_ENTITY,
-									"Using new TE: " + entityType + " at "
-											+ te.getPos());
-						}
-					} else {
-						chatDebug(WDLMessageTypes.LOAD_TILE_ENTITY,
-								"Old TE does not need importing: "
-										+ entityType + " at " + te.getPos());
-					}
-				}
-			}
+			oldTileEntities = tileEntityImportCache.getTileEntities(
+					chunk.getWorld(), chunk.xPosition, chunk.zPosition);
 		} catch (Exception e) {
 			chatError("Failed to import tile entities for chunk at " + 
 					chunk.xPosition + ", " + chunk.zPosition + ": " + e);
 			e.printStackTrace();
+			return new ArrayList<TileEntity>();
+		}
+		
+		List<TileEntity> imported = new ArrayList<TileEntity>();
+		for (TileEntity te : oldTileEntities) {
+			String entityType = te.getClass().getCanonicalName();
+			
+			if (!shouldImportTileEntity(te, chunk.getBlock(te.getPos()))) {
+				chatDebug(WDLMessageTypes.LOAD_TILE_ENTITY, chunk.xPosition,
+						chunk.zPosition, entityType,
+						"Old TE does not need importing: %s at %s",
+						entityType, te.getPos());
+				continue;
+			}
+			
+			TileEntity newTileEntity = newTileEntities.get(te.getPos());
+			if (newTileEntity == null) {
+				//The player didn't save this tile entity in
+				//this download session.  So we use the old one.
+				//Note that this doesn't mean that the old one's
+				//a valid one; it could be empty.
+				imported.add(te);
+				chatDebug(WDLMessageTypes.LOAD_TILE_ENTITY, chunk.xPosition,
+						chunk.zPosition, entityType,
+						"Using old TE from saved file: %s at %s",
+						entityType, te.getPos());
+			} else {
+				imported.add(newTileEntity);
+				chatDebug(WDLMessageTypes.LOAD_TILE_ENTITY, chunk.xPosition,
+						chunk.zPosition, entityType,
+						"Using new TE: %s at %s", entityType, te.getPos());
+			}
 		}
+		return imported;
 	}
 
 	/**
@@ -506,8 +584,30 @@ public class WDL {
 	 * will be imported.
 	 */
 	public static boolean shouldImportTileEntity(TileEntity te) {
-		Block block = te.getBlockType();
+		return shouldImportTileEntity(te, te.getBlockType());
+	}
+
+	/**
+	 * Checks if the TileEntity is of a type that can be imported, without
+	 * looking at the block at its position (and so without reading the
+	 * world, unlike {@link #shouldImportTileEntity(TileEntity)}).  Safe to
+	 * call from any thread.
+	 */
+	static boolean isImportableTileEntityType(TileEntity te) {
+		return te instanceof TileEntityChest
+				|| te instanceof TileEntityDispenser
+				|| te instanceof TileEntityFurnace
+				|| te instanceof TileEntityNote
+				|| te instanceof TileEntityBrewingStand
+				|| te instanceof TileEntityHopper
+				|| te instanceof TileEntityBeacon;
+	}
 
+	/**
+	 * Checks if the TileEntity should be imported, given the block at its
+	 * position.
+	 */
+	static boolean shouldImportTileEntity(TileEntity te, Block block) {
 		if (block instanceof BlockChest && te instanceof TileEntityChest) {
 			return true;
 		} else if (block instanceof BlockDispenser
@@ -558,55 +658,118 @@ public class WDL {
 				"WorldDownloader: Couldn't get session lock for saving the world!", e);
 		}
 
-		progressScreen.startMajorTask("Saving player and map info", 3);
-		
-		progressScreen.setMinorTaskProgress("Creating NBTs", 1);
-		NBTTagCompound playerNBT = new NBTTagCompound();
-		thePlayer.writeToNBT(playerNBT);
-		applyOverridesToPlayer(playerNBT);
-		ISaveHandler saveHAndler = worldClient.getSaveHandler();
-		AnvilSaveConverter saveConverter = (AnvilSaveConverter) minecraft
-				.getSaveLoader();
-		worldClient.getWorldInfo()
-		.setSaveVersion(getSaveVersion(saveConverter));
-		NBTTagCompound worldInfoNBT = worldClient.getWorldInfo()
-				.cloneNBTCompound(playerNBT);
-		applyOverridesToWorldInfo(worldInfoNBT);
-		savePlayer(playerNBT, progressScreen);
-		saveWorldInfo(worldInfoNBT, progressScreen);
-		saveMapData(progressScreen);
-		saveChunks(progressScreen);
-		
-		saveProps();
-		
+		SaveMetrics metrics = SaveMetrics.begin(getWorldFolderName(worldName));
 		try {
-			chatDebug(WDLMessageTypes.SAVING, "Waiting for ThreadedFileIOBase to finish...");
+			progressScreen.startMajorTask("Saving player and map info", 3);
 			
-			progressScreen.startMajorTask("Procrastinating...", 1);
-			progressScreen.setMinorTaskProgress(
-					"(waiting for ThreadedFileIOBase to finish)", 1);
+			metrics.startPhase(SaveMetrics.Phase.PLAYER);
+			progressScreen.setMinorTaskProgress("Creating NBTs", 1);
+			NBTTagCompound playerNBT = new NBTTagCompound();
+			thePlayer.writeToNBT(playerNBT);
+			applyOverridesToPlayer(playerNBT);
+			ISaveHandler saveHAndler = worldClient.getSaveHandler();
+			AnvilSaveConverter saveConverter = (AnvilSaveConverter) minecraft
+					.getSaveLoader();
+			worldClient.getWorldInfo()
+			.setSaveVersion(getSaveVersion(saveConverter));
+			NBTTagCompound worldInfoNBT = worldClient.getWorldInfo()
+					.cloneNBTCompound(playerNBT);
+			applyOverridesToWorldInfo(worldInfoNBT);
+			savePlayer(playerNBT, progressScreen);
+			metrics.startPhase(SaveMetrics.Phase.WORLD_INFO);
+			saveWorldInfo(worldInfoNBT, progressScreen);
+			metrics.startPhase(SaveMetrics.Phase.MAPS);
+			saveMapData(progressScreen);
+			metrics.startPhase(SaveMetrics.Phase.CHUNKS);
+			saveChunks(progressScreen);
 			
-			// func_178779_a is a getter for the instance.
-			// Look inside of ThreadedFileIOBase.java for
-			// such a getter.
-			ThreadedFileIOBase.func_178779_a().waitForFinish();
-		} catch (Exception e) {
-			throw new RuntimeException("Threw exception waiting for asynchronous IO to finish. Hmmm.", e);
-		}
-		
-		if (backupType != WorldBackupType.NONE) {
-			chatDebug(WDLMessageTypes.SAVING, "Backing up the world...");
-			progressScreen.startMajorTask("Backing up world...", 1);
-			progressScreen.setMinorTaskProgress(
-					backupType.description, 1);
+			saveProps();
 			
+			metrics.startPhase(SaveMetrics.Phase.IO_WAIT);
 			try {
-				WorldBackup.backupWorld(saveHandler.getWorldDirectory(), 
-						getWorldFolderName(worldName), backupType);
-			} catch (IOException e) {
-				chatError("Error while backing up world: " + e);
+				chatDebug(WDLMessageTypes.SAVING, "Waiting for ThreadedFileIOBase to finish...");
+				
+				progressScreen.startMajorTask("Procrastinating...", 1);
+				progressScreen.setMinorTaskProgress(
+						"(waiting for ThreadedFileIOBase to finish)", 1);
+				
+				// func_178779_a is a getter for the instance.
+				// Look inside of ThreadedFileIOBase.java for
+				// such a getter.
+				ThreadedFileIOBase.func_178779_a().waitForFinish();
+			} catch (Exception e) {
+				throw new RuntimeException("Threw exception waiting for asynchronous IO to finish. Hmmm.", e);
+			}
+			
+			boolean regionFilesClosed = false;
+			try {
+				AnvilRegionFile.closeAll();
+				regionFilesClosed = true;
+			} catch (Exception e) {
+				chatError("Failed to close region files: " + e);
+				e.printStackTrace();
+			}
+			
+			// Only now is everything that the fingerprints describe on disk.
+			// They only cover chunks that were written successfully (see
+			// ChunkFingerprints.onWritten); if the region files couldn't be
+			// closed, none of them can be trusted, so all chunks are saved again
+			// next time.
+			try {
+				if (regionFilesClosed) {
+					ChunkFingerprints.save(getChunkFingerprintsFile(),
+							Long.parseLong(worldProps.getProperty("LastSaved")),
+							new File(chunkWriter.getChunkSaveLocation(),
+									"region"));
+				} else {
+					getChunkFingerprintsFile().delete();
+				}
+			} catch (Exception e) {
+				chatError("Failed to save chunk fingerprints: " + e);
 				e.printStackTrace();
 			}
+			
+			if (backupType != WorldBackupType.NONE) {
+				metrics.startPhase(SaveMetrics.Phase.BACKUP);
+				chatDebug(WDLMessageTypes.SAVING, "Backing up the world...");
+				progressScreen.startMajorTask("Backing up world...", 1);
+				progressScreen.setMinorTaskProgress(
+						backupType.description, 1);
+				
+				final GuiWDLSaveProgress backupProgressScreen = progressScreen;
+				IBackupProgressMonitor monitor = new IBackupProgressMonitor() {
+					private int filesDone = 0;
+					
+					@Override
+					public void setNumberOfFiles(int count) {
+						backupProgressScreen.setMinorTaskCount(count);
+					}
+					
+					@Override
+					public void onNextFile(String name) {
+						filesDone++;
+						backupProgressScreen.setMinorTaskProgress(
+								"Copied " + name, filesDone);
+					}
+				};
+				
+				try {
+					// Only the snapshot is taken here; the backup itself is
+					// made in the background.
+					WorldBackup.backupWorldAsync(saveHandler.getWorldDirectory(), 
+							getWorldFolderName(worldName), backupType, monitor);
+				} catch (IOException e) {
+					chatError("Error while backing up world: " + e);
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			// Even if the save failed, so that later saves aren't counted
+			// into this one.
+			metrics.finish();
+		}
+		for (String line : metrics.getSummary()) {
+			chatDebug(WDLMessageTypes.SAVING, "Save metrics: %s", line);
 		}
 		
 		progressScreen.setDoneWorking();
@@ -632,6 +795,7 @@ public class WDL {
 					.getUniqueID().toString() + ".dat");
 			CompressedStreamTools.writeCompressed(playerNBT,
 					new FileOutputStream(playerFile));
+			addBytesWritten(playerFile);
 
 			if (playerFileOld.exists()) {
 				playerFileOld.delete();
@@ -669,6 +833,7 @@ public class WDL {
 			File dataFileOld = new File(saveDirectory, "level.dat");
 			CompressedStreamTools.writeCompressed(dataNBT,
 					new FileOutputStream(dataFile));
+			addBytesWritten(dataFile);
 
 			if (dataFileBackup.exists()) {
 				dataFileBackup.delete();
@@ -692,101 +857,187 @@ public class WDL {
 		chatDebug(WDLMessageTypes.SAVING, "World data saved.");
 	}
 
+	/**
+	 * Gets the file that the {@link ChunkFingerprints} for the current
+	 * dimension are kept in, next to the world's WorldDownloader.txt.
+	 */
+	private static File getChunkFingerprintsFile() {
+		return new File(saveHandler.getWorldDirectory(),
+				"WorldDownloader-chunks-DIM"
+						+ worldClient.provider.getDimensionId() + ".dat");
+	}
+
 	/**
 	 * Calls saveChunk for all currently loaded chunks
-	 *
-	 * @throws IllegalAccessException
-	 * @throws IllegalArgumentException
 	 */
-	public static void saveChunks(GuiWDLSaveProgress progressScreen)
-			throws IllegalArgumentException, IllegalAccessException {
+	public static void saveChunks(GuiWDLSaveProgress progressScreen) {
 		if (!WDLPluginChannels.canDownloadInGeneral()) { return; }
 		
 		chatDebug(WDLMessageTypes.SAVING, "Saving chunks...");
 		
-		// Get the ChunkProviderClient from WorldClient
-		ChunkProviderClient chunkProvider = (ChunkProviderClient) worldClient
-				.getChunkProvider();
-		// Get the hashArray field and set it accessible
-		Field hashArrayField = null;
-		Field[] lhmFields = LongHashMap.class.getDeclaredFields();
-
-		for (Field f : lhmFields) {
-			if (f.getType().isArray()) {
-				hashArrayField = f;
-				break;
-			}
-		}
-
-		if (hashArrayField == null) {
-			chatMsg("Could not save chunks. Reflection error.");
-			return;
+		// Chunks unloaded before now are older than the loaded ones, so
+		// they have to be written first.
+		try {
+			UnloadSaveQueue.flush();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for " +
+					"unloaded chunks to be saved!", e);
 		}
-
-		hashArrayField.setAccessible(true);
-		// Steal the instance of LongHashMap from our chunk provider
-		LongHashMap lhm = ReflectionUtils.stealAndGetField(chunkProvider,
-				LongHashMap.class);
 		
-		progressScreen.startMajorTask("Saving chunks", 
-				lhm.getNumHashElements());
+		Chunk[] chunks = LoadedChunkIndex.forWorld(worldClient).getChunks();
 		
-		// Get the LongHashMap.Entry[] through the now accessible field using a
-		// LongHashMap we steal from our chunkProvider.
-		Object[] hashArray = (Object[]) hashArrayField.get(lhm);
-
-		if (lhm.getNumHashElements() == 0 || hashArray.length == 0) {
+		progressScreen.startMajorTask("Saving chunks", chunks.length);
+		
+		if (chunks.length == 0) {
 			chatError("ChunkProviderClient has no chunk data!");
 			chatError("(If you changed dimensions just now, this is normal)");
 			return;
-		} else {
-			// Get the actual class for LongHashMap.Entry
-			Class<?> Entry = null;
-
-			for (Object o : hashArray) {
-				if (o != null) {
-					Entry = o.getClass();
-					break;
+		}
+		
+		// Anything still pending from chunks that were unloaded earlier
+		// needs to be written first, so that it doesn't overwrite the
+		// newer version written by the pipeline.
+		try {
+			ThreadedFileIOBase.func_178779_a().waitForFinish();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for " +
+					"asynchronous IO to finish!", e);
+		}
+		
+		ChunkSavePipeline pipeline = null;
+		try {
+			pipeline = new ChunkSavePipeline(chunkLoader);
+		} catch (Exception e) {
+			chatDebug(WDLMessageTypes.SAVING, "Can't save chunks in " +
+					"parallel; saving them one at a time instead: " + e);
+			e.printStackTrace();
+		}
+		
+		SaveMetrics metrics = SaveMetrics.getCurrent();
+		int currentChunk = 0;
+		int skippedChunks = 0;
+		List<ChunkCoordIntPair> savedChunks =
+				new ArrayList<ChunkCoordIntPair>();
+		
+		try {
+			while (currentChunk < chunks.length) {
+				List<Chunk> batch = new ArrayList<Chunk>();
+				while (currentChunk < chunks.length
+						&& batch.size() < SNAPSHOT_BATCH_SIZE) {
+					Chunk c = chunks[currentChunk++];
+					
+					//Serverside restrictions check
+					if (!WDLPluginChannels.canSaveChunk(c)) {
+						continue;
+					}
+					
+					// Already saved in the background and unchanged since
+					// then.
+					if (!ChunkFlusher.needsFlush(c, true)) {
+						skippedChunks++;
+						if (metrics != null) {
+							metrics.onChunkSkipped();
+						}
+						continue;
+					}
+					
+					batch.add(c);
 				}
-			}
-
-			if (Entry == null) {
-				chatError("Could not get class for LongHashMap.Entry.");
-				return;
-			}
-
-			// Find the private fields for 'value' and 'nextEntry' in
-			// LongHashMap.Entry and make them accessible
-			Field valueField = Entry.getDeclaredFields()[1]; // value
-			valueField.setAccessible(true);
-			Field nextEntryField = Entry.getDeclaredFields()[2]; // nextEntry
-			nextEntryField.setAccessible(true);
-			
-			int currentChunk = 0;
-			
-			for (int i = 0; i < hashArray.length; ++i) {
-				for (Object lhme = hashArray[i]; lhme != null; 
-						lhme = nextEntryField.get(lhme)) {
-					Chunk c = (Chunk) valueField.get(lhme);
-
-					if (c != null) {
-						currentChunk++;
-						
-						//Serverside restrictions check
-						if (!WDLPluginChannels.canSaveChunk(c)) {
-							continue;
+				
+				for (ChunkSnapshot snapshot : captureSnapshots(batch)) {
+					progressScreen.setMinorTaskProgress(
+							"Saving chunk at " + snapshot.x + ", " +
+									snapshot.z, currentChunk);
+					
+					if (saveChunk(snapshot, pipeline)) {
+						if (metrics != null) {
+							metrics.onChunkSaved();
+							progressScreen.setInfo(metrics.getProgressInfo());
+						}
+					} else {
+						skippedChunks++;
+						if (metrics != null) {
+							metrics.onChunkSkipped();
 						}
-						
-						progressScreen.setMinorTaskProgress(
-								"Saving chunk at " + c.xPosition + ", " +
-										c.zPosition, currentChunk);
-						
-						saveChunk(c);
 					}
+					
+					savedChunks.add(new ChunkCoordIntPair(snapshot.x,
+							snapshot.z));
 				}
 			}
+		} finally {
+			if (pipeline != null) {
+				progressScreen.setMinorTaskProgress(
+						"Waiting for chunks to be written", currentChunk);
+				try {
+					pipeline.finish();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while " +
+							"waiting for chunks to be written!", e);
+				}
+				if (metrics != null) {
+					metrics.addBytesWritten(pipeline.getBytesWritten());
+				}
+			}
+		}
+		
+		if (pipeline == null) {
+			try {
+				ThreadedFileIOBase.func_178779_a().waitForFinish();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted while waiting for " +
+						"chunks to be written!", e);
+			}
+		}
+		
+		// This is the last time these chunks are saved for this world (the
+		// next download starts with a fresh set), so the remembered entities
+		// of the ones that are now on disk are no longer needed.  Chunks that
+		// failed to save keep theirs for the next try.
+		for (ChunkCoordIntPair pos : savedChunks) {
+			if (ChunkFingerprints.isWritten(pos.chunkXPos, pos.chunkZPos)) {
+				newEntities.removeEntitiesInChunk(pos.chunkXPos,
+						pos.chunkZPos);
+			}
+		}
+		
+		chatDebug(WDLMessageTypes.SAVING, "Chunk data saved (" +
+				skippedChunks + " unchanged chunks were already saved).");
+	}
 
-			chatDebug(WDLMessageTypes.SAVING, "Chunk data saved.");
+	/**
+	 * Captures {@linkplain ChunkSnapshot snapshots} of the given chunks on
+	 * the client thread, waiting for it if called from another thread.
+	 * Each of the chunks is marked as {@linkplain ChunkFlusher#onChunkSaved
+	 * saved}.
+	 */
+	private static List<ChunkSnapshot> captureSnapshots(
+			final List<Chunk> chunks) {
+		Callable<List<ChunkSnapshot>> capture =
+				new Callable<List<ChunkSnapshot>>() {
+			@Override
+			public List<ChunkSnapshot> call() {
+				List<ChunkSnapshot> snapshots = new ArrayList<ChunkSnapshot>();
+				for (Chunk c : chunks) {
+					snapshots.add(ChunkSnapshot.capture(c));
+					ChunkFlusher.onChunkSaved(c);
+				}
+				return snapshots;
+			}
+		};
+		
+		try {
+			if (minecraft == null || minecraft.isCallingFromMinecraftThread()) {
+				// Also the case when saving headless.
+				return capture.call();
+			}
+			return minecraft.addScheduledTask(capture).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for " +
+					"chunks to be captured!", e);
+		} catch (Exception e) {
+			throw new RuntimeException("WorldDownloader: Couldn't capture " +
+					"chunks for saving!", e);
 		}
 	}
 
@@ -794,103 +1045,89 @@ public class WDL {
 	 * Import all non-overwritten TileEntities, then save the chunk
 	 */
 	public static void saveChunk(Chunk c) {
+		saveChunk(c, null);
+	}
+	
+	/**
+	 * Import all non-overwritten TileEntities, then save the chunk.
+	 * <br/>
+	 * Must be called on the client thread, as it
+	 * {@linkplain ChunkSnapshot#capture(Chunk) captures} the chunk.  The
+	 * chunk itself isn't changed.
+	 * 
+	 * @param c The chunk to save.
+	 * @param pipeline The pipeline to save the chunk with, or
+	 *                 <code>null</code> to save it with the
+	 *                 {@link #chunkWriter}.
+	 */
+	static void saveChunk(Chunk c, ChunkSavePipeline pipeline) {
 		if (!WDLPluginChannels.canDownloadInGeneral()) { return; }
 		
-		if (!WDLPluginChannels.canDownloadInGeneral()) {
-			c.getTileEntityMap().clear();
+		ChunkSnapshot snapshot;
+		try {
+			snapshot = ChunkSnapshot.capture(c);
+		} catch (Exception e) {
+			chatError("Chunk at chunk position " + c.xPosition + ","
+					+ c.zPosition + " can't be saved!");
+			
+			e.printStackTrace();
+			return;
 		}
 		
-		importTileEntities(c);
-		c.setTerrainPopulated(true);
-
+		saveChunk(snapshot, pipeline);
+	}
+	
+	/**
+	 * Import all non-overwritten TileEntities into the snapshot, then save
+	 * it, unless exactly the same chunk was already written (see
+	 * {@link ChunkFingerprints}).  Can be called on any thread.
+	 * 
+	 * @param snapshot The chunk to save.
+	 * @param pipeline The pipeline to save the chunk with, or
+	 *                 <code>null</code> to save it with the
+	 *                 {@link #chunkWriter}.
+	 * @return Whether the chunk was handed to the writer (rather than
+	 *         skipped or failing).
+	 */
+	static boolean saveChunk(ChunkSnapshot snapshot,
+			ChunkSavePipeline pipeline) {
+		if (!WDLPluginChannels.canDownloadInGeneral()) { return false; }
+		
 		try {
-			// Entities to re-add after chunk saving that were previously removed.
-			List<Entity> removedEntities = new ArrayList<Entity>();
-			// Entities to remove after chunk saving that were previously added.
-			List<Entity> addedEntities = new ArrayList<Entity>();
-			
-			if (!WDLPluginChannels.canSaveEntities()) {
-				// Temporarily delete entities if saving them is disabled.
-				for (Iterable<Entity> entityList : c.getEntityLists()) {
-					for (Entity e : entityList) {
-						if (e instanceof EntityPlayer) {
-							//Skip players, as otherwise bad things happen, 
-							//such as deleting the current player and causing
-							//the screen to flicker.
-							continue;
-						}
-						
-						removedEntities.add(e);
-					}
-				}
-				
-				for (Entity e : removedEntities) {
-					c.removeEntity(e);
-				}
-			} else {
-				// Remove entities of unwanted types.
-				//TODO: Handle holograms
-				for (Iterable<Entity> entityList : c.getEntityLists()) {
-					for (Entity e : entityList) {
-						if (e instanceof EntityPlayer) {
-							//Skip players, as otherwise bad things happen, 
-							//such as deleting the current player and causing
-							//the screen to flicker.
-							continue;
-						}
-						
-						if (!EntityUtils.isEntityEnabled(e)) {
-							removedEntities.add(e);
-						}
-					}
-				}
-				for (Entity e : removedEntities) {
-					c.removeEntity(e);
-				}
-				
-				// Add in new entities now.
-				// TODO: This is probably inefficient (as we go through ALL
-				// entities that were loaded.
-				for (Entity e : newEntities.values()) {
-					if (e.chunkCoordX == c.xPosition &&
-							e.chunkCoordZ == c.zPosition) {
-						// Unkill the entity so that it doesn't despawn on
-						// world load.  Note that 'isDead' is a bad name, as
-						// it actually means "Delete this entity next tick",
-						// not "this entitiy was killed by a player".
-						e.isDead = false;
-						c.addEntity(e);
-						addedEntities.add(e);
-					}
-				}
+			NBTTagCompound rootTag = snapshot.writeToNBT(chunkLoader);
+			long fingerprint = ChunkFingerprints.compute(rootTag);
+			if (ChunkFingerprints.isSaved(snapshot.x, snapshot.z,
+					fingerprint)) {
+				chatDebug(WDLMessageTypes.SAVING, snapshot.x, snapshot.z,
+						null, "Chunk at %s, %s is unchanged; not saving it",
+						snapshot.x, snapshot.z);
+				return false;
 			}
 			
-			// Force the entity into its serverside location.
-			// Needed for certain things that move clientside,
-			// such as boats (http://imgur.com/3QQchZL)
-			for (Iterable<Entity> entityList : c.getEntityLists()) {
-				for (Entity e : entityList) {
-					e.posX = convertServerPos(e.serverPosX);
-					e.posY = convertServerPos(e.serverPosY);
-					e.posZ = convertServerPos(e.serverPosZ);
+			// The writer records the fingerprint once the chunk is on disk.
+			ChunkFingerprints.onSubmitted(snapshot.x, snapshot.z);
+			try {
+				if (pipeline != null) {
+					pipeline.submit(snapshot.x, snapshot.z, rootTag,
+							fingerprint);
+				} else {
+					chunkWriter.addChunk(snapshot.x, snapshot.z, rootTag,
+							fingerprint);
 				}
+			} catch (InterruptedException e) {
+				ChunkFingerprints.onNotWritten(snapshot.x, snapshot.z);
+				throw e;
 			}
-			
-			chunkLoader.saveChunk(worldClient, c);
-			
-			// Return entities to the previous state.
-			for (Entity e : removedEntities) {
-				c.addEntity(e);
-			}
-			for (Entity e : addedEntities) {
-				c.removeEntity(e);
-			}
+			return true;
 		} catch (Exception e) {
 			// Better tell the player that something didn't work:
-			chatError("Chunk at chunk position " + c.xPosition + ","
-					+ c.zPosition + " can't be saved!");
+			chatError("Chunk at chunk position " + snapshot.x + ","
+					+ snapshot.z + " can't be saved!");
 			
 			e.printStackTrace();
+			ChunkFingerprints.forget(snapshot.x, snapshot.z);
+			ChunkFlusher.markDirty(snapshot.x, snapshot.z);
+			return false;
 		}
 	}
 
@@ -1181,6 +1418,7 @@ public class WDL {
 			try {
 				CompressedStreamTools.writeCompressed(mapNBT,
 						new FileOutputStream(mapFile));
+				addBytesWritten(mapFile);
 			} catch (IOException ex) {
 				throw new RuntimeException("WDL: Exception while writing " +
 						"map data for map " + e.getKey() + "!", ex);
@@ -1190,6 +1428,21 @@ public class WDL {
 		chatDebug(WDLMessageTypes.SAVING, "Map data saved.");
 	}
 
+	/**
+	 * Gets the number of tile entities and of entities to keep in memory
+	 * before moving them to disk, from the <code>SpillThreshold</code>
+	 * property.
+	 */
+	private static int getSpillThreshold() {
+		try {
+			return Math.max(16, Integer.parseInt(baseProps.getProperty(
+					"SpillThreshold")));
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(defaultProps.getProperty(
+					"SpillThreshold"));
+		}
+	}
+
 	/** Get the name of the server the user specified it in the server list */
 	public static String getServerName() {
 		try {
@@ -1272,11 +1525,44 @@ public class WDL {
 		WDLMessages.chatMessage(type, msg);
 	}
 
+	/**
+	 * Adds a chat message with a World Downloader prefix, only formatting it
+	 * if the type is enabled.
+	 * 
+	 * @see WDLMessages#chatMessage(IWDLMessageType, String, Object...)
+	 */
+	public static void chatDebug(IWDLMessageType type, String format,
+			Object... args) {
+		WDLMessages.chatMessage(type, format, args);
+	}
+
+	/**
+	 * Adds a chat message about a chunk or (tile) entity with a World
+	 * Downloader prefix, only formatting it if the type is enabled.
+	 * 
+	 * @see WDLMessages#chatMessage(IWDLMessageType, int, int, String, String, Object...)
+	 */
+	public static void chatDebug(IWDLMessageType type, int chunkX, int chunkZ,
+			String id, String format, Object... args) {
+		WDLMessages.chatMessage(type, chunkX, chunkZ, id, format, args);
+	}
+
 	/** Adds a chat message with a World Downloader prefix */
 	public static void chatError(String msg) {
 		WDLMessages.chatMessage(WDLMessageTypes.ERROR, msg);
 	}
 
+	/**
+	 * Counts a file that was just written towards the current save's
+	 * {@link SaveMetrics}.
+	 */
+	private static void addBytesWritten(File file) {
+		SaveMetrics metrics = SaveMetrics.getCurrent();
+		if (metrics != null) {
+			metrics.addBytesWritten(file.length());
+		}
+	}
+
 	private static int getSaveVersion(AnvilSaveConverter asc) {
 		int saveVersion = 0;
 
@@ -1444,9 +1730,17 @@ public class WDL {
 		info.append("lastEntity: ").append(lastEntity).append('\n');
 		info.append("saveHandler: ").append(saveHandler).append('\n');
 		info.append("chunkLoader: ").append(chunkLoader).append('\n');
+		info.append("chunkWriter: ").append(chunkWriter).append('\n');
+		info.append("tileEntityImportCache: ").append(tileEntityImportCache)
+				.append('\n');
 		info.append("newTileEntities: ").append(newTileEntities).append('\n');
 		info.append("newEntities: ").append(newEntities).append('\n');
 		info.append("newMapDatas: ").append(newMapDatas).append('\n');
+		info.append("spillStore: ").append(spillStore).append('\n');
+		info.append("unloadSaveQueue: ")
+				.append(UnloadSaveQueue.getDebugInfo()).append('\n');
+		info.append("chunkFingerprints: ").append(ChunkFingerprints.size())
+				.append('\n');
 		info.append("downloading: ").append(downloading).append('\n');
 		info.append("isMultiworld: ").append(isMultiworld).append('\n');
 		info.append("propsFound: ").append(propsFound).append('\n');
@@ -1460,6 +1754,18 @@ public class WDL {
 		info.append("baseFolderName: ").append(baseFolderName).append('\n');
 		info.append("addedAPIHandlers: ").append(addedAPIHandlers).append('\n');
 		
+		info.append("\n### LAST SAVE\n\n");
+		SaveMetrics lastSave = SaveMetrics.getLast();
+		if (lastSave == null) {
+			info.append("No save since the game started\n");
+		} else {
+			for (String line : lastSave.getSummary()) {
+				info.append(line).append('\n');
+			}
+		}
+		info.append("History: ").append(SaveMetrics.getHistoryFile())
+				.append('\n');
+		
 		info.append("### CONNECTED SERVER\n\n");
 		ServerData data = Minecraft.getMinecraft().getCurrentServerData();
 		if (data == null) {
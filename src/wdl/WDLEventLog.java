@@ -0,0 +1,313 @@
+package wdl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.minecraft.client.Minecraft;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import wdl.api.IWDLMessageType;
+
+/**
+ * Writes every message event (whether or not its type is shown in chat) to
+ * a JSON-lines file per download session, so that a session can be looked
+ * at afterwards without turning on the chat messages.  This includes the
+ * messages that the chat rate limit in {@link WDLMessages} leaves out.
+ * <br/>
+ * Each line is one event, such as:
+ * <pre>
+ * {"time":1445539200000,"type":"REMOVE_ENTITY","chunkX":3,"chunkZ":-7,"id":"Zombie","message":"..."}
+ * </pre>
+ * <code>chunkX</code>, <code>chunkZ</code> and <code>id</code> are only
+ * present for events that are about a chunk or an (tile) entity.
+ * <br/>
+ * Events are handed to a background thread through a bounded queue, and
+ * messages are only formatted there.  If the queue is full the event is
+ * dropped (and counted) rather than slowing down the game.
+ * <br/>
+ * Sessions are only recorded when the <code>Messages.eventLog</code>
+ * property is true.
+ */
+public class WDLEventLog {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Value for the chunk coordinates of events that aren't about a chunk.
+	 */
+	public static final int NO_CHUNK = Integer.MIN_VALUE;
+
+	private static final int QUEUE_SIZE = 8192;
+	private static final DateFormat FILE_DATE_FORMAT =
+			new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+
+	/**
+	 * A logged event.
+	 */
+	private static class Event {
+		public final long time;
+		public final IWDLMessageType type;
+		public final int chunkX;
+		public final int chunkZ;
+		public final String id;
+		/**
+		 * The message, or its format if {@link #args} isn't null.
+		 */
+		public final String message;
+		public final Object[] args;
+
+		public Event(long time, IWDLMessageType type, int chunkX,
+				int chunkZ, String id, String message, Object[] args) {
+			this.time = time;
+			this.type = type;
+			this.chunkX = chunkX;
+			this.chunkZ = chunkZ;
+			this.id = id;
+			this.message = message;
+			this.args = args;
+		}
+	}
+
+	/**
+	 * Marks the end of a session in the queue.
+	 */
+	private static final Event END_OF_SESSION = new Event(0, null, 0, 0,
+			null, null, null);
+
+	/**
+	 * The current session, or null if none is being recorded.
+	 */
+	private static volatile WDLEventLog session;
+
+	/**
+	 * Checks whether events are currently being recorded.
+	 */
+	public static boolean isRecording() {
+		return session != null;
+	}
+
+	/**
+	 * Starts recording a session, if enabled and not already recording.
+	 *
+	 * @param worldName The name of the world being downloaded, used in the
+	 *            file name.
+	 */
+	public static synchronized void startSession(String worldName) {
+		if (session != null) {
+			return;
+		}
+		if (!WDL.baseProps.getProperty("Messages.eventLog", "false")
+				.equals("true")) {
+			return;
+		}
+
+		String date;
+		synchronized (FILE_DATE_FORMAT) {
+			date = FILE_DATE_FORMAT.format(new Date());
+		}
+		File folder = new File(new File(Minecraft.getMinecraft().mcDataDir,
+				"logs"), "wdl-events");
+		File file = new File(folder, worldName.replaceAll("[^\\w.-]", "_")
+				+ "_" + date + ".jsonl");
+
+		try {
+			folder.mkdirs();
+			session = new WDLEventLog(file);
+		} catch (IOException e) {
+			WDL.chatError("Failed to start event log " + file + ": " + e);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops recording the current session, waiting a short time for the
+	 * remaining events to be written.
+	 */
+	public static synchronized void endSession() {
+		WDLEventLog current = session;
+		if (current == null) {
+			return;
+		}
+		session = null;
+
+		current.finish();
+	}
+
+	/**
+	 * Records an event that isn't about a chunk.
+	 */
+	public static void record(IWDLMessageType type, String message) {
+		WDLEventLog current = session;
+		if (current != null) {
+			current.add(new Event(System.currentTimeMillis(), type, NO_CHUNK,
+					NO_CHUNK, null, message, null));
+		}
+	}
+
+	/**
+	 * Records an event.
+	 *
+	 * @param type The type of the event.
+	 * @param chunkX The chunk the event is about, or {@link #NO_CHUNK}.
+	 * @param chunkZ The chunk the event is about, or {@link #NO_CHUNK}.
+	 * @param id The type of the entity or tile entity the event is about,
+	 *            or null.
+	 * @param format The message, in {@link String#format} form.
+	 * @param args The arguments for the format.  They are formatted on the
+	 *            writer thread, so must not be changed afterwards.
+	 */
+	public static void record(IWDLMessageType type, int chunkX, int chunkZ,
+			String id, String format, Object[] args) {
+		WDLEventLog current = session;
+		if (current != null) {
+			current.add(new Event(System.currentTimeMillis(), type, chunkX,
+					chunkZ, id, format, args));
+		}
+	}
+
+	private final File file;
+	private final Writer writer;
+	private final BlockingQueue<Event> queue =
+			new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+	private final Thread thread;
+	/**
+	 * Number of events dropped because the queue was full.
+	 */
+	private final AtomicInteger dropped = new AtomicInteger();
+
+	private WDLEventLog(File file) throws IOException {
+		this.file = file;
+		this.writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), "UTF-8"), 65536);
+
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEvents();
+			}
+		}, "WDL Event Log Writer");
+		this.thread.setDaemon(true);
+		this.thread.setPriority(Thread.MIN_PRIORITY);
+		this.thread.start();
+	}
+
+	private void add(Event event) {
+		if (!queue.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void finish() {
+		try {
+			queue.put(END_OF_SESSION);
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs on the writer thread.
+	 */
+	private void writeEvents() {
+		try {
+			try {
+				while (true) {
+					Event event = queue.poll(1, TimeUnit.SECONDS);
+					if (event == null) {
+						writer.flush();
+						continue;
+					}
+					if (event == END_OF_SESSION) {
+						break;
+					}
+
+					writeEvent(event);
+				}
+
+				int droppedCount = dropped.get();
+				if (droppedCount > 0) {
+					writer.write("{\"time\":" + System.currentTimeMillis()
+							+ ",\"dropped\":" + droppedCount + "}\n");
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (InterruptedException e) {
+			// Exit.
+		} catch (IOException e) {
+			logger.warn("Failed to write WDL event log " + file, e);
+		}
+	}
+
+	private void writeEvent(Event event) throws IOException {
+		String message = event.message;
+		if (event.args != null) {
+			try {
+				message = String.format(event.message, event.args);
+			} catch (IllegalFormatException e) {
+				// Keep the format string.
+			}
+		}
+
+		StringBuilder line = new StringBuilder(128);
+		line.append("{\"time\":").append(event.time);
+		line.append(",\"type\":");
+		appendString(line, WDLMessages.getName(event.type));
+		if (event.chunkX != NO_CHUNK) {
+			line.append(",\"chunkX\":").append(event.chunkX);
+			line.append(",\"chunkZ\":").append(event.chunkZ);
+		}
+		if (event.id != null) {
+			line.append(",\"id\":");
+			appendString(line, event.id);
+		}
+		line.append(",\"message\":");
+		appendString(line, message);
+		line.append("}\n");
+
+		writer.write(line.toString());
+	}
+
+	/**
+	 * Appends a JSON string literal.
+	 */
+	private static void appendString(StringBuilder builder, String value) {
+		if (value == null) {
+			builder.append("null");
+			return;
+		}
+
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': builder.append("\\\""); break;
+			case '\\': builder.append("\\\\"); break;
+			case '\n': builder.append("\\n"); break;
+			case '\r': builder.append("\\r"); break;
+			case '\t': builder.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					builder.append(String.format("\\u%04x", (int) c));
+				} else {
+					builder.append(c);
+				}
+			}
+		}
+		builder.append('"');
+	}
+}
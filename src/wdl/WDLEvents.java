@@ -113,14 +113,16 @@ public class WDLEvents {
 
 		if (WDLPluginChannels.canSaveChunk(unneededChunk)) {
 			WDL.chatDebug(WDLMessageTypes.ON_CHUNK_NO_LONGER_NEEDED,
-					"onChunkNoLongerNeeded: " + unneededChunk.xPosition + ", "
-							+ unneededChunk.zPosition);
-			WDL.saveChunk(unneededChunk);
+					unneededChunk.xPosition, unneededChunk.zPosition, null,
+					"onChunkNoLongerNeeded: %s, %s", unneededChunk.xPosition,
+					unneededChunk.zPosition);
+			UnloadSaveQueue.submit(unneededChunk);
 		} else {
 			WDL.chatDebug(WDLMessageTypes.ON_CHUNK_NO_LONGER_NEEDED,
-					"onChunkNoLongerNeeded cannot save chunk at " +
-							unneededChunk.xPosition + ", " + unneededChunk.zPosition
-							+ " due to server restrictions!");
+					unneededChunk.xPosition, unneededChunk.zPosition, null,
+					"onChunkNoLongerNeeded cannot save chunk at %s, %s due "
+							+ "to server restrictions!", unneededChunk.xPosition,
+					unneededChunk.zPosition);
 		}
 	}
 
@@ -261,6 +263,8 @@ public class WDLEvents {
 				return false;
 			}
 
+			ChunkFlusher.markDirty(WDL.lastEntity.chunkCoordX,
+					WDL.lastEntity.chunkCoordZ);
 			WDL.chatDebug(WDLMessageTypes.ON_GUI_CLOSED_INFO, "Saved "
 					+ saveName + ".");
 			return true;
@@ -362,6 +366,8 @@ public class WDLEvents {
 				WDL.saveContainerItems(WDL.windowContainer, chest2, 27);
 				WDL.newTileEntities.put(chestPos1, chest1);
 				WDL.newTileEntities.put(chestPos2, chest2);
+				ChunkFlusher.markDirty(chestPos1);
+				ChunkFlusher.markDirty(chestPos2);
 				
 				saveName = "Double Chest contents";
 			}
@@ -419,6 +425,7 @@ public class WDLEvents {
 			return false;
 		}
 
+		ChunkFlusher.markDirty(WDL.lastClickedBlock);
 		WDL.chatDebug(WDLMessageTypes.ON_GUI_CLOSED_INFO, "Saved "
 				+ saveName + ".");
 		return true;
@@ -440,6 +447,7 @@ public class WDLEvents {
 			newTE.note = (byte)(param % 25);
 			WDL.worldClient.setTileEntity(pos, newTE);
 			WDL.newTileEntities.put(pos, newTE);
+			ChunkFlusher.markDirty(pos);
 			WDL.chatDebug(WDLMessageTypes.ON_BLOCK_EVENT,
 					"onBlockEvent: Note Block: " + pos + " pitch: " + param
 					+ " - " + newTE);
@@ -460,7 +468,7 @@ public class WDLEvents {
 		WDL.newMapDatas.put(mapID, mapData);
 
 		WDL.chatDebug(WDLMessageTypes.ON_MAP_SAVED,
-				"onMapDataLoaded: Saved map " + mapID + ".");
+				"onMapDataLoaded: Saved map %s.", mapID);
 	}
 
 	/**
@@ -469,6 +477,11 @@ public class WDLEvents {
 	 */
 	public static void onPluginChannelPacket(String channel,
 			byte[] bytes) {
+		if ("MC|Brand".equals(channel)) {
+			// Whether the server is Spigot may have changed.
+			EntityUtils.onTrackDistanceSettingsChanged();
+		}
+		
 		WDLPluginChannels.onPluginChannelPacket(channel, bytes);
 	}
 
@@ -476,6 +489,19 @@ public class WDLEvents {
 	 * Must be called when an entity is about to be removed from the world.
 	 */
 	public static void onRemoveEntityFromWorld(Entity entity) {
+		if (!WDL.downloading) { return; }
+		
+		onRemoveEntityFromWorld(entity, WDL.thePlayer.posX,
+				WDL.thePlayer.posZ);
+	}
+
+	/**
+	 * Handles an entity about to be removed from the world, with the player
+	 * at the given position.  Used when replaying a recorded session, where
+	 * there is no player.
+	 */
+	public static void onRemoveEntityFromWorld(Entity entity, double playerX,
+			double playerZ) {
 		// If the entity is being removed and it's outside the default tracking
 		// range, go ahead and remember it until the chunk is saved.
 
@@ -484,48 +510,48 @@ public class WDLEvents {
 		// given to addEntityToTracker.
 		if (WDL.downloading && WDLPluginChannels.canSaveEntities()) {
 			if (entity != null) {
+				String entityType = EntityUtils.getEntityType(entity);
+				int chunkX = MathHelper.floor_double(entity.posX / 16.0D);
+				int chunkZ = MathHelper.floor_double(entity.posZ / 16.0D);
+				
 				if (!EntityUtils.isEntityEnabled(entity)) {
-					WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY,
-							"removeEntityFromWorld: Allowing removal of "
-									+ EntityUtils.getEntityType(entity)
-									+ " (user pref)");
+					WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY, chunkX, chunkZ,
+							entityType, "removeEntityFromWorld: Allowing "
+									+ "removal of %s (user pref)", entityType);
 					return;
 				}
 				
 				int threshold = EntityUtils.getEntityTrackDistance(entity);
 				
 				if (threshold < 0) {
-					WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY,
-							"removeEntityFromWorld: Allowing removal of "
-									+ EntityUtils.getEntityType(entity)
-									+ " (unrecognized distance)");
+					WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY, chunkX, chunkZ,
+							entityType, "removeEntityFromWorld: Allowing "
+									+ "removal of %s (unrecognized distance)",
+							entityType);
 					return;
 				}
 
-				double distance = entity.getDistance(WDL.thePlayer.posX,
-						entity.posY, WDL.thePlayer.posZ);
+				double distance = entity.getDistance(playerX, entity.posY,
+						playerZ);
 
 				if (distance > threshold) {
-					WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY,
-							"removeEntityFromWorld: Saving "
-									+ EntityUtils.getEntityType(entity)
-									+ " at distance " + distance
-									+ " (> " + threshold + ")");
-					entity.chunkCoordX = MathHelper
-							.floor_double(entity.posX / 16.0D);
-					entity.chunkCoordZ = MathHelper
-							.floor_double(entity.posZ / 16.0D);
-
-					WDL.newEntities.put(entity.getEntityId(), entity);
+					WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY, chunkX, chunkZ,
+							entityType, "removeEntityFromWorld: Saving %s at "
+									+ "distance %s (> %s)", entityType,
+							distance, threshold);
+					entity.chunkCoordX = chunkX;
+					entity.chunkCoordZ = chunkZ;
+
+					WDL.newEntities.add(entity);
+					ChunkFlusher.markDirty(entity.chunkCoordX,
+							entity.chunkCoordZ);
 					return;
 				}
 
-				WDL.chatDebug(
-						WDLMessageTypes.REMOVE_ENTITY,
-						"removeEntityFromWorld: Allowing removal of "
-								+ EntityUtils.getEntityType(entity)
-								+ " at distance " + distance
-								+ " (<= " + threshold + ")");
+				WDL.chatDebug(WDLMessageTypes.REMOVE_ENTITY, chunkX, chunkZ,
+						entityType, "removeEntityFromWorld: Allowing removal "
+								+ "of %s at distance %s (<= %s)", entityType,
+						distance, threshold);
 			}
 		}
 	}
@@ -9,6 +9,7 @@ import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.client.network.NetHandlerPlayClient;
 import net.minecraft.crash.CrashReport;
+import net.minecraft.crash.CrashReportCategory;
 import net.minecraft.entity.Entity;
 import net.minecraft.inventory.Container;
 import net.minecraft.item.ItemMap;
@@ -31,7 +32,12 @@ import wdl.api.IWDLMod;
  * All of these should be called regardless of any WDL state variables.
  */
 public class WDLHooks {
-	private static final Profiler profiler = Minecraft.getMinecraft().mcProfiler;
+	/**
+	 * The game's profiler, or a standalone one when there is no game (such
+	 * as when a recorded session is replayed).
+	 */
+	private static final Profiler profiler = (Minecraft.getMinecraft() != null
+			? Minecraft.getMinecraft().mcProfiler : new Profiler());
 	
 	/**
 	 * All WDLMods that implement {@link IGuiHooksListener}.
@@ -60,6 +66,7 @@ public class WDLHooks {
 	 * Should be at end of the method.
 	 */
 	public static void onWorldClientTick(WorldClient sender) {
+		long hookStart = HookProfiler.now();
 		try {
 			profiler.startSection("wdl");
 			
@@ -69,18 +76,27 @@ public class WDLHooks {
 					return;
 				}
 				
+				long start = HookProfiler.now();
 				WDLEvents.onWorldLoad(sender);
+				HookProfiler.record("onWorldClientTick", "onWorldLoad", start);
 				profiler.endSection();
 			} else {
+				SessionRecorder.onTick(sender);
+				
 				profiler.startSection("inventoryCheck");
+				long inventoryCheckStart = HookProfiler.now();
 				if (WDL.downloading && WDL.thePlayer != null) {
 					if (WDL.thePlayer.openContainer != WDL.windowContainer) {
 						if (WDL.thePlayer.openContainer == WDL.thePlayer.inventoryContainer) {
 							boolean handled;
 							
 							profiler.startSection("onItemGuiClosed");
+							long guiClosedStart = HookProfiler.now();
 							profiler.startSection("Core");
+							long start = HookProfiler.now();
 							handled = WDLEvents.onItemGuiClosed();
+							HookProfiler.record("onItemGuiClosed",
+									HookProfiler.CORE, start);
 							profiler.endSection();
 							
 							Container container = WDL.thePlayer.openContainer;
@@ -94,8 +110,11 @@ public class WDLHooks {
 									}
 
 									profiler.startSection(e.getKey());
+									start = HookProfiler.now();
 									handled = e.getValue().onEntityGuiClosed(
 											sender, entity, container);
+									HookProfiler.record("onItemGuiClosed",
+											e.getKey(), start);
 									profiler.endSection();
 								}
 								
@@ -115,8 +134,11 @@ public class WDLHooks {
 									}
 
 									profiler.startSection(e.getKey());
+									start = HookProfiler.now();
 									handled = e.getValue().onBlockGuiClosed(
 											sender, pos, container);
+									HookProfiler.record("onItemGuiClosed",
+											e.getKey(), start);
 									profiler.endSection();
 								}
 								
@@ -128,11 +150,18 @@ public class WDLHooks {
 								}
 							}
 							
+							HookProfiler.record("onItemGuiClosed",
+									HookProfiler.TOTAL, guiClosedStart);
 							profiler.endSection();
 						} else {
 							profiler.startSection("onItemGuiOpened");
 							profiler.startSection("Core");
+							long start = HookProfiler.now();
 							WDLEvents.onItemGuiOpened();
+							HookProfiler.record("onItemGuiOpened",
+									HookProfiler.CORE, start);
+							HookProfiler.record("onItemGuiOpened",
+									HookProfiler.TOTAL, start);
 							profiler.endSection();
 							profiler.endSection();
 						}
@@ -140,6 +169,26 @@ public class WDLHooks {
 						WDL.windowContainer = WDL.thePlayer.openContainer;
 					}
 				}
+				HookProfiler.record("onWorldClientTick", "inventoryCheck",
+						inventoryCheckStart);
+				profiler.endSection();
+				
+				profiler.startSection("chunkFlush");
+				long start = HookProfiler.now();
+				ChunkFlusher.onWorldTick();
+				HookProfiler.record("onWorldClientTick", "chunkFlush", start);
+				profiler.endSection();
+				
+				profiler.startSection("unloadSaves");
+				start = HookProfiler.now();
+				UnloadSaveQueue.onWorldTick();
+				HookProfiler.record("onWorldClientTick", "unloadSaves", start);
+				profiler.endSection();
+				
+				profiler.startSection("messages");
+				start = HookProfiler.now();
+				WDLMessages.onTick();
+				HookProfiler.record("onWorldClientTick", "messages", start);
 				profiler.endSection();
 			}
 			
@@ -147,6 +196,9 @@ public class WDLHooks {
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
 					"WDL mod: exception in onWorldClientTick event"));
+		} finally {
+			HookProfiler.record("onWorldClientTick", HookProfiler.TOTAL,
+					hookStart);
 		}
 	}
 
@@ -157,26 +209,55 @@ public class WDLHooks {
 	 */
 	public static void onWorldClientDoPreChunk(WorldClient sender, int x,
 			int z, boolean loading) {
+		long hookStart = HookProfiler.now();
 		try {
-			if (!WDL.downloading) { return; }
-			
-			profiler.startSection("wdl");
+			// The index is kept up to date even when not downloading, as
+			// it needs to know about chunks loaded before the download
+			// started.
+			LoadedChunkIndex index = LoadedChunkIndex.forWorld(sender);
+			if (loading) {
+				index.onChunkLoaded(x, z);
+			}
 			
-			if (!loading) {
-				profiler.startSection("onChunkNoLongerNeeded");
-				Chunk c = sender.getChunkFromChunkCoords(x, z); 
+			if (WDL.downloading) {
+				profiler.startSection("wdl");
 				
-				profiler.startSection("Core");
-				wdl.WDLEvents.onChunkNoLongerNeeded(c);
-				profiler.endSection();
+				if (loading) {
+					SessionRecorder.onChunkLoaded(x, z);
+					UnloadSaveQueue.onChunkLoaded(x, z);
+				} else {
+					profiler.startSection("onChunkNoLongerNeeded");
+					Chunk c = sender.getChunkFromChunkCoords(x, z); 
+					SessionRecorder.onChunkUnloading(c);
+					
+					profiler.startSection("Core");
+					long start = HookProfiler.now();
+					wdl.WDLEvents.onChunkNoLongerNeeded(c);
+					HookProfiler.record("onChunkNoLongerNeeded",
+							HookProfiler.CORE, start);
+					HookProfiler.record("onChunkNoLongerNeeded",
+							HookProfiler.TOTAL, start);
+					profiler.endSection();
+					
+					profiler.endSection();
+				}
+				
+				// Either a new chunk, or one that is going away (and thus
+				// doesn't need to be tracked any more).
+				ChunkFlusher.markDirty(x, z);
 				
 				profiler.endSection();
 			}
 			
-			profiler.endSection();
+			if (!loading) {
+				index.onChunkUnloaded(x, z);
+			}
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
 					"WDL mod: exception in onWorldDoPreChunk event"));
+		} finally {
+			HookProfiler.record("onWorldClientDoPreChunk", HookProfiler.TOTAL,
+					hookStart);
 		}
 	}
 
@@ -194,13 +275,21 @@ public class WDLHooks {
 			if (!WDL.downloading) { return; }
 			
 			profiler.startSection("wdl.onRemoveEntityFromWorld");
+			long hookStart = HookProfiler.now();
 			
 			Entity entity = sender.getEntityByID(eid);
+			SessionRecorder.onEntityRemoved(entity, WDL.thePlayer.posX,
+					WDL.thePlayer.posZ);
 			
 			profiler.startSection("Core");
+			long start = HookProfiler.now();
 			WDLEvents.onRemoveEntityFromWorld(entity);
+			HookProfiler.record("onRemoveEntityFromWorld", HookProfiler.CORE,
+					start);
 			profiler.endSection();
 			
+			HookProfiler.record("onRemoveEntityFromWorld", HookProfiler.TOTAL,
+					hookStart);
 			profiler.endSection();
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
@@ -224,21 +313,27 @@ public class WDLHooks {
 			if (!WDL.downloading) { return; }
 			
 			profiler.startSection("wdl.onChatMessage");
+			long hookStart = HookProfiler.now();
 			
 			//func_148915_c returns the IChatComponent.
 			String chatMessage = packet.func_148915_c().getFormattedText();
 			
 			profiler.startSection("Core");
+			long start = HookProfiler.now();
 			WDLEvents.onChatMessage(chatMessage);
+			HookProfiler.record("onChatMessage", HookProfiler.CORE, start);
 			profiler.endSection();
 			
 			for (Map.Entry<String, IChatMessageListener> e : 
 					chatMessageListeners.entrySet()) {
 				profiler.startSection(e.getKey());
+				start = HookProfiler.now();
 				e.getValue().onChat(WDL.worldClient, chatMessage);
+				HookProfiler.record("onChatMessage", e.getKey(), start);
 				profiler.endSection();
 			}
 			
+			HookProfiler.record("onChatMessage", HookProfiler.TOTAL, hookStart);
 			profiler.endSection();
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
@@ -262,15 +357,21 @@ public class WDLHooks {
 			if (!WDL.downloading) { return; }
 			
 			profiler.startSection("wdl.onMapDataLoaded");
+			long hookStart = HookProfiler.now();
 			
 			int id = packet.getMapId();
 			MapData mapData = ItemMap.loadMapData(packet.getMapId(),
 					WDL.worldClient);
+			SessionRecorder.onMapDataLoaded(id, mapData);
 			
 			profiler.startSection("Core");
+			long start = HookProfiler.now();
 			WDLEvents.onMapDataLoaded(id, mapData);
+			HookProfiler.record("onMapDataLoaded", HookProfiler.CORE, start);
 			profiler.endSection();
 			
+			HookProfiler.record("onMapDataLoaded", HookProfiler.TOTAL,
+					hookStart);
 			profiler.endSection();
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
@@ -292,21 +393,32 @@ public class WDLHooks {
 				return;
 			}
 						
+			profiler.startSection("wdl.onPluginChannelPacket");
+			long hookStart = HookProfiler.now();
+			
 			String channel = packet.getChannelName();
 			byte[] payload = packet.getBufferData().array();
+			SessionRecorder.onCustomPayload(channel, payload);
 			
 			profiler.startSection("Core");
+			long start = HookProfiler.now();
 			WDLEvents.onPluginChannelPacket(channel, payload);
+			HookProfiler.record("onPluginChannelPacket", HookProfiler.CORE,
+					start);
 			profiler.endSection();
 			
 			for (Map.Entry<String, IPluginChannelListener> e : 
 					pluginChannelListeners.entrySet()) {
 				profiler.startSection(e.getKey());
+				start = HookProfiler.now();
 				e.getValue().onPluginChannelPacket(WDL.worldClient, channel,
 						payload);
+				HookProfiler.record("onPluginChannelPacket", e.getKey(), start);
 				profiler.endSection();
 			}
 			
+			HookProfiler.record("onPluginChannelPacket", HookProfiler.TOTAL,
+					hookStart);
 			profiler.endSection();
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
@@ -331,24 +443,31 @@ public class WDLHooks {
 			if (!WDL.downloading) { return; }
 			
 			profiler.startSection("wdl.onBlockEvent");
+			long hookStart = HookProfiler.now();
 			
 			BlockPos pos = packet.func_179825_a();
 			Block block = packet.getBlockType();
 			int data1 = packet.getData1();
 			int data2 = packet.getData2();
+			SessionRecorder.onBlockAction(pos, block, data1, data2);
 			
 			profiler.startSection("Core");
+			long start = HookProfiler.now();
 			WDLEvents.onBlockEvent(pos, block, data1, data2);
+			HookProfiler.record("onBlockEvent", HookProfiler.CORE, start);
 			profiler.endSection();
 			
 			for (Map.Entry<String, IBlockEventListener> e : 
 					blockEventListeners.entrySet()) {
 				profiler.startSection(e.getKey());
+				start = HookProfiler.now();
 				e.getValue().onBlockEvent(WDL.worldClient, pos, block, 
 						data1, data2);
+				HookProfiler.record("onBlockEvent", e.getKey(), start);
 				profiler.endSection();
 			}
 			
+			HookProfiler.record("onBlockEvent", HookProfiler.TOTAL, hookStart);
 			profiler.endSection();
 		} catch (Throwable e) {
 			WDL.minecraft.crashed(CrashReport.makeCrashReport(e,
@@ -363,11 +482,23 @@ public class WDLHooks {
 	 * @param report
 	 */
 	public static void onCrashReportPopulateEnvironment(CrashReport report) {
-		report.makeCategory("World Downloader Mod").addCrashSectionCallable("Info",
+		CrashReportCategory category = report.makeCategory(
+				"World Downloader Mod");
+		category.addCrashSectionCallable("Info",
 			new Callable() {
 				public String call() {
 					return WDL.getDebugInfo();
 				}
 			});
+		category.addCrashSectionCallable("Hook timings",
+			new Callable() {
+				public String call() {
+					StringBuilder timings = new StringBuilder();
+					for (String line : HookProfiler.getReport()) {
+						timings.append("\n\t\t").append(line);
+					}
+					return timings.toString();
+				}
+			});
 	}
 }
@@ -5,6 +5,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -115,7 +117,48 @@ public class WDLMessages {
 	 * List of all registrations.
 	 */
 	private static List<MessageRegistration> registrations =
-			new ArrayList<MessageRegistration>();
+			new CopyOnWriteArrayList<MessageRegistration>();
+	
+	/**
+	 * Whether each type is enabled (not counting {@link #enableAllMessages}),
+	 * so that checking doesn't need to search {@link #registrations} and
+	 * build property names each time.  Cleared whenever a setting changes.
+	 */
+	private static final Map<IWDLMessageType, Boolean> enabledCache =
+			new HashMap<IWDLMessageType, Boolean>();
+	/**
+	 * The properties that {@link #enabledCache} was read from.
+	 */
+	private static Properties enabledCacheProps;
+	
+	/**
+	 * Maximum number of messages of each type that are put in chat per
+	 * {@link #RATE_LIMIT_WINDOW_MILLIS}.  Further messages of that type are
+	 * counted and summed up in a single line once the window is over, so
+	 * that something like walking through a mob farm with entity messages
+	 * on doesn't flood the chat.
+	 * <br/>
+	 * Only applies to debug messages; {@link WDLMessageTypes#ERROR} and
+	 * {@link WDLMessageTypes#INFO} are always shown, so that things like
+	 * the position of a chunk that couldn't be saved aren't lost.
+	 */
+	private static final int RATE_LIMIT_MESSAGES = 10;
+	private static final long RATE_LIMIT_WINDOW_MILLIS = 1000;
+	
+	/**
+	 * Rate limiting state for one message type.
+	 */
+	private static class RateLimit {
+		public long windowStart;
+		public int sent;
+		public int suppressed;
+	}
+	
+	/**
+	 * Rate limiting state by message type.
+	 */
+	private static final Map<IWDLMessageType, RateLimit> rateLimits =
+			new HashMap<IWDLMessageType, RateLimit>();
 	
 	/**
 	 * Gets the {@link MessageRegistration} for the given name.
@@ -145,6 +188,15 @@ public class WDLMessages {
 		return null;
 	}
 	
+	/**
+	 * Gets the programmatic name of the given type, or its display name if it
+	 * isn't registered.  Safe to call from any thread.
+	 */
+	static String getName(IWDLMessageType type) {
+		MessageRegistration r = getRegistration(type);
+		return (r != null ? r.name : type.getDisplayName());
+	}
+	
 	/**
 	 * Adds registration for another type of message.
 	 * 
@@ -155,6 +207,8 @@ public class WDLMessages {
 	public static void registerMessage(String name, IWDLMessageType type,
 			String owner) {
 		registrations.add(new MessageRegistration(name, type, owner));
+		
+		invalidateEnabledCache();
 	}
 	
 	/**
@@ -167,6 +221,27 @@ public class WDLMessages {
 		if (!enableAllMessages) {
 			return false;
 		}
+		
+		synchronized (enabledCache) {
+			if (enabledCacheProps != WDL.baseProps) {
+				enabledCache.clear();
+				enabledCacheProps = WDL.baseProps;
+			}
+			
+			Boolean enabled = enabledCache.get(type);
+			if (enabled == null) {
+				enabled = computeEnabled(type);
+				enabledCache.put(type, enabled);
+			}
+			return enabled;
+		}
+	}
+	
+	/**
+	 * Works out whether the given type is enabled from the properties,
+	 * without using {@link #enabledCache}.
+	 */
+	private static boolean computeEnabled(IWDLMessageType type) {
 		MessageRegistration r = getRegistration(type);
 		if (r == null) {
 			return false;
@@ -200,6 +275,8 @@ public class WDLMessages {
 			WDL.baseProps.setProperty("Messages." + r.name,
 					Boolean.toString(!isEnabled(type)));
 		}
+		
+		invalidateEnabledCache();
 	}
 	
 	/**
@@ -220,6 +297,17 @@ public class WDLMessages {
 	public static void toggleGroupEnabled(String group) {
 		WDL.baseProps.setProperty("MessageGroup." + group,
 				Boolean.toString(!isGroupEnabled(group)));
+		invalidateEnabledCache();
+	}
+	
+	/**
+	 * Forgets which types are enabled, so that the properties are read
+	 * again.  Replacing {@link WDL#baseProps} is detected automatically.
+	 */
+	public static void invalidateEnabledCache() {
+		synchronized (enabledCache) {
+			enabledCache.clear();
+		}
 	}
 	
 	/**
@@ -248,6 +336,7 @@ public class WDLMessages {
 			WDL.baseProps.setProperty("Messages." + r.name,
 					Boolean.toString(r.type.isEnabledByDefault()));
 		}
+		invalidateEnabledCache();
 	}
 	
 	/**
@@ -265,6 +354,7 @@ public class WDLMessages {
 			enableAllMessages = WDL.baseProps.getProperty("Messages.enableAll")
 					.equals("true");
 		}
+		invalidateEnabledCache();
 	}
 	
 	/**
@@ -274,7 +364,58 @@ public class WDLMessages {
 	 * @param message The message to display.
 	 */
 	public static void chatMessage(IWDLMessageType type, String message) {
-		chatMessage(type, new ChatComponentText(message));
+		WDLEventLog.record(type, message);
+		
+		if (!isEnabled(type)) {
+			logDisabled(type, message);
+			return;
+		}
+		
+		showMessage(type, new ChatComponentText(message));
+	}
+	
+	/**
+	 * Prints the given message into the chat, only formatting it if the type
+	 * is enabled.  Use this instead of concatenating for messages that are
+	 * sent often, so that they cost next to nothing when they are off.
+	 * 
+	 * @param type The type of the message.
+	 * @param format The message to display, in {@link String#format} form.
+	 * @param args The arguments for the format.
+	 */
+	public static void chatMessage(IWDLMessageType type, String format,
+			Object... args) {
+		chatMessage(type, WDLEventLog.NO_CHUNK, WDLEventLog.NO_CHUNK, null,
+				format, args);
+	}
+	
+	/**
+	 * Prints the given message about a chunk or (tile) entity into the chat,
+	 * only formatting it if the type is enabled.  The location and id are
+	 * recorded separately in the {@link WDLEventLog event log}.
+	 * 
+	 * @param type The type of the message.
+	 * @param chunkX The chunk the message is about, or
+	 *            {@link WDLEventLog#NO_CHUNK}.
+	 * @param chunkZ The chunk the message is about, or
+	 *            {@link WDLEventLog#NO_CHUNK}.
+	 * @param id The type of the entity or tile entity the message is about,
+	 *            or null.
+	 * @param format The message to display, in {@link String#format} form.
+	 * @param args The arguments for the format.
+	 */
+	public static void chatMessage(IWDLMessageType type, int chunkX,
+			int chunkZ, String id, String format, Object... args) {
+		WDLEventLog.record(type, chunkX, chunkZ, id, format, args);
+		
+		if (!isEnabled(type)) {
+			if (isLoggedWhenDisabled(type)) {
+				logDisabled(type, String.format(format, args));
+			}
+			return;
+		}
+		
+		showMessage(type, new ChatComponentText(String.format(format, args)));
 	}
 	
 	/**
@@ -284,6 +425,129 @@ public class WDLMessages {
 	 * @param message The message to display.
 	 */
 	public static void chatMessage(IWDLMessageType type, IChatComponent message) {
+		if (WDLEventLog.isRecording()) {
+			WDLEventLog.record(type, message.getUnformattedText());
+		}
+		
+		if (!isEnabled(type)) {
+			if (isLoggedWhenDisabled(type)) {
+				logDisabled(type, message.getUnformattedText());
+			}
+			return;
+		}
+		
+		showMessage(type, message);
+	}
+	
+	/**
+	 * Prints an enabled message, subject to the rate limit.  Messages left
+	 * out of chat are still in the {@link WDLEventLog event log}, which
+	 * records every message before it gets here.
+	 */
+	private static void showMessage(IWDLMessageType type,
+			IChatComponent message) {
+		if (isImportant(type)) {
+			printMessage(type, message);
+			return;
+		}
+		
+		String summary;
+		boolean allowed;
+		synchronized (rateLimits) {
+			RateLimit limit = rateLimits.get(type);
+			if (limit == null) {
+				limit = new RateLimit();
+				rateLimits.put(type, limit);
+			}
+			
+			long now = System.currentTimeMillis();
+			summary = endWindowIfOver(type, limit, now);
+			
+			allowed = limit.sent < RATE_LIMIT_MESSAGES;
+			if (allowed) {
+				limit.sent++;
+			} else {
+				limit.suppressed++;
+			}
+		}
+		
+		if (summary != null) {
+			printMessage(type, new ChatComponentText(summary));
+		}
+		if (allowed) {
+			printMessage(type, message);
+		}
+	}
+	
+	/**
+	 * Should be called every tick.  Puts the summaries of messages that
+	 * were left out by the rate limit in chat, even if no more messages of
+	 * that type come.
+	 */
+	public static void onTick() {
+		List<IWDLMessageType> summaryTypes = null;
+		List<String> summaries = null;
+		
+		synchronized (rateLimits) {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<IWDLMessageType, RateLimit> e :
+					rateLimits.entrySet()) {
+				if (e.getValue().suppressed == 0) {
+					continue;
+				}
+				
+				String summary = endWindowIfOver(e.getKey(), e.getValue(),
+						now);
+				if (summary != null) {
+					if (summaries == null) {
+						summaryTypes = new ArrayList<IWDLMessageType>();
+						summaries = new ArrayList<String>();
+					}
+					summaryTypes.add(e.getKey());
+					summaries.add(summary);
+				}
+			}
+		}
+		
+		if (summaries != null) {
+			for (int i = 0; i < summaries.size(); i++) {
+				printMessage(summaryTypes.get(i), new ChatComponentText(
+						summaries.get(i)));
+			}
+		}
+	}
+	
+	/**
+	 * Starts a new rate limit window if the current one is over.  Must be
+	 * called while synchronized on {@link #rateLimits}.
+	 * 
+	 * @return A summary of the messages that were left out in the old
+	 *         window, or null if there were none (or it isn't over).
+	 */
+	private static String endWindowIfOver(IWDLMessageType type,
+			RateLimit limit, long now) {
+		long elapsed = now - limit.windowStart;
+		if (elapsed < RATE_LIMIT_WINDOW_MILLIS) {
+			return null;
+		}
+		
+		String summary = null;
+		if (limit.suppressed > 0) {
+			summary = getName(type) + " \u00d7" + limit.suppressed + " in last "
+					+ Math.max(1, elapsed / 1000) + "s";
+		}
+		
+		limit.windowStart = now;
+		limit.sent = 0;
+		limit.suppressed = 0;
+		return summary;
+	}
+	
+	/**
+	 * Puts a message in chat, with the WDL header.
+	 */
+	private static void printMessage(IWDLMessageType type,
+			IChatComponent message) {
 		IChatComponent tooltip = new ChatComponentText(
 				"§rThis is a message generated by the \"World Downloader\" " +
 				"mod.\n§rYou can disable this message by turning off \n§r" +
@@ -304,11 +568,37 @@ public class WDLMessages {
 		messageFormat.appendSibling(message);
 		text.appendSibling(header);
 		text.appendSibling(messageFormat);
-		if (isEnabled(type)) {
-			Minecraft.getMinecraft().ingameGUI.getChatGUI().printChatMessage(
-					text);
-		} else {
-			logger.info(text.getUnformattedText());
+		Minecraft.getMinecraft().ingameGUI.getChatGUI().printChatMessage(text);
+	}
+	
+	/**
+	 * Checks whether a disabled message of the given type would be logged,
+	 * so that it only needs to be formatted if so.
+	 */
+	private static boolean isLoggedWhenDisabled(IWDLMessageType type) {
+		return isImportant(type) || logger.isDebugEnabled();
+	}
+	
+	/**
+	 * Checks whether messages of the given type always go to the log at
+	 * info level, even when disabled, as they are needed to find out what
+	 * went wrong.
+	 */
+	private static boolean isImportant(IWDLMessageType type) {
+		return type == WDLMessageTypes.ERROR || type == WDLMessageTypes.INFO;
+	}
+	
+	/**
+	 * Logs a message whose type is disabled.  Errors and info messages are
+	 * logged at info level, as they always were; everything else is only
+	 * logged at debug level, so that disabled messages don't cost anything
+	 * normally.
+	 */
+	private static void logDisabled(IWDLMessageType type, String message) {
+		if (isImportant(type)) {
+			logger.info("[WorldDL] " + message);
+		} else if (logger.isDebugEnabled()) {
+			logger.debug("[WorldDL] " + message);
 		}
 	}
 }
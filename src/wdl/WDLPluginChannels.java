@@ -233,6 +233,8 @@ public class WDLPluginChannels {
 		
 		canUseFunctionsUnknownToServer = true;
 		
+		EntityUtils.onTrackDistanceSettingsChanged();
+		
 		WDL.chatDebug(WDLMessageTypes.PLUGIN_CHANNEL_MESSAGE,
 				"Sending plugin channels registration to the server.");
 		
@@ -272,6 +274,10 @@ public class WDLPluginChannels {
 
 			receivedPackets.add(section);
 			
+			// Packets #1 (canSaveEntities) and #2 (entityRanges) both
+			// change the track distances.
+			EntityUtils.onTrackDistanceSettingsChanged();
+			
 			switch (section) {
 			case 0:
 				canUseFunctionsUnknownToServer = input.readBoolean();
@@ -1,23 +1,32 @@
 package wdl;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 
 public class WorldBackup {
 	public static enum WorldBackupType {
 		NONE("No backup"),
 		FOLDER("Copy world folder"),
-		ZIP("Zip a copy of a world");
+		ZIP("Zip a copy of a world"),
+		INCREMENTAL("Only store changes");
 
 		public final String description;
 
@@ -43,6 +52,89 @@ public class WorldBackup {
 	 */
 	private static final DateFormat DATE_FORMAT = 
 			new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+	
+	/**
+	 * Folder (inside of the saves folder) that holds the snapshots that
+	 * background backups are made from.
+	 */
+	private static final String SNAPSHOT_FOLDER_NAME = ".wdl_snapshots";
+	/**
+	 * Folder (inside of the snapshots folder) with the snapshots that are
+	 * waiting to be backed up.
+	 */
+	private static final String PENDING_FOLDER_NAME = "pending";
+	/**
+	 * Folder (inside of the snapshots folder) with the last snapshot of each
+	 * world, kept as hard links so that the next snapshot can link the files
+	 * that haven't changed instead of copying them.
+	 */
+	private static final String BASE_FOLDER_NAME = "base";
+	/**
+	 * Files modified this close to (or after) the time that the last
+	 * snapshot was taken are always copied, in case the file system's
+	 * modification times are too coarse to tell the versions apart.
+	 */
+	private static final long MODIFIED_TIME_SLACK_MILLIS = 2000L;
+	/**
+	 * How long to wait for background backups to clean up after being
+	 * cancelled when the game is closed.
+	 */
+	private static final long SHUTDOWN_CANCEL_WAIT_MILLIS = 5000L;
+	
+	/**
+	 * Runs background backups, one at a time.  Created when first needed.
+	 */
+	private static ExecutorService backupExecutor;
+	/**
+	 * Background backups that might not be done yet.
+	 */
+	private static final List<Future<?>> pendingBackups =
+			new ArrayList<Future<?>>();
+	
+	/**
+	 * Reference to <code>File.toPath()</code>, or null before Java 7.
+	 */
+	private static final Method toPath;
+	/**
+	 * Reference to <code>Files.createLink(Path, Path)</code>, or null before
+	 * Java 7.
+	 */
+	private static final Method createLink;
+	
+	static {
+		Method toPathMethod = null;
+		Method createLinkMethod = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			toPathMethod = File.class.getMethod("toPath");
+			createLinkMethod = Class.forName("java.nio.file.Files")
+					.getMethod("createLink", pathClass, pathClass);
+		} catch (Exception e) {
+			// Not on Java 7; snapshots are copied instead.
+			toPathMethod = null;
+			createLinkMethod = null;
+		}
+		toPath = toPathMethod;
+		createLink = createLinkMethod;
+	}
+
+	/**
+	 * Receives progress updates while a backup is being made.
+	 */
+	public static interface IBackupProgressMonitor {
+		/**
+		 * Called before any files are backed up.
+		 * 
+		 * @param count The total number of files.
+		 */
+		public abstract void setNumberOfFiles(int count);
+		/**
+		 * Called after each file is backed up.
+		 * 
+		 * @param name The path of the file, relative to the world folder.
+		 */
+		public abstract void onNextFile(String name);
+	}
 
 	/**
 	 * Backs up the given world with the selected type.
@@ -55,26 +147,64 @@ public class WorldBackup {
 	 */
 	public static void backupWorld(File worldFolder, String worldName,
 			WorldBackupType type) throws IOException {
-		String newWorldName = worldName + "_" + DATE_FORMAT.format(new Date());
-		
+		backupWorld(worldFolder, worldName, type, null);
+	}
+
+	/**
+	 * Backs up the given world with the selected type.
+	 * 
+	 * @param worldFolder The folder that contains the world to backup.
+	 * @param worldName The name of the world.
+	 * @param type The type to backup with.
+	 * @param monitor Notified of progress.  May be null.
+	 * 
+	 * @throws IOException
+	 */
+	public static void backupWorld(File worldFolder, String worldName,
+			WorldBackupType type, IBackupProgressMonitor monitor)
+			throws IOException {
+		backupWorld(worldFolder, worldFolder.getParentFile(), worldName,
+				getBackupName(worldName), type, monitor);
+	}
+	
+	/**
+	 * Backs up the given world with the selected type.
+	 * 
+	 * @param worldFolder The folder that contains the world to backup.
+	 * @param backupsFolder The folder to put the backup in.
+	 * @param worldName The name of the world.
+	 * @param newWorldName The name of the backup.
+	 * @param type The type to backup with.
+	 * @param monitor Notified of progress.  May be null.
+	 */
+	private static void backupWorld(File worldFolder, File backupsFolder,
+			String worldName, String newWorldName, WorldBackupType type,
+			IBackupProgressMonitor monitor) throws IOException {
 		switch (type) {
 		case NONE: {
 			return;
 		}
 		case FOLDER: {
-			File destination = new File(worldFolder.getParentFile(),
-					newWorldName);
+			File destination = new File(backupsFolder, newWorldName);
 			
 			if (destination.exists()) {
 				throw new IOException("Backup folder (" + destination + 
 						") already exists!");
 			}
 			
-			copyDirectory(worldFolder, destination);
+			copyDirectory(worldFolder, destination, monitor);
+			return;
+		}
+		case INCREMENTAL: {
+			File backupFolder = new File(backupsFolder,
+					worldName + "_backups");
+			
+			IncrementalBackup.backup(worldFolder, backupFolder,
+					newWorldName, monitor);
 			return;
 		}
 		case ZIP: {
-			File destination = new File(worldFolder.getParentFile(), 
+			File destination = new File(backupsFolder, 
 					newWorldName + ".zip");
 			
 			if (destination.exists()) {
@@ -82,11 +212,322 @@ public class WorldBackup {
 						") already exists!");
 			}
 			
-			zipDirectory(worldFolder, destination);
+			zipDirectory(worldFolder, destination, getCompressionLevel(),
+					shouldStoreRegionFiles(), monitor);
 			return;
 		}
 		}
 	}
+	
+	/**
+	 * Backs up the given world in the background.
+	 * <br/>
+	 * A snapshot of the world is taken first (on the calling thread, as
+	 * the world will change as soon as downloading continues), and the
+	 * backup is then made from that snapshot by a low-priority thread.
+	 * Errors are reported in chat.
+	 * <br/>
+	 * The snapshot is made of hard links where possible: files that haven't
+	 * changed since the world's last snapshot are linked to it, and only
+	 * the ones that did are copied (they can't just be linked, as region
+	 * files are written in place).  Folder backups are copied from the
+	 * snapshot on the backup thread, so they don't share any files.
+	 * 
+	 * @param worldFolder The folder that contains the world to backup.
+	 * @param worldName The name of the world.
+	 * @param type The type to backup with.
+	 * @param monitor Notified of the progress of the snapshot.  May be null.
+	 */
+	public static void backupWorldAsync(File worldFolder,
+			final String worldName, final WorldBackupType type,
+			IBackupProgressMonitor monitor) throws IOException {
+		final String newWorldName = getBackupName(worldName);
+		final File backupsFolder = worldFolder.getParentFile();
+		
+		if (type == WorldBackupType.NONE) {
+			return;
+		}
+		
+		// Not directly in the saves folder, or it would show up as a world.
+		File snapshotsFolder = new File(backupsFolder, SNAPSHOT_FOLDER_NAME);
+		File pendingFolder = new File(snapshotsFolder, PENDING_FOLDER_NAME);
+		final File snapshot = new File(pendingFolder, newWorldName);
+		File base = new File(new File(snapshotsFolder, BASE_FOLDER_NAME),
+				worldName);
+		
+		synchronized (pendingBackups) {
+			if (backupExecutor == null) {
+				// Snapshots left over from backups that were cancelled
+				// before they started, or from a crash.
+				FileUtils.deleteQuietly(pendingFolder);
+				
+				backupExecutor = Executors.newSingleThreadExecutor(
+						new NamedThreadFactory("WDL Backup",
+								Thread.MIN_PRIORITY));
+				Runtime.getRuntime().addShutdownHook(new Thread(
+						"WDL Backup shutdown") {
+					@Override
+					public void run() {
+						// Don't hold up closing the game; just give them a
+						// moment to remove what they had written so far.
+						cancelPendingBackups();
+						waitForPendingBackups(SHUTDOWN_CANCEL_WAIT_MILLIS);
+					}
+				});
+			}
+		}
+		
+		try {
+			takeSnapshot(worldFolder, base, snapshot, monitor);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(snapshot);
+			throw e;
+		}
+		
+		synchronized (pendingBackups) {
+			pendingBackups.add(backupExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (type == WorldBackupType.FOLDER) {
+							File destination = new File(backupsFolder,
+									newWorldName);
+							if (destination.exists()) {
+								throw new IOException("Backup folder ("
+										+ destination + ") already exists!");
+							}
+							// Copied rather than moved: the snapshot's files
+							// are hard links shared with the base (and so
+							// with other backups), and playing the backup
+							// would write to them in place.
+							try {
+								copyDirectory(snapshot, destination, null);
+							} catch (IOException e) {
+								FileUtils.deleteQuietly(destination);
+								throw e;
+							}
+						} else {
+							backupWorld(snapshot, backupsFolder, worldName,
+									newWorldName, type, null);
+						}
+						
+						WDL.chatDebug(WDLMessageTypes.SAVING, "Finished "
+								+ "backing up the world (" + newWorldName
+								+ ").");
+					} catch (InterruptedIOException e) {
+						WDL.chatDebug(WDLMessageTypes.SAVING, "Backup of "
+								+ "the world (" + newWorldName
+								+ ") was cancelled.");
+					} catch (Exception e) {
+						WDL.chatError("Error while backing up world: " + e);
+						e.printStackTrace();
+					} finally {
+						FileUtils.deleteQuietly(snapshot);
+					}
+				}
+			}));
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of a world, linking files that are the same as in
+	 * the base snapshot and copying the rest.  The base is then replaced
+	 * with links to the new snapshot.
+	 * <br/>
+	 * If hard links aren't supported (before Java 7, or on file systems
+	 * such as FAT), every file is copied and no base is kept.
+	 * 
+	 * @param worldFolder The world to take a snapshot of.
+	 * @param base The last snapshot of the world.  Its files are only ever
+	 *            replaced, not written to, so linking to them is safe.
+	 * @param snapshot The folder to put the new snapshot in.
+	 * @param monitor Notified of progress.  May be null.
+	 */
+	private static void takeSnapshot(File worldFolder, File base,
+			File snapshot, IBackupProgressMonitor monitor)
+			throws IOException {
+		long startTime = System.currentTimeMillis();
+		// The base folder's own modification time is set to when it was
+		// taken, once it's complete; see below.
+		long baseTime = base.lastModified() - MODIFIED_TIME_SLACK_MILLIS;
+		
+		List<File> files = listFiles(worldFolder);
+		int pathStartIndex = worldFolder.getPath().length() + 1;
+		List<String> names = new ArrayList<String>(files.size());
+		
+		if (monitor != null) {
+			monitor.setNumberOfFiles(files.size());
+		}
+		for (File file : files) {
+			String name = file.getPath().substring(pathStartIndex);
+			File copy = new File(snapshot, name);
+			File baseFile = new File(base, name);
+			copy.getParentFile().mkdirs();
+			
+			boolean unchanged = baseFile.isFile()
+					&& baseFile.length() == file.length()
+					&& baseFile.lastModified() == file.lastModified()
+					&& file.lastModified() < baseTime;
+			if (!unchanged || !createLink(copy, baseFile)) {
+				// Keeps the modification time, which is what the next
+				// snapshot compares against.
+				FileUtils.copyFile(file, copy);
+			}
+			
+			names.add(name);
+			if (monitor != null) {
+				monitor.onNextFile(name);
+			}
+		}
+		
+		FileUtils.deleteQuietly(base);
+		for (String name : names) {
+			File baseFile = new File(base, name);
+			baseFile.getParentFile().mkdirs();
+			if (!createLink(baseFile, new File(snapshot, name))) {
+				FileUtils.deleteQuietly(base);
+				return;
+			}
+		}
+		base.setLastModified(startTime);
+	}
+	
+	/**
+	 * Creates a hard link.
+	 * 
+	 * @param link The link to create.
+	 * @param existing The file to link to.
+	 * @return Whether the link was created.
+	 */
+	private static boolean createLink(File link, File existing) {
+		if (createLink == null) {
+			return false;
+		}
+		try {
+			createLink.invoke(null, toPath.invoke(link),
+					toPath.invoke(existing));
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Waits for all backups started by
+	 * {@link #backupWorldAsync(File, String, WorldBackupType, IBackupProgressMonitor)}
+	 * to finish.
+	 * 
+	 * @param timeoutMillis The longest time to wait, in milliseconds.
+	 * @return Whether they all finished.
+	 */
+	public static boolean waitForPendingBackups(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		
+		for (Future<?> backup : getPendingBackups()) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				backup.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				return false;
+			} catch (CancellationException e) {
+				// Fine.
+			} catch (ExecutionException e) {
+				// Already reported by the task.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Cancels all backups started by
+	 * {@link #backupWorldAsync(File, String, WorldBackupType, IBackupProgressMonitor)}
+	 * that haven't finished yet.  Partially written backups are removed.
+	 */
+	public static void cancelPendingBackups() {
+		for (Future<?> backup : getPendingBackups()) {
+			backup.cancel(true);
+		}
+	}
+	
+	/**
+	 * Checks whether any backups are still being made in the background.
+	 */
+	public static boolean hasPendingBackups() {
+		return !getPendingBackups().isEmpty();
+	}
+	
+	/**
+	 * Gets the number of backups that are still being made in the
+	 * background.
+	 */
+	public static int getPendingBackupCount() {
+		return getPendingBackups().size();
+	}
+	
+	/**
+	 * Gets the backups that aren't done, removing finished ones from
+	 * {@link #pendingBackups}.
+	 */
+	private static List<Future<?>> getPendingBackups() {
+		synchronized (pendingBackups) {
+			Iterator<Future<?>> itr = pendingBackups.iterator();
+			while (itr.hasNext()) {
+				if (itr.next().isDone()) {
+					itr.remove();
+				}
+			}
+			return new ArrayList<Future<?>>(pendingBackups);
+		}
+	}
+	
+	/**
+	 * Gets the name for a new backup of the given world.
+	 */
+	private static String getBackupName(String worldName) {
+		synchronized (DATE_FORMAT) {
+			return worldName + "_" + DATE_FORMAT.format(new Date());
+		}
+	}
+	
+	/**
+	 * Throws if the current thread has been interrupted, which is how
+	 * background backups are cancelled.
+	 */
+	static void checkCancelled() throws InterruptedIOException {
+		if (Thread.interrupted()) {
+			throw new InterruptedIOException("Backup cancelled");
+		}
+	}
+
+	/**
+	 * Gets the compression level to use for zip backups, from the
+	 * <code>BackupCompressionLevel</code> property.
+	 */
+	public static int getCompressionLevel() {
+		try {
+			int level = Integer.parseInt(WDL.baseProps.getProperty(
+					"BackupCompressionLevel", "6"));
+			return Math.max(Deflater.NO_COMPRESSION,
+					Math.min(Deflater.BEST_COMPRESSION, level));
+		} catch (NumberFormatException e) {
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+	}
+
+	/**
+	 * Checks whether region files should be stored in zip backups without
+	 * compressing them again, from the <code>BackupStoreRegionFiles</code>
+	 * property.  The chunks in them are already compressed, so deflating
+	 * them takes a long time for very little gain.
+	 */
+	public static boolean shouldStoreRegionFiles() {
+		return WDL.baseProps.getProperty("BackupStoreRegionFiles", "true")
+				.equals("true");
+	}
 
 	/**
 	 * Copies a directory.
@@ -95,52 +536,111 @@ public class WorldBackup {
 			throws IOException {
 		FileUtils.copyDirectory(src, destination);
 	}
+
+	/**
+	 * Copies a directory, one file at a time so that progress can be
+	 * reported and the copy can be cancelled.
+	 * 
+	 * @param monitor Notified of progress.  May be null.
+	 */
+	public static void copyDirectory(File src, File destination,
+			IBackupProgressMonitor monitor) throws IOException {
+		List<File> files = listFiles(src);
+		int pathStartIndex = src.getPath().length() + 1;
+		
+		if (monitor != null) {
+			monitor.setNumberOfFiles(files.size());
+		}
+		for (File file : files) {
+			checkCancelled();
+			String name = file.getPath().substring(pathStartIndex);
+			FileUtils.copyFile(file, new File(destination, name));
+			if (monitor != null) {
+				monitor.onNextFile(name);
+			}
+		}
+	}
 	
 	/**
 	 * Zips a directory.
 	 */
 	public static void zipDirectory(File src, File destination)
 			throws IOException {
-		FileOutputStream outStream = null;
-		ZipOutputStream stream = null;
-		try {
-			outStream = new FileOutputStream(destination);
-			try {
-				stream = new ZipOutputStream(outStream);
-				zipFolder(src, stream, src.getPath().length() + 1);
-			} finally {
-				stream.close();
-			}
-		} finally {
-			outStream.close();
-		}
+		zipDirectory(src, destination, Deflater.DEFAULT_COMPRESSION, false,
+				null);
 	}
 	
 	/**
-	 * Recursively adds a folder to a zip stream.
+	 * Zips a directory, compressing the files in parallel.
 	 * 
-	 * @param folder The folder to zip.
-	 * @param stream The stream to write to.
-	 * @param pathStartIndex The start of the file path.
+	 * @param src The folder to zip.
+	 * @param destination The zip file to create.
+	 * @param compressionLevel The compression level, from 0 to 9.
+	 * @param storeRegionFiles If true, <code>.mca</code> and
+	 *            <code>.mcr</code> files are stored without compression.
+	 * @param monitor Notified of progress.  May be null.
 	 * 
 	 * @throws IOException
 	 */
-	private static void zipFolder(File folder, ZipOutputStream stream,
-			int pathStartIndex) throws IOException {
-		for (File file : folder.listFiles()) {
-			if (file.isFile()) {
-				ZipEntry zipEntry = new ZipEntry(file.getPath().substring(
-						pathStartIndex));
-				stream.putNextEntry(zipEntry);
-				FileInputStream inputStream = new FileInputStream(file);
+	public static void zipDirectory(File src, File destination,
+			int compressionLevel, boolean storeRegionFiles,
+			IBackupProgressMonitor monitor) throws IOException {
+		List<File> files = listFiles(src);
+		int pathStartIndex = src.getPath().length() + 1;
+		
+		if (monitor != null) {
+			monitor.setNumberOfFiles(files.size());
+		}
+		
+		ParallelZipWriter writer = new ParallelZipWriter(destination,
+				compressionLevel, monitor);
+		boolean finished = false;
+		try {
+			for (File file : files) {
+				checkCancelled();
+				String name = file.getPath().substring(pathStartIndex)
+						.replace(File.separatorChar, '/');
+				boolean store = storeRegionFiles && (name.endsWith(".mca")
+						|| name.endsWith(".mcr"));
+				
+				writer.addFile(file, name, store);
+			}
+			
+			writer.finish();
+			finished = true;
+		} finally {
+			if (!finished) {
+				// Also when finishing failed, so that a truncated zip isn't
+				// left looking like a valid backup.
 				try {
-					IOUtils.copy(inputStream, stream);
-				} finally {
-					inputStream.close();
+					writer.close();
+				} catch (IOException e) {
+					// Already failing; don't hide the original exception.
 				}
-				stream.closeEntry();
+				destination.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Recursively lists all of the files in a folder.
+	 */
+	static List<File> listFiles(File folder) {
+		List<File> files = new ArrayList<File>();
+		listFiles(folder, files);
+		return files;
+	}
+	
+	private static void listFiles(File folder, List<File> files) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File file : children) {
+			if (file.isFile()) {
+				files.add(file);
 			} else if (file.isDirectory()) {
-				zipFolder(file, stream, pathStartIndex);
+				listFiles(file, files);
 			}
 		}
 	}
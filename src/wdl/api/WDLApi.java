@@ -12,6 +12,7 @@ import org.apache.logging.log4j.Logger;
 
 import com.google.common.collect.ImmutableMap;
 
+import wdl.ChunkFlusher;
 import wdl.EntityUtils;
 import wdl.WDL;
 import wdl.WDLEvents;
@@ -44,6 +45,7 @@ public class WDLApi {
 		}
 		
 		WDL.newTileEntities.put(pos, te);
+		ChunkFlusher.markDirty(pos);
 	}
 	
 	/**
@@ -60,8 +60,10 @@ ClientBrandRetriever.getClientModName() + ".";
 				"Extensions"));
 		buttonList.add(new GuiButton(1, (this.width / 2) + 5, 18, 150, 20,
 				"Copy debug info"));
-		buttonList.add(new GuiButton(2, (this.width / 2) - 100,
-				this.height - 29, "Done"));
+		buttonList.add(new GuiButton(3, (this.width / 2) - 155,
+				this.height - 29, 150, 20, "Hook timings"));
+		buttonList.add(new GuiButton(2, (this.width / 2) + 5,
+				this.height - 29, 150, 20, "Done"));
 	}
 	
 	@Override
@@ -72,6 +74,8 @@ ClientBrandRetriever.getClientModName() + ".";
 			setClipboardString(WDL.getDebugInfo());
 		} else if (button.id == 2) {
 			mc.displayGuiScreen(parent);
+		} else if (button.id == 3) {
+			mc.displayGuiScreen(new GuiWDLHookProfiler(this));
 		}
 	}
 	
@@ -15,6 +15,11 @@ public class GuiWDLBackup extends GuiScreen {
 	private GuiScreen parent;
 	
 	private WorldBackupType backupType;
+	private int compressionLevel;
+	private boolean storeRegionFiles;
+	
+	private GuiButton compressionLevelButton;
+	private GuiButton storeRegionFilesButton;
 	
 	public GuiWDLBackup(GuiScreen parent) {
 		this.parent = parent;
@@ -24,6 +29,8 @@ public class GuiWDLBackup extends GuiScreen {
 	public void initGui() {
 		backupType = WorldBackupType.match(
 				WDL.baseProps.getProperty("Backup", "ZIP"));
+		compressionLevel = WorldBackup.getCompressionLevel();
+		storeRegionFiles = WorldBackup.shouldStoreRegionFiles();
 		
 		int x = (this.width / 2) - 100;
 		int y = (this.height / 4) - 15;
@@ -31,6 +38,14 @@ public class GuiWDLBackup extends GuiScreen {
 		this.buttonList.add(new GuiButton(0, x, y, 
 				"Backup mode: " + backupType.description));
 		
+		compressionLevelButton = new GuiButton(1, x, y + 24,
+				getCompressionLevelText());
+		this.buttonList.add(compressionLevelButton);
+		storeRegionFilesButton = new GuiButton(2, x, y + 48,
+				getStoreRegionFilesText());
+		this.buttonList.add(storeRegionFilesButton);
+		updateZipButtons();
+		
 		this.buttonList.add(new GuiButton(100, x, height - 29, "Done"));
 	}
 	
@@ -44,10 +59,20 @@ public class GuiWDLBackup extends GuiScreen {
 			switch (backupType) {
 			case NONE: backupType = WorldBackupType.FOLDER; break;
 			case FOLDER: backupType = WorldBackupType.ZIP; break;
-			case ZIP: backupType = WorldBackupType.NONE; break;
+			case ZIP: backupType = WorldBackupType.INCREMENTAL; break;
+			case INCREMENTAL: backupType = WorldBackupType.NONE; break;
 			}
 			
 			button.displayString = "Backup mode: " + backupType.description;
+			updateZipButtons();
+		} else if (button.id == 1) { //Compression level
+			compressionLevel = (compressionLevel + 1) % 10;
+			
+			button.displayString = getCompressionLevelText();
+		} else if (button.id == 2) { //Store region files
+			storeRegionFiles = !storeRegionFiles;
+			
+			button.displayString = getStoreRegionFilesText();
 		} else if (button.id == 100) { //Done
 			this.mc.displayGuiScreen(this.parent);
 		}
@@ -56,10 +81,32 @@ public class GuiWDLBackup extends GuiScreen {
 	@Override
 	public void onGuiClosed() {
 		WDL.baseProps.setProperty("Backup", backupType.name());
+		WDL.baseProps.setProperty("BackupCompressionLevel",
+				Integer.toString(compressionLevel));
+		WDL.baseProps.setProperty("BackupStoreRegionFiles",
+				Boolean.toString(storeRegionFiles));
 		
 		WDL.saveProps();
 	}
 	
+	/**
+	 * The zip options only apply to zip backups.
+	 */
+	private void updateZipButtons() {
+		compressionLevelButton.enabled = (backupType == WorldBackupType.ZIP);
+		storeRegionFilesButton.enabled = (backupType == WorldBackupType.ZIP);
+	}
+	
+	private String getCompressionLevelText() {
+		return "Zip compression level: " + compressionLevel
+				+ (compressionLevel == 0 ? " (none)" : "");
+	}
+	
+	private String getStoreRegionFilesText() {
+		return "Region files: " + (storeRegionFiles ? "Stored as-is"
+				: "Compressed again");
+	}
+	
 	@Override
 	public void drawScreen(int mouseX, int mouseY, float partialTicks) {
 		Utils.drawBorder(23, 32, 0, 0, height, width);
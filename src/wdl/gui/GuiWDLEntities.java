@@ -238,6 +238,7 @@ public class GuiWDLEntities extends GuiScreen {
 					
 					WDL.worldProps.setProperty("EntityGroup." + group
 							+ ".Enabled", Boolean.toString(groupEnabled));
+					EntityUtils.onEntitySettingsChanged();
 					return true;
 				}
 				return false;
@@ -342,6 +343,7 @@ public class GuiWDLEntities extends GuiScreen {
 					
 					WDL.worldProps.setProperty("Entity." + entity + 
 							".Enabled", Boolean.toString(entityEnabled));
+					EntityUtils.onEntitySettingsChanged();
 					return true;
 				}
 				if (rangeSlider.mousePressed(mc, x, y)) {
@@ -350,6 +352,7 @@ public class GuiWDLEntities extends GuiScreen {
 					WDL.worldProps.setProperty("Entity." + entity
 							+ ".TrackDistance",
 							Integer.toString(range));
+					EntityUtils.onEntitySettingsChanged();
 					
 					return true;
 				}
@@ -368,6 +371,7 @@ public class GuiWDLEntities extends GuiScreen {
 					WDL.worldProps.setProperty("Entity." + entity
 							+ ".TrackDistance",
 							Integer.toString(range));
+					EntityUtils.onEntitySettingsChanged();
 				}
 			}
 
@@ -156,6 +156,8 @@ public class GuiWDLEntityRangePresets extends GuiScreen implements GuiYesNoCallb
 							WDLPluginChannels.getEntityRange(entity)));
 				}
 			}
+			
+			EntityUtils.onEntitySettingsChanged();
 		}
 		
 		mc.displayGuiScreen(parent);
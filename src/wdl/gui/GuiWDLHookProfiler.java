@@ -0,0 +1,105 @@
+package wdl.gui;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.lwjgl.input.Mouse;
+
+import wdl.HookProfiler;
+import net.minecraft.client.gui.GuiButton;
+import net.minecraft.client.gui.GuiScreen;
+
+/**
+ * Shows the {@link HookProfiler} counters: how often each hook and each
+ * extension's listener ran, and how long they took.
+ */
+public class GuiWDLHookProfiler extends GuiScreen {
+	/**
+	 * GUI to display afterwards.
+	 */
+	private final GuiScreen parent;
+
+	/**
+	 * The report lines, refreshed every second.
+	 */
+	private List<String> lines;
+	private int ticksUntilRefresh;
+	/**
+	 * Number of lines scrolled down.
+	 */
+	private int scroll;
+
+	public GuiWDLHookProfiler(GuiScreen parent) {
+		this.parent = parent;
+	}
+
+	@Override
+	public void initGui() {
+		this.buttonList.add(new GuiButton(0, (this.width / 2) - 155,
+				this.height - 29, 150, 20, "Reset"));
+		this.buttonList.add(new GuiButton(1, (this.width / 2) + 5,
+				this.height - 29, 150, 20, "Done"));
+
+		this.lines = HookProfiler.getReport();
+	}
+
+	@Override
+	public void updateScreen() {
+		if (--ticksUntilRefresh <= 0) {
+			this.lines = HookProfiler.getReport();
+			ticksUntilRefresh = 20;
+		}
+	}
+
+	@Override
+	protected void actionPerformed(GuiButton button) throws IOException {
+		if (button.id == 0) {
+			HookProfiler.reset();
+			this.lines = HookProfiler.getReport();
+			this.scroll = 0;
+		} else if (button.id == 1) {
+			this.mc.displayGuiScreen(this.parent);
+		}
+	}
+
+	@Override
+	public void handleMouseInput() throws IOException {
+		super.handleMouseInput();
+
+		int wheel = Mouse.getEventDWheel();
+		if (wheel > 0) {
+			scroll = Math.max(0, scroll - 3);
+		} else if (wheel < 0) {
+			scroll = Math.max(0, Math.min(lines.size() - getVisibleLines(),
+					scroll + 3));
+		}
+	}
+
+	@Override
+	public void drawScreen(int mouseX, int mouseY, float partialTicks) {
+		Utils.drawBorder(23, 32, 0, 0, height, width);
+
+		drawCenteredString(fontRendererObj, "WDL hook timings", width / 2, 8,
+				0xFFFFFF);
+
+		if (lines.isEmpty()) {
+			drawCenteredString(fontRendererObj, "No hooks have run yet",
+					width / 2, 27, 0xA0A0A0);
+		}
+
+		int y = 27;
+		int end = Math.min(lines.size(), scroll + getVisibleLines());
+		for (int i = scroll; i < end; i++) {
+			String line = lines.get(i);
+			drawString(fontRendererObj, line, 5, y,
+					line.startsWith(" ") ? 0xA0A0A0 : 0xFFFFFF);
+			y += fontRendererObj.FONT_HEIGHT;
+		}
+
+		super.drawScreen(mouseX, mouseY, partialTicks);
+	}
+
+	private int getVisibleLines() {
+		return Math.max(1, (height - 32 - 27) / fontRendererObj.FONT_HEIGHT);
+	}
+}
@@ -171,6 +171,7 @@ public class GuiWDLMessages extends GuiScreen {
 	
 	private GuiButton enableAllButton;
 	private GuiButton resetButton;
+	private GuiButton eventLogButton;
 	
 	@Override
 	public void initGui() {
@@ -184,8 +185,11 @@ public class GuiWDLMessages extends GuiScreen {
 
 		this.list = new GuiMessageTypeList();
 
-		this.buttonList.add(new GuiButton(102, (this.width / 2) - 100,
-				this.height - 29, "Done"));
+		eventLogButton = new GuiButton(104, (this.width / 2) - 155,
+				this.height - 29, 150, 20, getEventLogText());
+		this.buttonList.add(eventLogButton);
+		this.buttonList.add(new GuiButton(102, (this.width / 2) + 5,
+				this.height - 29, 150, 20, "Done"));
 	}
 	
 	@Override
@@ -209,9 +213,19 @@ public class GuiWDLMessages extends GuiScreen {
 					101));
 		} else if (button.id == 102) {
 			this.mc.displayGuiScreen(this.parent);
+		} else if (button.id == 104) {
+			WDL.baseProps.setProperty("Messages.eventLog", Boolean.toString(
+					!WDL.baseProps.getProperty("Messages.eventLog", "false")
+							.equals("true")));
+			button.displayString = getEventLogText();
 		}
 	}
 	
+	private String getEventLogText() {
+		return "Event log: " + (WDL.baseProps.getProperty(
+				"Messages.eventLog", "false").equals("true") ? "Yes" : "No");
+	}
+	
 	@Override
 	public void confirmClicked(boolean result, int id) {
 		if (result) {
@@ -3,7 +3,9 @@ package wdl.gui;
 import java.io.IOException;
 
 import net.minecraft.client.gui.Gui;
+import net.minecraft.client.gui.GuiButton;
 import net.minecraft.client.gui.GuiScreen;
+import wdl.WorldBackup;
 
 /**
  * GUI screen shown while the world is being saved.
@@ -19,9 +21,19 @@ public class GuiWDLSaveProgress extends GuiScreen {
 	private final int majorTaskCount;
 	private int minorTaskProgress;
 	private int minorTaskMaximum;
+	/**
+	 * Extra line shown below the progress bars, such as the current speed.
+	 */
+	private String infoMessage = "";
 	
 	private boolean doneWorking = false;
 	
+	/**
+	 * Button that cancels backups from earlier saves that are still being
+	 * made in the background.  Only shown while there are any.
+	 */
+	private GuiButton cancelBackupsButton;
+	
 	/**
 	 * Creates a new GuiWDLSaveProgress.
 	 * 
@@ -65,7 +77,43 @@ public class GuiWDLSaveProgress extends GuiScreen {
 	public void setMinorTaskProgress(int progress) {
 		this.minorTaskProgress = progress;
 	}
+	
+	/**
+	 * Changes the number of steps in the current major task, for tasks that
+	 * only know how much work there is once they have started.
+	 */
+	public void setMinorTaskCount(int minorTaskMaximum) {
+		this.minorTaskMaximum = minorTaskMaximum;
+	}
 
+	/**
+	 * Sets the extra line shown below the progress bars, such as the current
+	 * speed.
+	 */
+	public void setInfo(String message) {
+		this.infoMessage = message;
+	}
+
+	@Override
+	public void initGui() {
+		this.cancelBackupsButton = new GuiButton(0, this.width / 2 - 100,
+				this.height - 32, "Cancel background backups");
+		this.cancelBackupsButton.visible = false;
+		this.buttonList.add(this.cancelBackupsButton);
+	}
+	
+	@Override
+	public void updateScreen() {
+		this.cancelBackupsButton.visible = WorldBackup.hasPendingBackups();
+	}
+	
+	@Override
+	protected void actionPerformed(GuiButton button) throws IOException {
+		if (button.id == 0) {
+			WorldBackup.cancelPendingBackups();
+		}
+	}
+	
 	/**
 	 * Sets the GUI as done working, meaning it will be closed next tick.
 	 */
@@ -114,6 +162,17 @@ public class GuiWDLSaveProgress extends GuiScreen {
 					+ minorProgressInfo, this.width / 2, 130, 0xFFFFFF);
 			this.drawProgressBar(140, 64, 69, minorTaskProgress, minorTaskMaximum);
 			
+			this.drawCenteredString(this.fontRendererObj, this.infoMessage,
+					this.width / 2, 155, 0xA0A0A0);
+			
+			if (this.cancelBackupsButton.visible) {
+				this.drawCenteredString(this.fontRendererObj,
+						WorldBackup.getPendingBackupCount()
+								+ " backup(s) still being made in the "
+								+ "background", this.width / 2,
+						this.height - 44, 0xA0A0A0);
+			}
+			
 			super.drawScreen(mouseX, mouseY, partialTicks);
 		}
 	}